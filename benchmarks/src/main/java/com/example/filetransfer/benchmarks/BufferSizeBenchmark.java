@@ -0,0 +1,50 @@
+package com.example.filetransfer.benchmarks;
+
+import com.example.filetransfer.FileSender;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends files over the loopback interface through the stream copy loops with different buffer sizes,
+ * the same size on both sides. FileSender.DEFAULT_BUFFER_SIZE is the baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BufferSizeBenchmark {
+
+    @Param({"1024", "8192", "65536", "1048576"})
+    public int bufferSize;
+
+    @Param({"1048576", "67108864"})
+    public long fileSize;
+
+    private Loopback loopback;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        loopback = new Loopback(fileSize, server -> {
+            server.setZeroCopy(false);
+            server.setBufferSize(bufferSize);
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        loopback.close();
+    }
+
+    @Benchmark
+    public void send(TransferredBytes bytes) throws IOException {
+        FileSender sender = loopback.sender();
+        sender.setZeroCopy(false);
+        sender.setBufferSize(bufferSize);
+        loopback.send(sender);
+        bytes.bytes += fileSize;
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.filetransfer.benchmarks;
+
+import com.example.filetransfer.DatabaseHandler;
+import com.example.filetransfer.FileTransferRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast transfers are logged to and read back from the database.
+ * The database is created in a temporary directory, so the history of the application is not touched.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatabaseBenchmark {
+
+    // The number of transfers logged before the measurement starts.
+    @Param({"100", "10000"})
+    public int rows;
+
+    private DatabaseHandler db;
+    private long counter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Path directory = Files.createTempDirectory("filetransfer-bench-db");
+        // Read when the handler is created, each fork is a new JVM.
+        System.setProperty("filetransfer.database", directory.resolve("database").toString());
+        db = DatabaseHandler.getInstance();
+        for (int i = 0; i < rows; i++) {
+            db.insertSentFileTransfer("file-" + i + ".bin", i, "localhost", "8080");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        db.closeConnection();
+    }
+
+    @Benchmark
+    public void insert() {
+        db.insertSentFileTransfer("file-" + counter++ + ".bin", counter, "localhost", "8080");
+    }
+
+    @Benchmark
+    public List<FileTransferRecord> queryAll() throws SQLException {
+        return db.getAllFileTransfers();
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.filetransfer.benchmarks;
+
+import com.example.filetransfer.FileSender;
+import com.example.filetransfer.ReceiverServer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * A receiver on the loopback interface and a file of a given size to send to it, shared by the transfer benchmarks.
+ * Nothing leaves the machine, so results only depend on the local disk and the network stack.
+ */
+final class Loopback implements AutoCloseable {
+    private final Path directory;
+    private final Path source;
+    private final ReceiverServer server;
+    private final Semaphore received = new Semaphore(0);
+
+    /**
+     * Creates a file of random content and starts a receiver for it.
+     *
+     * @param configure configures the receiver before it is started
+     */
+    Loopback(long fileSize, Consumer<ReceiverServer> configure) throws IOException {
+        directory = Files.createTempDirectory("filetransfer-bench");
+        source = directory.resolve("source.bin");
+        writeRandomFile(source, fileSize);
+        Path saveLocation = Files.createDirectory(directory.resolve("received"));
+        server = new ReceiverServer(saveLocation.toString(), freePort(), receiver -> received.release());
+        configure.accept(server);
+        server.start();
+    }
+
+    // Random content, so compression and deduplication cannot make a transfer look faster than it is.
+    private static void writeRandomFile(Path file, long size) throws IOException {
+        Random random = new Random(size);
+        byte[] block = new byte[1024 * 1024];
+        try (OutputStream output = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                output.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Creates a sender for the file, to be configured by the benchmark.
+     */
+    FileSender sender() {
+        return new FileSender(source.toString(), "localhost", server.getPort());
+    }
+
+    /**
+     * Sends the file and waits until the receiver has written all of it.
+     */
+    void send(FileSender sender) throws IOException {
+        sender.send();
+        try {
+            received.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the receiver");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.stop();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.filetransfer.benchmarks;
+
+import com.example.filetransfer.FileSender;
+import com.example.filetransfer.FileSink;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends files of different sizes over the loopback interface with each I/O style.
+ * Besides transfers per second, the bytes counter reports the throughput in bytes per second.
+ * Sizes of several GB can be added with, for example, -p fileSize=4294967296.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+
+    public enum Io {
+        /**
+         * Copies through a heap buffer on both sides.
+         */
+        STREAM,
+        /**
+         * FileChannel.transferTo on the sender and transferFrom on the receiver.
+         */
+        CHANNEL,
+        /**
+         * Channel transfers, written into memory-mapped windows on the receiver.
+         */
+        MAPPED
+    }
+
+    @Param({"1024", "1048576", "67108864", "1073741824"})
+    public long fileSize;
+
+    @Param({"STREAM", "CHANNEL", "MAPPED"})
+    public Io io;
+
+    private Loopback loopback;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        loopback = new Loopback(fileSize, server -> {
+            server.setZeroCopy(io != Io.STREAM);
+            server.setWriteMode(io == Io.MAPPED ? FileSink.Mode.MAPPED : FileSink.Mode.POSITIONAL);
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        loopback.close();
+    }
+
+    @Benchmark
+    public void send(TransferredBytes bytes) throws IOException {
+        FileSender sender = loopback.sender();
+        sender.setZeroCopy(io != Io.STREAM);
+        loopback.send(sender);
+        bytes.bytes += fileSize;
+    }
+}
@@ -0,0 +1,307 @@
+package com.example.filetransfer;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * The BatchTransfer class sends a whole directory tree over a single connection.
+ * <p>
+ * After the metadata, the connection carries a stream of entries, each a header with the type, the relative path,
+ * the size and the attributes of a file or directory, followed by the content of files. The stream ends with an
+ * END entry. The sender writes entries back to back without waiting for the receiver, so there is no round trip
+ * per file, and small files are coalesced in the same buffer. The receiver recreates the tree under its save location
+ * and confirms once the last entry has been written.
+ * <p>
+ * Trees with many small files are bound by the cost of opening, reading and writing each file rather than by the
+ * connection, so both sides work on several files at once. The sender reads ahead on a pool of workers, and writes the
+ * entries in the order of the listing as their content becomes available. The receiver reads the entries in order,
+ * creating directories as they arrive, and hands small files to a pool of workers that write them while it reads on.
+ * Large files are streamed on the connection's thread on both sides, without being held in memory.
+ * <p>
+ * Only regular files and directories are sent, symbolic links and other special files are skipped.
+ */
+public final class BatchTransfer {
+    private static final byte END = 0;
+    private static final byte FILE = 1;
+    private static final byte DIRECTORY = 2;
+    private static final int FLAG_EXECUTABLE = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Files up to this size are read and written by the workers as a whole, larger ones are streamed.
+    private static final int SMALL_FILE_SIZE = 256 * 1024;
+    private static final int WORKERS = 8;
+    // Entries read ahead by the sender, and small files waiting to be written by the receiver.
+    private static final int READ_AHEAD = 128;
+    private static final int PENDING_WRITES = 128;
+
+    private BatchTransfer() {
+    }
+
+    /**
+     * Returns the total size of all regular files in a directory tree.
+     */
+    public static long totalSize(Path directory) throws IOException {
+        long[] size = {0};
+        Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile()) {
+                    size[0] += attributes.size();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return size[0];
+    }
+
+    /**
+     * Writes every entry of a directory tree to the connection, followed by the END entry.
+     * The tree is listed as it is sent, and the attributes and content of the next entries are read ahead by workers.
+     *
+     * @param directory the root of the tree
+     * @param output    the socket output, flushed after the last entry
+     * @param progress  called with the number of file bytes written
+     */
+    public static void writeEntries(Path directory, DataOutputStream output, TransferProgress progress) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        ExecutorService readers = Executors.newFixedThreadPool(WORKERS, workerFactory("batch-reader"));
+        try (Stream<Path> paths = Files.walk(directory)) {
+            Iterator<Path> it = paths.iterator();
+            Deque<Future<Entry>> readAhead = new ArrayDeque<>();
+            while (true) {
+                while (readAhead.size() < READ_AHEAD && it.hasNext()) {
+                    Path path = it.next();
+                    if (!path.equals(directory)) {
+                        readAhead.add(readers.submit(() -> Entry.read(directory, path)));
+                    }
+                }
+                if (readAhead.isEmpty()) {
+                    break;
+                }
+                Entry entry = await(readAhead.poll());
+                if (entry == null) {
+                    continue;
+                }
+                output.writeByte(entry.type);
+                output.writeUTF(entry.path);
+                output.writeLong(entry.size);
+                output.writeLong(entry.lastModified);
+                output.writeInt(entry.flags);
+                if (entry.content != null) {
+                    output.write(entry.content);
+                    progress.add(entry.size);
+                } else if (entry.type == FILE) {
+                    writeContent(directory.resolve(entry.path), entry.size, output, buffer, progress);
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            readers.shutdownNow();
+        }
+        output.writeByte(END);
+        output.flush();
+    }
+
+    private static Entry await(Future<Entry> entry) throws IOException {
+        try {
+            return entry.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Reading an entry of the batch failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sending a batch");
+        }
+    }
+
+    // Copies exactly the announced number of bytes, the file must not change while it is being sent.
+    private static void writeContent(Path file, long size, OutputStream output, byte[] buffer, TransferProgress progress) throws IOException {
+        try (InputStream input = Files.newInputStream(file)) {
+            long remaining = size;
+            while (remaining > 0) {
+                int bytesRead = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead == -1) {
+                    throw new EOFException("File " + file + " shrank while it was being sent");
+                }
+                output.write(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+                progress.add(bytesRead);
+            }
+        }
+    }
+
+    /**
+     * Reads entries from the connection until the END entry and recreates the tree under the given directory.
+     * Entries with paths that would end up outside of the directory are rejected.
+     *
+     * @param input     the socket input
+     * @param directory the directory the tree is recreated in, created if needed
+     * @param progress  called with the number of file bytes written
+     */
+    public static void readEntries(DataInputStream input, Path directory, TransferProgress progress) throws IOException {
+        Path root = directory.toAbsolutePath().normalize();
+        Files.createDirectories(root);
+        ExecutorService writers = Executors.newFixedThreadPool(WORKERS, workerFactory("batch-writer"));
+        Semaphore pending = new Semaphore(PENDING_WRITES);
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        try {
+            readEntries(input, root, progress, writers, pending, failure);
+            // All small files have been written once every permit is back.
+            pending.acquire(PENDING_WRITES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while receiving a batch");
+        } finally {
+            writers.shutdownNow();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private static void readEntries(DataInputStream input, Path root, TransferProgress progress, ExecutorService writers,
+                                    Semaphore pending, AtomicReference<IOException> failure) throws IOException, InterruptedException {
+        // Directories that exist, so a directory with many files is only created once.
+        Set<Path> directories = new HashSet<>();
+        directories.add(root);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        byte type;
+        while ((type = input.readByte()) != END) {
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+            String relativePath = input.readUTF();
+            long size = input.readLong();
+            long lastModified = input.readLong();
+            int flags = input.readInt();
+
+            Path path = root.resolve(relativePath).normalize();
+            if (!path.startsWith(root) || path.equals(root)) {
+                throw new IOException("Entry " + relativePath + " is outside of " + root);
+            }
+            if (type == DIRECTORY) {
+                if (directories.add(path)) {
+                    Files.createDirectories(path);
+                }
+                continue;
+            }
+            if (type != FILE || size < 0) {
+                throw new IOException("Invalid entry " + relativePath);
+            }
+
+            if (directories.add(path.getParent())) {
+                Files.createDirectories(path.getParent());
+            }
+            if (size > SMALL_FILE_SIZE) {
+                readContent(input, path, size, buffer, progress);
+                setAttributes(path, lastModified, flags);
+                continue;
+            }
+            // Files are written in any order, they do not depend on each other once their directory exists.
+            byte[] content = new byte[(int) size];
+            input.readFully(content);
+            progress.add(size);
+            pending.acquire();
+            writers.execute(() -> {
+                try {
+                    Files.write(path, content);
+                    setAttributes(path, lastModified, flags);
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    pending.release();
+                }
+            });
+        }
+    }
+
+    private static void setAttributes(Path file, long lastModified, int flags) throws IOException {
+        Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified));
+        if ((flags & FLAG_EXECUTABLE) != 0) {
+            file.toFile().setExecutable(true);
+        }
+    }
+
+    private static void readContent(InputStream input, Path file, long size, byte[] buffer, TransferProgress progress) throws IOException {
+        try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE)) {
+            long remaining = size;
+            while (remaining > 0) {
+                int bytesRead = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead == -1) {
+                    throw new EOFException("Connection closed while receiving " + file);
+                }
+                output.write(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+                progress.add(bytesRead);
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final byte type;
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        private final int flags;
+        // The whole content of a small file, read ahead, or null.
+        private byte[] content;
+
+        private Entry(byte type, String path, long size, long lastModified, int flags) {
+            this.type = type;
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.flags = flags;
+        }
+
+        /**
+         * Reads the attributes of a path in the tree, and the content if it is a small file.
+         *
+         * @return the entry, or null if the path is neither a directory nor a regular file
+         */
+        private static Entry read(Path directory, Path path) throws IOException {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            String relativePath = directory.relativize(path).toString().replace(File.separatorChar, '/');
+            if (attributes.isDirectory()) {
+                return new Entry(DIRECTORY, relativePath, 0, attributes.lastModifiedTime().toMillis(), 0);
+            }
+            if (!attributes.isRegularFile()) {
+                return null;
+            }
+            int flags = Files.isExecutable(path) ? FLAG_EXECUTABLE : 0;
+            if (attributes.size() > SMALL_FILE_SIZE) {
+                return new Entry(FILE, relativePath, attributes.size(), attributes.lastModifiedTime().toMillis(), flags);
+            }
+            // The size sent is that of the content read, in case the file changed since its attributes were read.
+            byte[] content = Files.readAllBytes(path);
+            Entry entry = new Entry(FILE, relativePath, content.length, attributes.lastModifiedTime().toMillis(), flags);
+            entry.content = content;
+            return entry;
+        }
+    }
+
+    private static ThreadFactory workerFactory(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,221 @@
+package com.example.filetransfer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * The ChecksummedTransfer class verifies content while it streams, so a file never has to be read again
+ * to check that it arrived intact.
+ * <p>
+ * The byte range of a stripe is sent in chunks of CHUNK_SIZE, each followed by its CRC32C. The receiver checks
+ * every chunk before writing it and collects the chunks that fail. After the last chunk the sender sends a strong
+ * hash of the whole range, the SHA-256 of the SHA-256 digests of all chunks in order, which both sides compute
+ * inline. The receiver then asks for the failed chunks again, and only those are resent, for up to MAX_ROUNDS rounds.
+ * Once every chunk has passed, the receiver compares the strong hash and reports the result.
+ * <p>
+ * A sender and receiver exchange, after the chunks and the strong hash:
+ * <pre>
+ * receiver: int number of failed chunks, followed by their indices, or -1 to give up
+ * sender:   the failed chunks again, each followed by its CRC32C
+ * ...       until the receiver answers 0, followed by a boolean that tells whether the strong hash matched
+ * </pre>
+ */
+public final class ChecksummedTransfer {
+    static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int MAX_ROUNDS = 3;
+    private static final int DIGEST_SIZE = 32;
+    // The digests of all chunks are kept in one array, whose size must fit in an int.
+    private static final long MAX_CHUNK_COUNT = Integer.MAX_VALUE / DIGEST_SIZE;
+    private static final int INITIAL_CHUNK_CAPACITY = 1024;
+
+    private ChecksummedTransfer() {
+    }
+
+    /**
+     * Sends a byte range of a file in checksummed chunks and resends the chunks the receiver asks for.
+     *
+     * @param file     the file to read from, kept open until the receiver has verified every chunk
+     * @param offset   the start of the range
+     * @param length   the number of bytes to send
+     * @param output   the socket output
+     * @param input    the socket input, for the answers of the receiver
+     * @param progress called with the size of every chunk that is sent for the first time
+     * @throws IOException if the receiver gives up or the strong hash does not match
+     */
+    static void send(FileChannel file, long offset, long length, DataOutputStream output, DataInputStream input,
+                     TransferProgress progress) throws IOException {
+        int count = chunkCount(length);
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        CRC32C crc = new CRC32C();
+        MessageDigest chunkDigest = sha256();
+        MessageDigest rangeDigest = sha256();
+
+        for (int i = 0; i < count; i++) {
+            readChunk(file, offset, length, i, buffer);
+            chunkDigest.update(buffer.array(), 0, buffer.limit());
+            rangeDigest.update(chunkDigest.digest());
+            writeChunk(output, buffer, crc);
+            progress.add(buffer.limit());
+        }
+        output.write(rangeDigest.digest());
+        output.flush();
+
+        int failed;
+        while ((failed = input.readInt()) > 0) {
+            int[] indices = new int[failed];
+            for (int i = 0; i < failed; i++) {
+                indices[i] = input.readInt();
+                if (indices[i] < 0 || indices[i] >= count) {
+                    throw new IOException("The receiver asked for chunk " + indices[i] + " of " + count);
+                }
+            }
+            for (int index : indices) {
+                readChunk(file, offset, length, index, buffer);
+                writeChunk(output, buffer, crc);
+            }
+            output.flush();
+        }
+        if (failed < 0) {
+            throw new IOException("Chunks kept failing verification after " + MAX_ROUNDS + " retransmits");
+        }
+        if (!input.readBoolean()) {
+            throw new IOException("The content does not match the hash of the whole file");
+        }
+    }
+
+    private static void readChunk(FileChannel file, long offset, long length, int index, ByteBuffer buffer) throws IOException {
+        long position = offset + (long) index * CHUNK_SIZE;
+        buffer.clear().limit(chunkLength(length, index));
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) == -1) {
+                throw new EOFException("File ended at " + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void writeChunk(DataOutputStream output, ByteBuffer buffer, CRC32C crc) throws IOException {
+        crc.reset();
+        crc.update(buffer.array(), 0, buffer.limit());
+        output.write(buffer.array(), 0, buffer.limit());
+        output.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Receives a byte range in checksummed chunks, writes every chunk that passes at its offset in the file,
+     * and asks for the failed ones again.
+     *
+     * @param input    the socket input
+     * @param output   the socket output, for the answers to the sender
+     * @param file     the file to write to
+     * @param offset   the start of the range
+     * @param length   the number of bytes to receive
+     * @param progress called with the size of every chunk that has been verified and written
+     * @throws IOException if chunks keep failing or the strong hash does not match
+     */
+    static void receive(DataInputStream input, DataOutputStream output, FileChannel file, long offset, long length,
+                        TransferProgress progress) throws IOException {
+        if ((length + CHUNK_SIZE - 1) / CHUNK_SIZE > MAX_CHUNK_COUNT) {
+            throw new IOException("Cannot verify " + length + " bytes in chunks of " + CHUNK_SIZE + " bytes");
+        }
+        int count = chunkCount(length);
+        // The digests grow as the chunks arrive, so a length that is not followed by its content allocates nothing.
+        byte[] digests = new byte[Math.min(count, INITIAL_CHUNK_CAPACITY) * DIGEST_SIZE];
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        CRC32C crc = new CRC32C();
+        MessageDigest chunkDigest = sha256();
+
+        List<Integer> failed = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (i * DIGEST_SIZE == digests.length) {
+                digests = Arrays.copyOf(digests, (int) Math.min((long) count * DIGEST_SIZE, 2L * digests.length));
+            }
+            if (!receiveChunk(input, file, offset, length, i, buffer, crc, chunkDigest, digests, progress)) {
+                failed.add(i);
+            }
+        }
+        byte[] expected = new byte[DIGEST_SIZE];
+        input.readFully(expected);
+
+        for (int round = 0; !failed.isEmpty(); round++) {
+            if (round == MAX_ROUNDS) {
+                output.writeInt(-1);
+                output.flush();
+                throw new IOException(failed.size() + " chunks kept failing verification after " + MAX_ROUNDS + " retransmits");
+            }
+            output.writeInt(failed.size());
+            for (int index : failed) {
+                output.writeInt(index);
+            }
+            output.flush();
+
+            List<Integer> stillFailed = new ArrayList<>();
+            for (int index : failed) {
+                if (!receiveChunk(input, file, offset, length, index, buffer, crc, chunkDigest, digests, progress)) {
+                    stillFailed.add(index);
+                }
+            }
+            failed = stillFailed;
+        }
+
+        boolean matches = Arrays.equals(sha256().digest(digests), expected);
+        output.writeInt(0);
+        output.writeBoolean(matches);
+        output.flush();
+        if (!matches) {
+            throw new IOException("The content does not match the hash of the whole file");
+        }
+    }
+
+    // Reads a chunk and its CRC32C, and writes it to the file if it is intact.
+    private static boolean receiveChunk(DataInputStream input, FileChannel file, long offset, long length, int index,
+                                        ByteBuffer buffer, CRC32C crc, MessageDigest chunkDigest, byte[] digests,
+                                        TransferProgress progress) throws IOException {
+        int chunkLength = chunkLength(length, index);
+        input.readFully(buffer.array(), 0, chunkLength);
+        int expected = input.readInt();
+        crc.reset();
+        crc.update(buffer.array(), 0, chunkLength);
+        if ((int) crc.getValue() != expected) {
+            return false;
+        }
+
+        long position = offset + (long) index * CHUNK_SIZE;
+        buffer.clear().limit(chunkLength);
+        while (buffer.hasRemaining()) {
+            file.write(buffer, position + buffer.position());
+        }
+        chunkDigest.update(buffer.array(), 0, chunkLength);
+        try {
+            chunkDigest.digest(digests, index * DIGEST_SIZE, DIGEST_SIZE);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+        progress.add(chunkLength);
+        return true;
+    }
+
+    private static int chunkCount(long length) {
+        return (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    private static int chunkLength(long length, int index) {
+        return (int) Math.min(CHUNK_SIZE, length - (long) index * CHUNK_SIZE);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required by every Java platform", e);
+        }
+    }
+}
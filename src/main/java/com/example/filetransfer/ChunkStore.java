@@ -0,0 +1,256 @@
+package com.example.filetransfer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * The ChunkStore class deduplicates file content across transfers.
+ * <p>
+ * Files are split into fixed-size chunks identified by their SHA-256 hash. The receiver keeps an index in the
+ * database of where every chunk it has received can be found on disk, so the chunks are stored only once, inside
+ * the received files themselves. Before sending, the sender offers the hashes of all chunks of its file, the receiver
+ * answers with the chunks it does not have, and only those are sent. The receiver assembles the file from the chunks
+ * it already has and the ones it received.
+ * <p>
+ * Index entries are verified against their hash before they are used, so entries that point at files which have
+ * been changed or deleted since are treated as missing.
+ */
+public final class ChunkStore {
+    public static final int CHUNK_SIZE = 1024 * 1024;
+    /**
+     * The most chunks a deduplicated file can have, which limits it to 4 TB.
+     */
+    static final int MAX_CHUNK_COUNT = 4 * 1024 * 1024;
+    private static final int HASH_SIZE = 32;
+    // Hashes are read in batches, so a count that is not followed by its hashes does not allocate them up front.
+    private static final int HASH_BATCH_SIZE = 64 * 1024;
+
+    private final DatabaseHandler db;
+
+    public ChunkStore(DatabaseHandler db) {
+        this.db = db;
+    }
+
+    /**
+     * Hashes every chunk of a file.
+     *
+     * @return the hex encoded SHA-256 hash of every chunk, in file order
+     */
+    public static List<String> hashChunks(Path file) throws IOException {
+        List<String> hashes = new ArrayList<>();
+        MessageDigest sha256 = sha256();
+        byte[] chunk = new byte[CHUNK_SIZE];
+        try (InputStream input = Files.newInputStream(file)) {
+            int length;
+            while ((length = input.readNBytes(chunk, 0, CHUNK_SIZE)) > 0) {
+                sha256.update(chunk, 0, length);
+                hashes.add(HexFormat.of().formatHex(sha256.digest()));
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Writes the chunk hashes offered by the sender.
+     *
+     * @throws IOException if the file has more than MAX_CHUNK_COUNT chunks
+     */
+    public static void writeHashes(DataOutputStream output, List<String> hashes) throws IOException {
+        if (hashes.size() > MAX_CHUNK_COUNT) {
+            throw new IOException("Files of more than " + MAX_CHUNK_COUNT + " chunks cannot be deduplicated");
+        }
+        output.writeInt(hashes.size());
+        for (String hash : hashes) {
+            output.write(HexFormat.of().parseHex(hash));
+        }
+    }
+
+    /**
+     * Reads the chunk hashes offered by the sender, one per chunk of the file, at most MAX_CHUNK_COUNT.
+     */
+    public static List<String> readHashes(DataInputStream input, long fileSize) throws IOException {
+        long expected = fileSize / CHUNK_SIZE + (fileSize % CHUNK_SIZE != 0 ? 1 : 0);
+        int count = input.readInt();
+        if (count != expected || count > MAX_CHUNK_COUNT) {
+            throw new IOException("Expected " + expected + " chunk hashes, at most " + MAX_CHUNK_COUNT + ", got " + count);
+        }
+        // The input may be unbuffered, so the hashes are read a batch at a time.
+        byte[] raw = new byte[(int) Math.min((long) count * HASH_SIZE, (long) HASH_BATCH_SIZE * HASH_SIZE)];
+        List<String> hashes = new ArrayList<>(Math.min(count, HASH_BATCH_SIZE));
+        while (hashes.size() < count) {
+            int batch = Math.min(count - hashes.size(), HASH_BATCH_SIZE);
+            input.readFully(raw, 0, batch * HASH_SIZE);
+            for (int i = 0; i < batch; i++) {
+                hashes.add(HexFormat.of().formatHex(raw, i * HASH_SIZE, (i + 1) * HASH_SIZE));
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Writes which of the offered chunks the receiver is missing, one bit per chunk.
+     */
+    public static void writeMissing(DataOutputStream output, BitSet missing, int count) throws IOException {
+        byte[] bits = Arrays.copyOf(missing.toByteArray(), (count + 7) / 8);
+        output.write(bits);
+    }
+
+    /**
+     * Reads which of the offered chunks the receiver is missing.
+     */
+    public static BitSet readMissing(DataInputStream input, int count) throws IOException {
+        byte[] bits = new byte[(count + 7) / 8];
+        input.readFully(bits);
+        return BitSet.valueOf(bits);
+    }
+
+    /**
+     * Finds the chunks the receiver already has. Every chunk is either found in the index and verified,
+     * a repeat of an earlier chunk of the same file, or missing.
+     *
+     * @param hashes   the hashes offered by the sender
+     * @param fileSize the size of the offered file
+     * @return the plan for assembling the file
+     */
+    public Assembly plan(List<String> hashes, long fileSize) throws IOException {
+        Assembly assembly = new Assembly(hashes.size());
+        Map<String, Integer> firstIndex = new HashMap<>();
+        MessageDigest sha256 = sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+
+        for (int i = 0; i < hashes.size(); i++) {
+            String hash = hashes.get(i);
+            int length = chunkLength(i, fileSize);
+            Integer earlier = firstIndex.putIfAbsent(hash, i);
+            if (earlier != null) {
+                assembly.repeats[i] = earlier;
+                continue;
+            }
+            Location location = db.findChunkLocation(hash);
+            if (location != null && location.length == length && verify(location, hash, sha256, buffer)) {
+                assembly.locations[i] = location;
+            } else {
+                assembly.missing.set(i);
+            }
+        }
+        return assembly;
+    }
+
+    // Reads a chunk from where the index says it is and checks that it still has the expected hash.
+    private boolean verify(Location location, String hash, MessageDigest sha256, ByteBuffer buffer) {
+        try (FileChannel channel = FileChannel.open(Path.of(location.path), StandardOpenOption.READ)) {
+            buffer.clear().limit(location.length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, location.offset + buffer.position()) == -1) {
+                    return false;
+                }
+            }
+            sha256.update(buffer.flip());
+            return HexFormat.of().formatHex(sha256.digest()).equals(hash);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Copies a chunk the receiver already has into the file being assembled.
+     *
+     * @param assembly the plan for the file
+     * @param index    the index of the chunk
+     * @param target   the file being assembled, which already contains every earlier chunk
+     * @param sources  open files chunks are copied from, kept open between calls and closed by the caller
+     */
+    public void copyChunk(Assembly assembly, int index, FileChannel target, long fileSize, Map<String, FileChannel> sources) throws IOException {
+        int length = chunkLength(index, fileSize);
+        long position = (long) index * CHUNK_SIZE;
+        FileChannel source;
+        long sourceOffset;
+        if (assembly.repeats[index] >= 0) {
+            source = target;
+            sourceOffset = (long) assembly.repeats[index] * CHUNK_SIZE;
+        } else {
+            Location location = assembly.locations[index];
+            source = sources.get(location.path);
+            if (source == null) {
+                source = FileChannel.open(Path.of(location.path), StandardOpenOption.READ);
+                sources.put(location.path, source);
+            }
+            sourceOffset = location.offset;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer, sourceOffset + buffer.position()) == -1) {
+                throw new EOFException("Chunk " + index + " could not be read from its local copy");
+            }
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            target.write(buffer, position + buffer.position());
+        }
+    }
+
+    /**
+     * Adds every chunk of a received file to the index.
+     */
+    public void index(Path file, List<String> hashes, long fileSize) {
+        db.saveChunkLocations(file.toAbsolutePath().toString(), hashes, CHUNK_SIZE, fileSize);
+    }
+
+    static int chunkLength(int index, long fileSize) {
+        return (int) Math.min(CHUNK_SIZE, fileSize - (long) index * CHUNK_SIZE);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required by every Java platform", e);
+        }
+    }
+
+    /**
+     * Where a chunk can be found on the receiver's disk.
+     */
+    public static final class Location {
+        private final String path;
+        private final long offset;
+        private final int length;
+
+        public Location(String path, long offset, int length) {
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * The plan for assembling a file: for every chunk, where it is copied from or whether it has to be received.
+     */
+    public static final class Assembly {
+        private final Location[] locations;
+        private final int[] repeats;
+        private final BitSet missing = new BitSet();
+
+        private Assembly(int count) {
+            locations = new Location[count];
+            repeats = new int[count];
+            Arrays.fill(repeats, -1);
+        }
+
+        public boolean isMissing(int index) {
+            return missing.get(index);
+        }
+
+        public BitSet getMissing() {
+            return missing;
+        }
+    }
+}
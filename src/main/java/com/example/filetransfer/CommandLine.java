@@ -0,0 +1,381 @@
+package com.example.filetransfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The CommandLine class sends and receives files without a user interface, for scripts, scheduled jobs and servers
+ * without a display. It never loads JavaFX, and the database is only opened once a transfer is logged or needs it,
+ * so a transfer starts as soon as the JVM is up.
+ * <p>
+ * Commands:
+ * <ul>
+ *     <li>send FILE HOST PORT sends a file or a directory and exits.</li>
+ *     <li>receive DIRECTORY PORT receives one file and exits.</li>
+ *     <li>serve DIRECTORY PORT keeps receiving files until the process is stopped.</li>
+ *     <li>stats prints the statistics of the transfer history, read from the rollups of DatabaseHandler.</li>
+ * </ul>
+ * Metrics are printed like in the application if filetransfer.metrics.interval is set, see TransferMetrics.
+ * The exit code is 0 on success, 1 if the transfer failed and 2 if the arguments are invalid.
+ */
+public final class CommandLine {
+    static final int EXIT_OK = 0;
+    static final int EXIT_FAILED = 1;
+    static final int EXIT_USAGE = 2;
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage:",
+            "  send FILE HOST PORT [--stripes N] [--resumable] [--delta] [--dedup] [--compress] [--checksum]",
+            "                      [--manifest] [--rate MB/S] [--buffer BYTES] [--no-zero-copy] [--engine THREADS]",
+            "                      [--inline BYTES] [--progress] [--no-log]",
+            "      --checksum cannot be combined with --resumable, --delta, --dedup or a directory",
+            "  receive DIRECTORY PORT [options]    receive one file and exit",
+            "  serve DIRECTORY PORT [options]      receive files until stopped",
+            "      options: [--mapped] [--sync none|end|interval] [--rate MB/S] [--buffer BYTES] [--no-zero-copy]",
+            "               [--max-connections N] [--engine THREADS] [--progress] [--no-log]",
+            "  stats [--days N] [--peer HOST] [--daily]   statistics of the transfers of the last N days (default 7)");
+
+    private static final Set<String> VALUE_OPTIONS = Set.of("--stripes", "--rate", "--buffer", "--sync", "--max-connections", "--engine",
+            "--days", "--peer", "--inline");
+    private static final Set<String> SEND_OPTIONS = Set.of("--stripes", "--resumable", "--delta", "--dedup", "--compress",
+            "--checksum", "--manifest", "--rate", "--buffer", "--no-zero-copy", "--engine", "--inline", "--progress", "--no-log");
+    private static final Set<String> RECEIVE_OPTIONS = Set.of("--mapped", "--sync", "--rate", "--buffer", "--no-zero-copy",
+            "--max-connections", "--engine", "--progress", "--no-log");
+    private static final Set<String> STATS_OPTIONS = Set.of("--days", "--peer", "--daily");
+    private static final int DEFAULT_STATS_DAYS = 7;
+
+    // Opened by the first transfer that is logged.
+    private static DatabaseHandler db;
+
+    private CommandLine() {
+    }
+
+    /**
+     * Returns true if the argument is a command of the command line, rather than an argument for the application.
+     */
+    static boolean isCommand(String argument) {
+        return switch (argument) {
+            case "send", "receive", "serve", "stats", "help", "--help" -> true;
+            default -> false;
+        };
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Runs a command and returns the exit code.
+     */
+    static int run(String[] args) {
+        if (args.length == 0 || args[0].equals("help") || args[0].equals("--help")) {
+            System.out.println(USAGE);
+            return args.length == 0 ? EXIT_USAGE : EXIT_OK;
+        }
+        TransferMetrics.printSnapshotsIfRequested();
+        try {
+            Arguments arguments = Arguments.parse(args);
+            switch (args[0]) {
+                case "send":
+                    return send(arguments);
+                case "receive":
+                    return receive(arguments, false);
+                case "serve":
+                    return receive(arguments, true);
+                case "stats":
+                    return stats(arguments);
+                default:
+                    throw new IllegalArgumentException("Unknown command " + args[0]);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return EXIT_USAGE;
+        } finally {
+            closeDatabase();
+        }
+    }
+
+    private static int send(Arguments arguments) {
+        arguments.check(3, SEND_OPTIONS);
+        String filename = arguments.positional(0);
+        String host = arguments.positional(1);
+        int port = arguments.port(2);
+        if (!new File(filename).exists()) {
+            System.err.println("File " + filename + " does not exist");
+            return EXIT_FAILED;
+        }
+
+        FileSender sender = new FileSender(filename, host, port);
+        sender.setStripeCount(arguments.intValue("--stripes", 1));
+        sender.setResumable(arguments.has("--resumable"));
+        sender.setDelta(arguments.has("--delta"));
+        sender.setDedup(arguments.has("--dedup"));
+        sender.setCompressed(arguments.has("--compress"));
+        sender.setChecksummed(arguments.has("--checksum"));
+        sender.setManifest(arguments.has("--manifest"));
+        sender.setRateLimit(arguments.rate());
+        sender.setBufferSize(arguments.intValue("--buffer", FileSender.DEFAULT_BUFFER_SIZE));
+        sender.setZeroCopy(!arguments.has("--no-zero-copy"));
+        sender.setInlineThreshold(arguments.intValue("--inline", FileSender.DEFAULT_INLINE_THRESHOLD));
+        if (arguments.has("--progress")) {
+            sender.addProgressListener(System.err::println);
+        }
+
+        long start = System.nanoTime();
+        NioTransferEngine engine = null;
+        try {
+            engine = arguments.engine();
+            sender.setEngine(engine);
+            sender.send();
+        } catch (IOException e) {
+            System.err.println("Sending " + filename + " failed: " + e.getMessage());
+            return EXIT_FAILED;
+        } finally {
+            if (engine != null) {
+                engine.close();
+            }
+            // Sessions are only pooled with a session key, and the process is about to exit.
+            FileSender.getSessionPool().closeAll();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf(Locale.ROOT, "Sent %s (%d bytes) to %s:%d in %.3f s%n", filename, sender.getTotalBytes(), host, port, seconds);
+        if (!arguments.has("--no-log")) {
+            database().insertSentFileTransfer(filename, sender.getTotalBytes(), host, String.valueOf(port));
+        }
+        return EXIT_OK;
+    }
+
+    /**
+     * Receives files until the process is stopped, or only the first one.
+     */
+    private static int receive(Arguments arguments, boolean serve) {
+        arguments.check(2, RECEIVE_OPTIONS);
+        String saveLocation = arguments.positional(0);
+        int port = arguments.port(1);
+        if (!new File(saveLocation).isDirectory()) {
+            System.err.println("Directory " + saveLocation + " does not exist");
+            return EXIT_FAILED;
+        }
+        boolean log = !arguments.has("--no-log");
+        CountDownLatch received = new CountDownLatch(1);
+
+        ReceiverServer server = new ReceiverServer(saveLocation, port,
+                arguments.intValue("--max-connections", ReceiverServer.DEFAULT_MAX_CONCURRENT_TRANSFERS), receiver -> {
+            System.out.printf(Locale.ROOT, "Received %s (%d bytes) from %s%n", receiver.getFilename(), receiver.getTotalBytes(), receiver.getRemoteAddress());
+            if (log) {
+                database().insertReceivedFileTransfer(receiver.getFilename(), receiver.getTotalBytes(), receiver.getRemoteAddress(), String.valueOf(port));
+            }
+            if (!serve) {
+                received.countDown();
+            }
+        });
+        server.setZeroCopy(!arguments.has("--no-zero-copy"));
+        server.setBufferSize(arguments.intValue("--buffer", FileReceiver.DEFAULT_BUFFER_SIZE));
+        server.setWriteMode(arguments.has("--mapped") ? FileSink.Mode.MAPPED : FileSink.Mode.POSITIONAL);
+        server.setDurability(arguments.durability(), FileReceiver.DEFAULT_SYNC_INTERVAL);
+        server.setRateLimit(arguments.rate());
+        if (arguments.has("--progress")) {
+            server.setProgressListener(System.err::println);
+        }
+        NioTransferEngine engine = null;
+        try {
+            engine = arguments.engine();
+            server.setEngine(engine);
+            server.start();
+        } catch (IOException e) {
+            System.err.println("Could not listen on port " + port + ": " + e.getMessage());
+            if (engine != null) {
+                engine.close();
+            }
+            return EXIT_FAILED;
+        }
+        // Stopping the process stops accepting, and the database is closed cleanly.
+        Thread shutdown = new Thread(() -> {
+            server.stop();
+            closeDatabase();
+        }, "command-line-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdown);
+        System.out.println((serve ? "Serving " : "Waiting for a file in ") + saveLocation + " on port " + port);
+
+        try {
+            received.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        server.stop();
+        if (engine != null) {
+            engine.close();
+        }
+        Runtime.getRuntime().removeShutdownHook(shutdown);
+        return EXIT_OK;
+    }
+
+    /**
+     * Prints the transfers, bytes and file sizes of the last days, per direction and per peer, or per day with --daily.
+     */
+    private static int stats(Arguments arguments) {
+        arguments.check(0, STATS_OPTIONS);
+        int days = arguments.intValue("--days", DEFAULT_STATS_DAYS);
+        if (days < 1) {
+            throw new IllegalArgumentException("Invalid days " + days);
+        }
+        String peer = arguments.value("--peer");
+        LocalDate to = LocalDate.now();
+        LocalDate from = to.minusDays(days - 1);
+
+        try {
+            DatabaseHandler database = database();
+            System.out.printf(Locale.ROOT, "Transfers from %s to %s%s%n", from, to, peer != null ? " with " + peer : "");
+            for (String direction : List.of("send", "receive")) {
+                long median = database.getSizePercentile(from, to, peer, direction, 0.5);
+                long p95 = database.getSizePercentile(from, to, peer, direction, 0.95);
+                System.out.printf(Locale.ROOT, "  %-8s median size %d bytes, p95 size %d bytes%n", direction, median, p95);
+            }
+            List<TransferStatistics> statistics = arguments.has("--daily") || peer != null
+                    ? database.getDailyStatistics(from, to, peer)
+                    : database.getPeerStatistics(from, to, null);
+            System.out.printf(Locale.ROOT, "%-12s %-30s %-8s %10s %16s %14s%n", "day", "peer", "dir", "transfers", "bytes", "largest");
+            for (TransferStatistics row : statistics) {
+                System.out.printf(Locale.ROOT, "%-12s %-30s %-8s %10d %16d %14d%n", row.getDay() != null ? row.getDay() : "-",
+                        row.getServer(), row.getTransferDirection(), row.getTransfers(), row.getTotalBytes(), row.getMaxSize());
+            }
+        } catch (SQLException e) {
+            System.err.println("Reading the statistics failed: " + e.getMessage());
+            return EXIT_FAILED;
+        }
+        return EXIT_OK;
+    }
+
+    private static synchronized DatabaseHandler database() {
+        if (db == null) {
+            db = DatabaseHandler.getInstance();
+        }
+        return db;
+    }
+
+    private static synchronized void closeDatabase() {
+        if (db != null) {
+            db.closeConnection();
+            db = null;
+        }
+    }
+
+    /**
+     * The arguments of a command: positional arguments, flags and options with a value.
+     */
+    private static final class Arguments {
+        private final List<String> positional = new ArrayList<>();
+        private final Set<String> flags = new HashSet<>();
+        private final Map<String, String> values = new HashMap<>();
+
+        static Arguments parse(String[] args) {
+            Arguments arguments = new Arguments();
+            for (int i = 1; i < args.length; i++) {
+                String arg = args[i];
+                if (!arg.startsWith("--")) {
+                    arguments.positional.add(arg);
+                } else if (VALUE_OPTIONS.contains(arg)) {
+                    if (i + 1 == args.length) {
+                        throw new IllegalArgumentException("Option " + arg + " needs a value");
+                    }
+                    arguments.values.put(arg, args[++i]);
+                } else {
+                    arguments.flags.add(arg);
+                }
+            }
+            return arguments;
+        }
+
+        // Rejects a wrong number of positional arguments and options the command does not know.
+        void check(int positionalCount, Set<String> allowed) {
+            if (positional.size() != positionalCount) {
+                throw new IllegalArgumentException("Expected " + positionalCount + " arguments, got " + positional.size());
+            }
+            for (String option : flags) {
+                if (!allowed.contains(option) || VALUE_OPTIONS.contains(option)) {
+                    throw new IllegalArgumentException("Unknown option " + option);
+                }
+            }
+            for (String option : values.keySet()) {
+                if (!allowed.contains(option)) {
+                    throw new IllegalArgumentException("Unknown option " + option);
+                }
+            }
+        }
+
+        String positional(int index) {
+            return positional.get(index);
+        }
+
+        int port(int index) {
+            int port = parseInt("port", positional(index));
+            if (port < 1 || port > 65535) {
+                throw new IllegalArgumentException("Invalid port " + port);
+            }
+            return port;
+        }
+
+        boolean has(String option) {
+            return flags.contains(option) || values.containsKey(option);
+        }
+
+        String value(String option) {
+            return values.get(option);
+        }
+
+        int intValue(String option, int defaultValue) {
+            String value = values.get(option);
+            return value != null ? parseInt(option, value) : defaultValue;
+        }
+
+        // The rate limit in MB/s, the same unit as in the user interface.
+        long rate() {
+            String value = values.get("--rate");
+            if (value == null) {
+                return TokenBucket.UNLIMITED;
+            }
+            try {
+                double megabytesPerSecond = Double.parseDouble(value);
+                if (megabytesPerSecond < 0) {
+                    throw new IllegalArgumentException("Invalid rate " + value);
+                }
+                return (long) (megabytesPerSecond * 1024 * 1024);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid rate " + value);
+            }
+        }
+
+        // The NIO engine with the requested number of event loops, or null to use blocking threads.
+        NioTransferEngine engine() throws IOException {
+            return has("--engine") ? new NioTransferEngine(intValue("--engine", 1)) : null;
+        }
+
+        FileSink.Durability durability() {
+            String value = values.getOrDefault("--sync", "none");
+            try {
+                return FileSink.Durability.valueOf(value.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid sync mode " + value);
+            }
+        }
+
+        private static int parseInt(String name, String value) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid " + name + " " + value);
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.example.filetransfer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.*;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The CompressedFraming class sends a byte range of a file as a sequence of frames, each of which is compressed
+ * only if that pays off.
+ * <p>
+ * Every frame carries up to FRAME_SIZE bytes of the file and starts with a flag that tells whether its payload is
+ * compressed. A frame is only sent compressed if compression saves at least an eighth of its size, so incompressible
+ * data such as media files is sent as is. After a run of incompressible frames only every few frames is tried,
+ * which keeps the CPU cost low on files that do not compress at all, while still noticing compressible regions.
+ * <p>
+ * Compression and decompression run on a shared worker pool, while the calling thread keeps reading and writing
+ * the socket, so CPU work overlaps with network I/O. Frames are sent in file order.
+ * <p>
+ * The codec is negotiated in the metadata: the sender asks for a codec, and the receiver answers with the codec
+ * it accepts, or with NONE if it does not support it, in which case the content is sent unframed.
+ * <p>
+ * Compressed payloads are checked by the zlib format, raw payloads are not. If the transfer is also checksummed and
+ * both sides support it, see Handshake.FRAME_CHECKSUMS, every frame ends with the CRC32C of its uncompressed content,
+ * which the receiver verifies before it writes the frame.
+ */
+public final class CompressedFraming {
+    public static final String DEFLATE = "deflate";
+    public static final String NONE = "none";
+
+    static final int FRAME_SIZE = 256 * 1024;
+    private static final byte RAW = 0;
+    private static final byte COMPRESSED = 1;
+    // After this many incompressible frames in a row, compression is only tried on every PROBE_INTERVAL-th frame.
+    private static final int BYPASS_AFTER = 4;
+    private static final int PROBE_INTERVAL = 16;
+
+    private static final int WORKER_COUNT = Runtime.getRuntime().availableProcessors();
+    // Frames in flight per transfer, enough to keep every worker busy without buffering the whole file.
+    private static final int WINDOW = 2 * WORKER_COUNT;
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(WORKER_COUNT, runnable -> {
+        Thread thread = new Thread(runnable, "compression-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    private CompressedFraming() {
+    }
+
+    /**
+     * Returns the codec the receiver accepts when the sender asks for the given one.
+     */
+    public static String negotiate(String requested) {
+        return DEFLATE.equals(requested) ? DEFLATE : NONE;
+    }
+
+    /**
+     * Sends a byte range of a file as frames.
+     *
+     * @param file        the file to read from
+     * @param offset      the start of the range
+     * @param length      the number of bytes to send
+     * @param frameSize   the largest frame the receiver accepts, see Handshake
+     * @param checksummed whether every frame ends with the CRC32C of its content
+     * @param output      the socket output, flushed once every frame has been written
+     * @param progress    called with the uncompressed size of every frame that has been written
+     */
+    static void writeFrames(FileChannel file, long offset, long length, int frameSize, boolean checksummed, OutputStream output,
+                            TransferProgress progress) throws IOException {
+        DataOutputStream frameOutput = new DataOutputStream(new BufferedOutputStream(output, FRAME_SIZE));
+        Deque<Future<Frame>> inFlight = new ArrayDeque<>();
+        int incompressibleRun = 0;
+        long frameIndex = 0;
+        try {
+            for (long position = offset; position < offset + length; position += frameSize, frameIndex++) {
+                byte[] data = new byte[(int) Math.min(frameSize, offset + length - position)];
+                readFully(file, data, position);
+
+                boolean tryCompression = incompressibleRun < BYPASS_AFTER || frameIndex % PROBE_INTERVAL == 0;
+                inFlight.add(tryCompression || checksummed ? WORKERS.submit(() -> compress(data, tryCompression, checksummed))
+                        : CompletableFuture.completedFuture(new Frame(RAW, data, data.length, data.length)));
+
+                if (inFlight.size() >= WINDOW) {
+                    Frame frame = writeFrame(frameOutput, inFlight.poll(), progress);
+                    incompressibleRun = frame.flag == COMPRESSED ? 0 : incompressibleRun + 1;
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                writeFrame(frameOutput, inFlight.poll(), progress);
+            }
+            frameOutput.flush();
+        } finally {
+            for (Future<Frame> frame : inFlight) {
+                frame.cancel(false);
+            }
+        }
+    }
+
+    // Waits for the next frame in file order and writes it.
+    private static Frame writeFrame(DataOutputStream frameOutput, Future<Frame> result, TransferProgress progress) throws IOException {
+        Frame frame = await(result);
+        frameOutput.writeByte(frame.flag);
+        frameOutput.writeInt(frame.rawLength);
+        if (frame.flag == COMPRESSED) {
+            frameOutput.writeInt(frame.length);
+        }
+        frameOutput.write(frame.payload, 0, frame.length);
+        if (frame.checksum != null) {
+            frameOutput.writeInt(frame.checksum);
+        }
+        progress.add(frame.rawLength);
+        return frame;
+    }
+
+    // Compresses a frame if asked to and if that pays off, and computes the checksum of its content.
+    private static Frame compress(byte[] data, boolean tryCompression, boolean checksummed) {
+        Frame frame = tryCompression ? compress(data) : new Frame(RAW, data, data.length, data.length);
+        if (checksummed) {
+            frame.checksum = checksum(data);
+        }
+        return frame;
+    }
+
+    private static Frame compress(byte[] data) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        // Compressed output larger than the threshold is useless, so the buffer does not need to hold more.
+        int threshold = data.length - data.length / 8;
+        byte[] compressed = new byte[threshold];
+        int compressedLength = deflater.deflate(compressed);
+        if (!deflater.finished()) {
+            return new Frame(RAW, data, data.length, data.length);
+        }
+        return new Frame(COMPRESSED, compressed, compressedLength, data.length);
+    }
+
+    /**
+     * Receives a byte range of a file sent as frames and writes it at its offset in the file.
+     *
+     * @param input       the socket input
+     * @param file        the file to write to
+     * @param offset      the start of the range
+     * @param length      the number of bytes to receive
+     * @param checksummed whether every frame ends with the CRC32C of its content
+     * @param progress    called in file order with the uncompressed size of every frame that has been written
+     */
+    static void readFrames(InputStream input, FileChannel file, long offset, long length, boolean checksummed,
+                           TransferProgress progress) throws IOException {
+        DataInputStream frameInput = new DataInputStream(new BufferedInputStream(input, FRAME_SIZE));
+        Deque<Future<Integer>> inFlight = new ArrayDeque<>();
+        try {
+            long position = offset;
+            while (position < offset + length) {
+                byte flag = frameInput.readByte();
+                int rawLength = frameInput.readInt();
+                if (rawLength <= 0 || rawLength > FRAME_SIZE || rawLength > offset + length - position) {
+                    throw new IOException("Invalid frame of " + rawLength + " bytes at " + position);
+                }
+                int payloadLength = flag == COMPRESSED ? frameInput.readInt() : rawLength;
+                if (payloadLength < 0 || payloadLength > rawLength) {
+                    throw new IOException("Invalid frame payload of " + payloadLength + " bytes at " + position);
+                }
+                byte[] payload = new byte[payloadLength];
+                frameInput.readFully(payload);
+                Integer checksum = checksummed ? frameInput.readInt() : null;
+
+                long framePosition = position;
+                inFlight.add(WORKERS.submit(() -> writeFrame(file, framePosition, flag, payload, rawLength, checksum)));
+                position += rawLength;
+
+                if (inFlight.size() >= WINDOW) {
+                    progress.add(await(inFlight.poll()));
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                progress.add(await(inFlight.poll()));
+            }
+        } finally {
+            for (Future<Integer> frame : inFlight) {
+                frame.cancel(false);
+            }
+        }
+    }
+
+    // Decompresses a frame if needed, verifies its checksum if it has one and writes it at its position.
+    private static int writeFrame(FileChannel file, long position, byte flag, byte[] payload, int rawLength, Integer checksum) throws IOException {
+        byte[] data = payload;
+        if (flag == COMPRESSED) {
+            data = new byte[rawLength];
+            Inflater inflater = INFLATERS.get();
+            inflater.reset();
+            inflater.setInput(payload);
+            try {
+                if (inflater.inflate(data) != rawLength || !inflater.finished()) {
+                    throw new IOException("Frame at " + position + " does not decompress to " + rawLength + " bytes");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Frame at " + position + " is corrupt", e);
+            }
+        } else if (flag != RAW) {
+            throw new IOException("Unknown frame type " + flag + " at " + position);
+        }
+        if (checksum != null && checksum != checksum(data)) {
+            throw new IOException("Frame at " + position + " does not match its checksum");
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            file.write(buffer, position + buffer.position());
+        }
+        return rawLength;
+    }
+
+    private static int checksum(byte[] data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    private static void readFully(FileChannel file, byte[] data, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) == -1) {
+                throw new EOFException("File ended at " + (position + buffer.position()));
+            }
+        }
+    }
+
+    // Waits for a frame to be processed by a worker and rethrows its failure as an IOException.
+    private static <T> T await(Future<T> result) throws IOException {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Processing a frame failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while processing frames");
+        }
+    }
+
+    private static final class Frame {
+        private final byte flag;
+        private final byte[] payload;
+        private final int length;
+        private final int rawLength;
+        // The CRC32C of the uncompressed content, or null if the frames are not checksummed.
+        private Integer checksum;
+
+        private Frame(byte flag, byte[] payload, int length, int rawLength) {
+            this.flag = flag;
+            this.payload = payload;
+            this.length = length;
+            this.rawLength = rawLength;
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package com.example.filetransfer;
 
 import java.sql.*;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -8,13 +10,21 @@ import java.util.List;
  * The DatabaseHandler class is responsible for handling interactions with the H2 database.
  * It provides methods for creating the necessary table, inserting file transfer entries into the database,
  * retrieving all file transfer entries, and closing the database connection.
+ * File transfer entries are written in the background in batches, see TransferJournal.
+ * Statistics per day, peer and direction are kept up to date as entries are written, see TransferRollup, so they are
+ * read without going through the history.
  */
 public class DatabaseHandler {
 
     // Database connection details.
-    private static final String JDBC_URL = "jdbc:h2:file:./database";
+    private static final String JDBC_URL = "jdbc:h2:file:";
+    // The database file can be moved with this system property, e.g. to keep benchmarks away from the real history.
+    private static final String DATABASE_PROPERTY = "filetransfer.database";
+    private static final String DEFAULT_DATABASE = "./database";
     private static final String USER = "sa";
     private static final String PASSWORD = "";
+    // The marker of the statistics filled from the history, see initializeDatabase.
+    private static final String STATISTICS_BACKFILLED = "transfer_stats_backfilled";
     private static DatabaseHandler instance;
 
     // Load the H2 JDBC driver. This is required to connect to the H2 database.
@@ -27,6 +37,7 @@ public class DatabaseHandler {
     }
 
     private Connection connection;
+    private TransferJournal journal;
 
     /**
      * Private constructor used to prevent direct instantiation of the DatabaseHandler class.
@@ -34,8 +45,10 @@ public class DatabaseHandler {
      */
     private DatabaseHandler() {
         try {
-            connection = DriverManager.getConnection(JDBC_URL, USER, PASSWORD);
+            String url = JDBC_URL + System.getProperty(DATABASE_PROPERTY, DEFAULT_DATABASE);
+            connection = DriverManager.getConnection(url, USER, PASSWORD);
             initializeDatabase(connection);
+            journal = new TransferJournal(DriverManager.getConnection(url, USER, PASSWORD));
         } catch (SQLException e) {
             System.out.println("Connection to H2 database failed. " + e.getMessage());
         }
@@ -46,7 +59,7 @@ public class DatabaseHandler {
      *
      * @return the instance of DatabaseHandler
      */
-    public static DatabaseHandler getInstance() {
+    public static synchronized DatabaseHandler getInstance() {
         if (instance == null) {
             instance = new DatabaseHandler();
         }
@@ -71,14 +84,132 @@ public class DatabaseHandler {
         try (PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.execute();
         }
+
+        // The history is paged newest first, see getFileTransferPage. The index is descending so pages are read in index order.
+        String historyIndexSql = "CREATE INDEX IF NOT EXISTS file_transfers_newest_first ON file_transfers (timestamp DESC, id DESC);";
+
+        try (PreparedStatement stmt = conn.prepareStatement(historyIndexSql)) {
+            stmt.execute();
+        }
+
+        // Bytes received so far for resumable transfers that have not completed yet.
+        String checkpointSql = "CREATE TABLE IF NOT EXISTS transfer_checkpoints (" +
+                "transfer_id VARCHAR(255), " +
+                "filename VARCHAR(255), " +
+                "filesize LONG, " +
+                "bytes_received LONG, " +
+                "updated TIMESTAMP DEFAULT CURRENT_TIMESTAMP(), " +
+                "PRIMARY KEY (transfer_id));";
+
+        try (PreparedStatement stmt = conn.prepareStatement(checkpointSql)) {
+            stmt.execute();
+        }
+
+        // Where the content-addressed chunks of received files can be found on disk, see ChunkStore.
+        String chunkSql = "CREATE TABLE IF NOT EXISTS chunks (" +
+                "hash VARCHAR(64), " +
+                "path VARCHAR(4096), " +
+                "chunk_offset LONG, " +
+                "length INT, " +
+                "PRIMARY KEY (hash));";
+
+        try (PreparedStatement stmt = conn.prepareStatement(chunkSql)) {
+            stmt.execute();
+        }
+
+        // Steps of the setup that only ever run once, such as filling the statistics, each recorded by a row.
+        String markersSql = "CREATE TABLE IF NOT EXISTS schema_markers (" +
+                "name VARCHAR(64), " +
+                "PRIMARY KEY (name));";
+
+        try (PreparedStatement stmt = conn.prepareStatement(markersSql)) {
+            stmt.execute();
+        }
+
+        // Statistics of the history per day, peer and direction, see TransferRollup.
+        // They are filled from the history once, when they are added to a database that already has one.
+        String statsSql = "CREATE TABLE IF NOT EXISTS transfer_stats (" +
+                "stat_day DATE, " +
+                "server VARCHAR(255), " +
+                "transfer_direction VARCHAR(50), " +
+                "transfers LONG, " +
+                "total_bytes LONG, " +
+                "max_size LONG, " +
+                "PRIMARY KEY (stat_day, server, transfer_direction));";
+
+        String sizesSql = "CREATE TABLE IF NOT EXISTS transfer_sizes (" +
+                "stat_day DATE, " +
+                "server VARCHAR(255), " +
+                "transfer_direction VARCHAR(50), " +
+                "bucket INT, " +
+                "transfers LONG, " +
+                "PRIMARY KEY (stat_day, server, transfer_direction, bucket));";
+
+        // The primary keys serve queries over a range of days, these serve queries for a single peer.
+        String statsIndexSql = "CREATE INDEX IF NOT EXISTS transfer_stats_by_server ON transfer_stats (server, stat_day);";
+        String sizesIndexSql = "CREATE INDEX IF NOT EXISTS transfer_sizes_by_server ON transfer_sizes (server, stat_day);";
+
+        for (String statisticsSql : List.of(statsSql, sizesSql, statsIndexSql, sizesIndexSql)) {
+            try (PreparedStatement stmt = conn.prepareStatement(statisticsSql)) {
+                stmt.execute();
+            }
+        }
+
+        if (!hasMarker(conn, STATISTICS_BACKFILLED)) {
+            try {
+                backfillStatistics(conn);
+            } catch (SQLException e) {
+                // The history is still written, the statistics are filled again on the next start.
+                System.out.println("Failed to fill the transfer statistics from the history. " + e.getMessage());
+            }
+        }
+    }
+
+    private static boolean hasMarker(Connection conn, String name) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM schema_markers WHERE name = ?")) {
+            stmt.setString(1, name);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /**
+     * Fills the statistics from the history in a single transaction, together with the marker that records it.
+     * Statistics left by a version of the application that did not record the marker are recomputed, as there is
+     * no telling whether they were filled completely.
+     */
+    private static void backfillStatistics(Connection conn) throws SQLException {
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement();
+             PreparedStatement marker = conn.prepareStatement("INSERT INTO schema_markers (name) VALUES (?)")) {
+            stmt.execute("DELETE FROM transfer_stats");
+            stmt.execute("DELETE FROM transfer_sizes");
+            TransferRollup.backfill(conn);
+            marker.setString(1, STATISTICS_BACKFILLED);
+            marker.executeUpdate();
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
     }
 
     /**
      * Close the connection to the H2 database.
      * This should be called when the application is closed.
      * To ensure the database is not corrupted, the connection should be closed before the application is closed.
+     * File transfer entries that have not been written yet are written first.
      */
     public void closeConnection() {
+        if (journal != null) {
+            journal.close();
+        }
+        if (connection == null) {
+            return;
+        }
         try {
             connection.close();
         } catch (SQLException e) {
@@ -87,9 +218,27 @@ public class DatabaseHandler {
     }
 
     /**
-     * Get all file transfer entries from the database.
+     * Sets when file transfer entries are written to the database. Entries are written in batches of up to batchSize,
+     * and no entry waits longer than maxDelayMillis for the batch to fill up.
+     */
+    public void setFlushPolicy(int batchSize, long maxDelayMillis) {
+        if (journal != null) {
+            journal.setFlushPolicy(batchSize, maxDelayMillis);
+        }
+    }
+
+    // Waits until the queued file transfer entries have been written, so queries see them.
+    private void flushJournal() {
+        if (journal != null) {
+            journal.flush();
+        }
+    }
+
+    /**
+     * Get all file transfer entries from the database, including the ones that were still waiting to be written.
      */
     public List<FileTransferRecord> getAllFileTransfers() throws SQLException {
+        flushJournal();
         List<FileTransferRecord> transfers = new ArrayList<>();
         String sql = "SELECT * FROM file_transfers";
 
@@ -97,36 +246,176 @@ public class DatabaseHandler {
              ResultSet rs = statement.executeQuery()) {
 
             while (rs.next()) {
-                transfers.add(new FileTransferRecord(
-                        rs.getString("filename"),
-                        rs.getLong("filesize"),
-                        rs.getString("transfer_direction"),
-                        rs.getTimestamp("timestamp").toInstant(),
-                        rs.getString("server"),
-                        rs.getString("port")
-                ));
+                transfers.add(readFileTransfer(rs));
             }
         }
         return transfers;
     }
 
     /**
-     * Inserts a file transfer entry into the database.
+     * Get a page of file transfer entries, newest first. Pages are continued from the last entry of the previous one,
+     * so every page is read from the timestamp index in the same time, however far back it is.
+     *
+     * @param after the last entry of the previous page, or null for the first page
+     * @param limit the maximum number of entries on the page
+     * @return the entries, fewer than limit on the last page
      */
-    private void insertFileTransfer(String filename, long filesize, String transferDirection, String server, String port) {
-        String sql = "INSERT INTO file_transfers (filename, filesize, transfer_direction, server, port) VALUES (?, ?, ?, ?, ?)";
+    public List<FileTransferRecord> getFileTransferPage(FileTransferRecord after, int limit) throws SQLException {
+        List<FileTransferRecord> transfers = new ArrayList<>();
+        PreparedStatement statement;
+        if (after == null) {
+            flushJournal();
+            statement = connection.prepareStatement("SELECT * FROM file_transfers ORDER BY timestamp DESC, id DESC LIMIT ?");
+            statement.setInt(1, limit);
+        } else {
+            statement = connection.prepareStatement("SELECT * FROM file_transfers WHERE (timestamp, id) < (?, ?) " +
+                    "ORDER BY timestamp DESC, id DESC LIMIT ?");
+            statement.setTimestamp(1, Timestamp.from(after.getTimestamp()));
+            statement.setLong(2, after.getId());
+            statement.setInt(3, limit);
+        }
 
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, filename);
-            pstmt.setLong(2, filesize);
-            pstmt.setString(3, transferDirection);
-            pstmt.setString(4, server);
-            pstmt.setString(5, port);
+        try (statement; ResultSet rs = statement.executeQuery()) {
+            while (rs.next()) {
+                transfers.add(readFileTransfer(rs));
+            }
+        }
+        return transfers;
+    }
 
-            pstmt.executeUpdate();
-        } catch (SQLException ex) {
-            System.out.println(ex.getMessage());
+    private static FileTransferRecord readFileTransfer(ResultSet rs) throws SQLException {
+        return new FileTransferRecord(
+                rs.getLong("id"),
+                rs.getString("filename"),
+                rs.getLong("filesize"),
+                rs.getString("transfer_direction"),
+                rs.getTimestamp("timestamp").toInstant(),
+                rs.getString("server"),
+                rs.getString("port")
+        );
+    }
+
+    /**
+     * Get the statistics of every day, peer and direction with transfers between two days, e.g. the bytes per peer per day.
+     *
+     * @param from   the first day, inclusive
+     * @param to     the last day, inclusive
+     * @param server only this peer, or null for all peers
+     * @return the statistics, oldest day first
+     */
+    public List<TransferStatistics> getDailyStatistics(LocalDate from, LocalDate to, String server) throws SQLException {
+        String sql = "SELECT stat_day, server, transfer_direction, transfers, total_bytes, max_size FROM transfer_stats " +
+                "WHERE stat_day BETWEEN ? AND ?" + (server != null ? " AND server = ?" : "") +
+                " ORDER BY stat_day, server, transfer_direction";
+        return queryStatistics(sql, from, to, server);
+    }
+
+    /**
+     * Get the statistics of every peer and direction, added up over the days between from and to.
+     *
+     * @param direction "send", "receive", or null for both
+     * @return the statistics, the peer with the most bytes first
+     */
+    public List<TransferStatistics> getPeerStatistics(LocalDate from, LocalDate to, String direction) throws SQLException {
+        String sql = "SELECT NULL AS stat_day, server, transfer_direction, SUM(transfers) AS transfers, " +
+                "SUM(total_bytes) AS total_bytes, MAX(max_size) AS max_size FROM transfer_stats " +
+                "WHERE stat_day BETWEEN ? AND ?" + (direction != null ? " AND transfer_direction = ?" : "") +
+                " GROUP BY server, transfer_direction ORDER BY total_bytes DESC";
+        return queryStatistics(sql, from, to, direction);
+    }
+
+    /**
+     * Get the statistics of both directions, added up over all peers and the days between from and to.
+     */
+    public List<TransferStatistics> getDirectionStatistics(LocalDate from, LocalDate to) throws SQLException {
+        String sql = "SELECT NULL AS stat_day, NULL AS server, transfer_direction, SUM(transfers) AS transfers, " +
+                "SUM(total_bytes) AS total_bytes, MAX(max_size) AS max_size FROM transfer_stats " +
+                "WHERE stat_day BETWEEN ? AND ? GROUP BY transfer_direction ORDER BY transfer_direction";
+        return queryStatistics(sql, from, to, null);
+    }
+
+    private List<TransferStatistics> queryStatistics(String sql, LocalDate from, LocalDate to, String filter) throws SQLException {
+        flushJournal();
+        List<TransferStatistics> statistics = new ArrayList<>();
+
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setDate(1, Date.valueOf(from));
+            statement.setDate(2, Date.valueOf(to));
+            if (filter != null) {
+                statement.setString(3, filter);
+            }
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    Date day = rs.getDate("stat_day");
+                    statistics.add(new TransferStatistics(
+                            day != null ? day.toLocalDate() : null,
+                            rs.getString("server"),
+                            rs.getString("transfer_direction"),
+                            rs.getLong("transfers"),
+                            rs.getLong("total_bytes"),
+                            rs.getLong("max_size")
+                    ));
+                }
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Get the file size below which the given fraction of the transfers between two days fall, e.g. 0.95 for the
+     * 95th percentile. The sizes are counted in buckets, so the result is accurate to within an eighth.
+     *
+     * @param server    only this peer, or null for all peers
+     * @param direction "send", "receive", or null for both
+     * @return the size in bytes, 0 if there were no transfers
+     */
+    public long getSizePercentile(LocalDate from, LocalDate to, String server, String direction, double fraction) throws SQLException {
+        flushJournal();
+        String sql = "SELECT bucket, SUM(transfers) AS transfers FROM transfer_sizes WHERE stat_day BETWEEN ? AND ?" +
+                (server != null ? " AND server = ?" : "") + (direction != null ? " AND transfer_direction = ?" : "") +
+                " GROUP BY bucket ORDER BY bucket";
+        List<long[]> buckets = new ArrayList<>();
+        long total = 0;
+
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            int parameter = 1;
+            statement.setDate(parameter++, Date.valueOf(from));
+            statement.setDate(parameter++, Date.valueOf(to));
+            if (server != null) {
+                statement.setString(parameter++, server);
+            }
+            if (direction != null) {
+                statement.setString(parameter, direction);
+            }
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    buckets.add(new long[]{rs.getInt("bucket"), rs.getLong("transfers")});
+                    total += rs.getLong("transfers");
+                }
+            }
         }
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (long[] bucket : buckets) {
+            seen += bucket[1];
+            if (seen >= rank) {
+                return LatencyHistogram.upperBoundOf((int) bucket[0]);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Queues a file transfer entry to be written to the database, timestamped now.
+     * Returns right away unless many entries are waiting to be written.
+     */
+    private void insertFileTransfer(String filename, long filesize, String transferDirection, String server, String port) {
+        if (journal == null) {
+            System.out.println("The transfer history is not available, " + filename + " is not logged.");
+            return;
+        }
+        journal.append(new FileTransferRecord(filename, filesize, transferDirection, Instant.now(), server, port));
     }
 
     /**
@@ -143,5 +432,99 @@ public class DatabaseHandler {
         insertFileTransfer(filename, fileSize, "receive", server, port);
     }
 
+    /**
+     * Get the number of bytes committed for a resumable transfer.
+     *
+     * @return the committed offset, or -1 if there is no checkpoint for the transfer
+     */
+    public long getCommittedOffset(String transferId) {
+        String sql = "SELECT bytes_received FROM transfer_checkpoints WHERE transfer_id = ?";
 
+        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            pstmt.setString(1, transferId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getLong("bytes_received") : -1;
+            }
+        } catch (SQLException ex) {
+            System.out.println(ex.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Inserts or updates the number of bytes received for a resumable transfer.
+     */
+    public void saveCheckpoint(String transferId, String filename, long filesize, long bytesReceived) {
+        String sql = "MERGE INTO transfer_checkpoints (transfer_id, filename, filesize, bytes_received, updated) " +
+                "KEY (transfer_id) VALUES (?, ?, ?, ?, CURRENT_TIMESTAMP())";
+
+        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            pstmt.setString(1, transferId);
+            pstmt.setString(2, filename);
+            pstmt.setLong(3, filesize);
+            pstmt.setLong(4, bytesReceived);
+
+            pstmt.executeUpdate();
+        } catch (SQLException ex) {
+            System.out.println(ex.getMessage());
+        }
+    }
+
+    /**
+     * Deletes the checkpoint of a resumable transfer once it has completed.
+     */
+    public void deleteCheckpoint(String transferId) {
+        String sql = "DELETE FROM transfer_checkpoints WHERE transfer_id = ?";
+
+        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            pstmt.setString(1, transferId);
+
+            pstmt.executeUpdate();
+        } catch (SQLException ex) {
+            System.out.println(ex.getMessage());
+        }
+    }
+
+    /**
+     * Find where a chunk with the given hash can be found on disk.
+     *
+     * @return the location of the chunk, or null if it is not in the index
+     */
+    public ChunkStore.Location findChunkLocation(String hash) {
+        String sql = "SELECT path, chunk_offset, length FROM chunks WHERE hash = ?";
+
+        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            pstmt.setString(1, hash);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return new ChunkStore.Location(rs.getString("path"), rs.getLong("chunk_offset"), rs.getInt("length"));
+                }
+                return null;
+            }
+        } catch (SQLException ex) {
+            System.out.println(ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Inserts or updates the locations of all chunks of a file in a single batch.
+     */
+    public void saveChunkLocations(String path, List<String> hashes, int chunkSize, long fileSize) {
+        String sql = "MERGE INTO chunks (hash, path, chunk_offset, length) KEY (hash) VALUES (?, ?, ?, ?)";
+
+        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            for (int i = 0; i < hashes.size(); i++) {
+                long offset = (long) i * chunkSize;
+                pstmt.setString(1, hashes.get(i));
+                pstmt.setString(2, path);
+                pstmt.setLong(3, offset);
+                pstmt.setInt(4, (int) Math.min(chunkSize, fileSize - offset));
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        } catch (SQLException ex) {
+            System.out.println(ex.getMessage());
+        }
+    }
 }
@@ -0,0 +1,368 @@
+package com.example.filetransfer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The DeltaSync class implements rsync-style delta transfers for files the receiver already has an older copy of.
+ * <p>
+ * The receiver splits its copy into blocks and sends a weak rolling checksum and a strong MD5 checksum of every block.
+ * The sender slides a window over its file, and wherever the window matches a block of the receiver's copy it sends
+ * a reference to that block instead of the data. Everything else is sent as literal data. The receiver rebuilds the
+ * file from its old copy and the literal data, and checks the result against an MD5 hash of the sender's file.
+ * <p>
+ * The delta is a stream of operations: a literal ('L', length, bytes), a block copy ('C', block index),
+ * and the end ('E', MD5 of the whole file).
+ */
+public final class DeltaSync {
+    private static final int MIN_BLOCK_SIZE = 2 * 1024;
+    private static final int MAX_BLOCK_SIZE = 128 * 1024;
+    private static final int MAX_LITERAL_SIZE = 64 * 1024;
+    private static final int READ_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final int STRONG_CHECKSUM_SIZE = 16;
+    private static final int INITIAL_BLOCK_CAPACITY = 64 * 1024;
+    private static final byte LITERAL = 'L';
+    private static final byte COPY = 'C';
+    private static final byte END = 'E';
+
+    private DeltaSync() {
+    }
+
+    /**
+     * Chooses a block size of about the square root of the file size, which keeps both the signatures
+     * and the literal data around matched blocks small.
+     */
+    static int blockSize(long fileSize) {
+        int root = (int) Math.min(Integer.MAX_VALUE, (long) Math.sqrt(fileSize));
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, Integer.highestOneBit(Math.max(1, root))));
+    }
+
+    /**
+     * Writes the block signatures of the receiver's copy of a file. A missing copy has no blocks,
+     * in which case the whole file is sent as literal data.
+     *
+     * @param basis  the receiver's existing copy of the file
+     * @param output the stream to the sender
+     * @return the block size of the signatures
+     */
+    public static int writeSignatures(Path basis, DataOutputStream output) throws IOException {
+        if (!Files.isRegularFile(basis)) {
+            output.writeInt(MIN_BLOCK_SIZE);
+            output.writeInt(0);
+            return MIN_BLOCK_SIZE;
+        }
+
+        long size = Files.size(basis);
+        int blockSize = blockSize(size);
+        int blockCount = (int) (size / blockSize);
+        output.writeInt(blockSize);
+        output.writeInt(blockCount);
+
+        // Only whole blocks are matched, a shorter tail of the old copy is never referenced.
+        MessageDigest md5 = md5();
+        byte[] block = new byte[blockSize];
+        try (InputStream input = new BufferedInputStream(Files.newInputStream(basis), READ_BUFFER_SIZE)) {
+            for (int i = 0; i < blockCount; i++) {
+                readFully(input, block, blockSize);
+                output.writeInt(weakChecksum(block, 0, blockSize));
+                md5.update(block, 0, blockSize);
+                output.write(md5.digest());
+            }
+        }
+        return blockSize;
+    }
+
+    /**
+     * Reads the block signatures written by writeSignatures. Only a block size that blockSize can choose is accepted,
+     * with at most as many blocks as a copy that gets this block size can have.
+     */
+    public static Signatures readSignatures(DataInputStream input) throws IOException {
+        int blockSize = input.readInt();
+        int blockCount = input.readInt();
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || Integer.bitCount(blockSize) != 1
+                || blockCount < 0 || blockCount > maxBlockCount(blockSize)) {
+            throw new IOException("Invalid block signatures: " + blockCount + " blocks of " + blockSize + " bytes");
+        }
+        Signatures signatures = new Signatures(blockSize, blockCount);
+        for (int i = 0; i < blockCount; i++) {
+            int weak = input.readInt();
+            signatures.readStrong(input, i);
+            signatures.add(weak, i);
+        }
+        return signatures;
+    }
+
+    /**
+     * Returns the most blocks of the given size that writeSignatures writes for a copy. A block size below
+     * MAX_BLOCK_SIZE is only chosen for copies smaller than (2 * blockSize)^2 bytes, larger copies all get
+     * MAX_BLOCK_SIZE and are only limited so that the offsets of the strong checksums fit in an int.
+     */
+    static int maxBlockCount(int blockSize) {
+        return blockSize < MAX_BLOCK_SIZE ? 4 * blockSize - 1 : Integer.MAX_VALUE / STRONG_CHECKSUM_SIZE;
+    }
+
+    /**
+     * Writes the delta between the sender's file and the receiver's copy described by the signatures.
+     *
+     * @param source     the sender's file
+     * @param signatures the block signatures of the receiver's copy
+     * @param output     the stream to the receiver
+     * @param literals   called with the size of every literal that has been written, which is what goes over the wire
+     * @param copies     called with the number of bytes of the file every block reference covers
+     */
+    public static void writeDelta(Path source, Signatures signatures, DataOutputStream output, TransferProgress literals,
+                                  TransferProgress copies) throws IOException {
+        int blockSize = signatures.blockSize;
+        MessageDigest fileDigest = md5();
+        MessageDigest blockDigest = md5();
+        byte[] buffer = new byte[Math.max(READ_BUFFER_SIZE, 2 * blockSize)];
+        int start = 0;
+        int end = 0;
+        int literalStart = 0;
+        boolean eof = false;
+        boolean rolling = false;
+        int a = 0;
+        int b = 0;
+
+        try (InputStream input = Files.newInputStream(source)) {
+            while (true) {
+                if (end - start < blockSize && !eof) {
+                    // Flush the pending literal and move the window to the front before reading more of the file.
+                    writeLiteral(output, buffer, literalStart, start - literalStart, literals);
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    literalStart = 0;
+                    while (end < buffer.length) {
+                        int bytesRead = input.read(buffer, end, buffer.length - end);
+                        if (bytesRead == -1) {
+                            eof = true;
+                            break;
+                        }
+                        fileDigest.update(buffer, end, bytesRead);
+                        end += bytesRead;
+                    }
+                }
+                if (end - start < blockSize) {
+                    break;
+                }
+
+                if (!rolling) {
+                    int weak = weakChecksum(buffer, start, blockSize);
+                    a = weak & 0xFFFF;
+                    b = weak >>> 16;
+                    rolling = true;
+                }
+
+                int match = signatures.find((b << 16) | a, buffer, start, blockDigest);
+                if (match >= 0) {
+                    writeLiteral(output, buffer, literalStart, start - literalStart, literals);
+                    output.writeByte(COPY);
+                    output.writeInt(match);
+                    copies.add(blockSize);
+                    start += blockSize;
+                    literalStart = start;
+                    rolling = false;
+                    continue;
+                }
+
+                // Slide the window by one byte and update the rolling checksum.
+                int removed = buffer[start] & 0xFF;
+                if (start + blockSize < end) {
+                    int added = buffer[start + blockSize] & 0xFF;
+                    a = (a - removed + added) & 0xFFFF;
+                    b = (b - blockSize * removed + a) & 0xFFFF;
+                } else {
+                    rolling = false;
+                }
+                start++;
+                if (start - literalStart >= MAX_LITERAL_SIZE) {
+                    writeLiteral(output, buffer, literalStart, start - literalStart, literals);
+                    literalStart = start;
+                }
+            }
+        }
+
+        writeLiteral(output, buffer, literalStart, end - literalStart, literals);
+        output.writeByte(END);
+        output.write(fileDigest.digest());
+    }
+
+    // Writes literal data in pieces no larger than MAX_LITERAL_SIZE.
+    private static void writeLiteral(DataOutputStream output, byte[] buffer, int offset, int length, TransferProgress literals) throws IOException {
+        while (length > 0) {
+            int size = Math.min(length, MAX_LITERAL_SIZE);
+            output.writeByte(LITERAL);
+            output.writeInt(size);
+            output.write(buffer, offset, size);
+            literals.add(size);
+            offset += size;
+            length -= size;
+        }
+    }
+
+    /**
+     * Rebuilds a file from the receiver's old copy and the delta written by writeDelta.
+     * The new file is written next to the target and only replaces it after its hash has been verified.
+     *
+     * @param input      the stream from the sender
+     * @param basis      the receiver's old copy, which is also the target
+     * @param blockSize  the block size of the signatures that were sent for the old copy
+     * @param size       the size of the new file
+     * @param literals   called with the size of every literal that has been read, which is what came over the wire
+     * @param copies     called with the number of bytes every block reference copies from the old copy
+     * @throws IOException if the delta is invalid or the rebuilt file does not match the sender's file
+     */
+    public static void applyDelta(DataInputStream input, Path basis, int blockSize, long size, TransferProgress literals,
+                                  TransferProgress copies) throws IOException {
+        Path temp = basis.resolveSibling(basis.getFileName() + ".delta");
+        MessageDigest fileDigest = md5();
+        byte[] buffer = new byte[Math.max(MAX_LITERAL_SIZE, blockSize)];
+        long written = 0;
+
+        try (FileChannel old = Files.isRegularFile(basis) ? FileChannel.open(basis, StandardOpenOption.READ) : null;
+             OutputStream output = new BufferedOutputStream(Files.newOutputStream(temp), READ_BUFFER_SIZE)) {
+            while (true) {
+                byte op = input.readByte();
+                int length;
+                if (op == LITERAL) {
+                    length = input.readInt();
+                    if (length < 0 || length > buffer.length) {
+                        throw new IOException("Invalid literal length " + length);
+                    }
+                    input.readFully(buffer, 0, length);
+                } else if (op == COPY) {
+                    int block = input.readInt();
+                    if (old == null || block < 0 || (long) (block + 1) * blockSize > old.size()) {
+                        throw new IOException("Invalid block reference " + block);
+                    }
+                    length = blockSize;
+                    ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+                    while (data.hasRemaining()) {
+                        if (old.read(data, (long) block * blockSize + data.position()) == -1) {
+                            throw new EOFException("Old copy ended inside block " + block);
+                        }
+                    }
+                } else if (op == END) {
+                    break;
+                } else {
+                    throw new IOException("Invalid delta operation " + op);
+                }
+                output.write(buffer, 0, length);
+                fileDigest.update(buffer, 0, length);
+                written += length;
+                (op == LITERAL ? literals : copies).add(length);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        byte[] expected = new byte[STRONG_CHECKSUM_SIZE];
+        input.readFully(expected);
+        if (written != size || !Arrays.equals(expected, fileDigest.digest())) {
+            Files.deleteIfExists(temp);
+            throw new IOException("Rebuilt " + basis.getFileName() + " does not match the sent file");
+        }
+        Files.move(temp, basis, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The rsync weak checksum: two 16 bit sums that can be rolled forward one byte at a time.
+     */
+    static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xFF;
+            b += (length - i) * (data[offset + i] & 0xFF);
+        }
+        return ((b & 0xFFFF) << 16) | (a & 0xFFFF);
+    }
+
+    private static void readFully(InputStream input, byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int bytesRead = input.read(buffer, read, length - read);
+            if (bytesRead == -1) {
+                throw new EOFException();
+            }
+            read += bytesRead;
+        }
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is required by every Java platform", e);
+        }
+    }
+
+    /**
+     * The block signatures of the receiver's copy, indexed by weak checksum.
+     */
+    public static final class Signatures {
+        private final int blockSize;
+        private final int blockCount;
+        private byte[] strong;
+        private final Map<Integer, int[]> blocksByWeak = new HashMap<>();
+
+        private Signatures(int blockSize, int blockCount) {
+            this.blockSize = blockSize;
+            this.blockCount = blockCount;
+            // Grows while the checksums arrive, so a count that is not followed by the checksums does not allocate.
+            this.strong = new byte[Math.min(blockCount, INITIAL_BLOCK_CAPACITY) * STRONG_CHECKSUM_SIZE];
+        }
+
+        private void readStrong(DataInputStream input, int block) throws IOException {
+            if ((block + 1) * STRONG_CHECKSUM_SIZE > strong.length) {
+                strong = Arrays.copyOf(strong, (int) Math.min((long) blockCount, 2L * block) * STRONG_CHECKSUM_SIZE);
+            }
+            input.readFully(strong, block * STRONG_CHECKSUM_SIZE, STRONG_CHECKSUM_SIZE);
+        }
+
+        private void add(int weak, int block) {
+            blocksByWeak.merge(weak, new int[]{block}, (blocks, added) -> {
+                int[] merged = Arrays.copyOf(blocks, blocks.length + 1);
+                merged[blocks.length] = added[0];
+                return merged;
+            });
+        }
+
+        /**
+         * Finds a block with the same content as the window, checking the strong checksum only on a weak match.
+         *
+         * @return the index of the matching block, or -1
+         */
+        private int find(int weak, byte[] window, int offset, MessageDigest digest) {
+            int[] blocks = blocksByWeak.get(weak);
+            if (blocks == null) {
+                return -1;
+            }
+            digest.update(window, offset, blockSize);
+            byte[] hash = digest.digest();
+            for (int block : blocks) {
+                if (Arrays.equals(strong, block * STRONG_CHECKSUM_SIZE, (block + 1) * STRONG_CHECKSUM_SIZE,
+                        hash, 0, STRONG_CHECKSUM_SIZE)) {
+                    return block;
+                }
+            }
+            return -1;
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+    }
+}
@@ -1,12 +1,28 @@
 package com.example.filetransfer;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import javax.net.ServerSocketFactory;
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The FileReceiver class is responsible for receiving a file through a socket connection and saving it to disk.
@@ -14,11 +30,44 @@ import java.net.Socket;
  * The class provides methods to check the receiving status, retrieve progress, filename, and total bytes of the received file.
  */
 public class FileReceiver implements Runnable {
+    // Upper bound for a single transferFrom call, so progress is updated regularly on large files.
+    private static final long TRANSFER_CHUNK_SIZE = 8L * 1024 * 1024;
+    // Size of the buffer of the stream copy loop.
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    // How many bytes a resumable transfer receives between two checkpoints in the database.
+    private static final long CHECKPOINT_INTERVAL = 64L * 1024 * 1024;
+    static final long DEFAULT_SYNC_INTERVAL = 64L * 1024 * 1024;
+    // The largest inline transfer accepted, its content is held in memory.
+    static final int MAX_INLINE_SIZE = 1024 * 1024;
+    // How long a rejected sender may take to read the answer and close the connection, see rejectHello.
+    private static final int REJECT_LINGER_MILLIS = 2_000;
+    // Shared by all transfers received by this process.
+    private static final TokenBucket GLOBAL_RATE_LIMITER = new TokenBucket(TokenBucket.UNLIMITED);
+    private static final TransferMetrics METRICS = new TransferMetrics("received");
+
     private final String saveLocation;
     private final int port;
-    private long totalBytes = -1;
-    private long bytesReceived = 0;
-    private String fName;
+    private volatile long totalBytes = -1;
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final TokenBucket rateLimiter = new TokenBucket(TokenBucket.UNLIMITED);
+    private final ProgressPublisher progress = new ProgressPublisher(() -> this.fName, () -> this.totalBytes);
+    private volatile String fName;
+    private volatile String remoteAddress;
+    private volatile TransferMetrics.Recording recording;
+    private boolean zeroCopy = true;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private FileSink.Mode writeMode = FileSink.Mode.POSITIONAL;
+    private FileSink.Durability durability = FileSink.Durability.NONE;
+    private long syncInterval = DEFAULT_SYNC_INTERVAL;
+    private FileChannel fileChannel;
+    private int stripeCount;
+    private int stripesRemaining;
+    private int stripesOpened;
+    private boolean aborted;
+    private volatile long lastActivity = System.nanoTime();
+    private String resumeTransferId;
+    private long resumeOffset;
+    private long checkpointedBytes;
 
     public FileReceiver(String saveLocation, int port) {
         this.saveLocation = saveLocation;
@@ -26,52 +75,905 @@ public class FileReceiver implements Runnable {
     }
 
     /**
-     * This method is responsible for receiving a file through a socket connection and saving it to disk.
-     * It reads and parses metadata from the socket input stream, retrieves the filename and total bytes from the metadata JSON object,
-     * and then writes the actual file content to the specified location on disk.
+     * Creates a receiver for a transfer on a connection that was accepted elsewhere, see ReceiverServer.
+     */
+    FileReceiver(String saveLocation) {
+        this(saveLocation, -1);
+    }
+
+    /**
+     * This method is responsible for receiving a file through socket connections and saving it to disk.
+     * It reads and parses metadata from the first connection, retrieves the filename and total bytes from the metadata,
+     * and creates the file at the specified location on disk, extended to its full size.
+     * If the sender split the file into stripes, the connections for the remaining stripes are accepted as well,
+     * and every stripe is written at its own offset in parallel.
+     * The server socket is closed once the file has been received, use ReceiverServer to keep receiving files.
      */
     public void run() {
+        try (ServerSocket serverSocket = openServerSocket(port, zeroCopy)) {
+            List<Stripe> stripes = new ArrayList<>();
+            try {
+                Stripe first = readStripe(serverSocket.accept());
+                stripes.add(first);
+                TransferMetadata metadata = first.metadata;
+
+                while (stripes.size() < metadata.getStripeCount()) {
+                    Stripe stripe = readStripe(serverSocket.accept());
+                    stripes.add(stripe);
+                    if (!metadata.getTransferId().equals(stripe.metadata.getTransferId())) {
+                        throw new IOException("Received a stripe of another transfer while receiving " + metadata.getName());
+                    }
+                }
+                receiveStripes(stripes);
+            } finally {
+                for (Stripe stripe : stripes) {
+                    stripe.socket.close();
+                }
+            }
+        } catch (IOException | JSONException e) {
+            abort();
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Opens the server socket used for the transfer. When zero-copy is enabled the server socket is created from a
+     * ServerSocketChannel, so that accepted sockets have a channel to transfer from.
+     */
+    static ServerSocket openServerSocket(int port, boolean zeroCopy) throws IOException {
+        if (zeroCopy) {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            return serverChannel.socket();
+        }
         // TODO: Make this SSL.
         ServerSocketFactory factory = ServerSocketFactory.getDefault();
-        try (ServerSocket serverSocket = factory.createServerSocket(port);
-             Socket clientSocket = serverSocket.accept();
-             DataInputStream socketInput = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()))) {
-
-            // read and parse metadata as JSON
-            String metadata = socketInput.readUTF();
-            JSONObject json = new JSONObject(metadata);
-            String fileName = json.getString("name");
-            fName = fileName;
-            totalBytes = json.getLong("size");
-
-            try (OutputStream fileOutput = new FileOutputStream(saveLocation + "/" + fileName)) {
-                // write actual file content to disk
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                while ((bytesRead = socketInput.read(buffer)) != -1) {
-                    fileOutput.write(buffer, 0, bytesRead);
-                    bytesReceived += bytesRead;
+        return factory.createServerSocket(port);
+    }
+
+    /**
+     * Reads the metadata of the stripe carried by an accepted connection.
+     * A sender speaking the binary protocol opens with a hello, which is answered before anything else,
+     * see Handshake. A legacy sender opens with its metadata as JSON.
+     * The socket is closed if the metadata cannot be read.
+     */
+    static Stripe readStripe(Socket clientSocket) throws IOException {
+        try {
+            return readStripe(clientSocket, openInput(clientSocket));
+        } catch (IOException | JSONException e) {
+            clientSocket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the metadata of a stripe from the input of a connection, such as the next transfer of a session.
+     * The socket is closed if the metadata cannot be read.
+     */
+    static Stripe readStripe(Socket clientSocket, DataInputStream socketInput) throws IOException {
+        long start = System.nanoTime();
+        try {
+            int length = socketInput.readUnsignedShort();
+            byte[] magic = new byte[Math.min(length, Handshake.MAGIC_LENGTH)];
+            socketInput.readFully(magic);
+            return readStripe(clientSocket, socketInput, length, magic, start);
+        } catch (IOException | JSONException e) {
+            clientSocket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the input of an accepted connection.
+     */
+    static DataInputStream openInput(Socket clientSocket) throws IOException {
+        // The zero-copy path must not read ahead of the metadata, so the input is only buffered for the stream path.
+        InputStream input = clientSocket.getChannel() != null
+                ? clientSocket.getInputStream()
+                : new BufferedInputStream(clientSocket.getInputStream());
+        return new DataInputStream(input);
+    }
+
+    /**
+     * Reads the rest of the metadata of a stripe, of which the length and the start have already been read.
+     *
+     * @param start the System.nanoTime() the connection was accepted
+     */
+    static Stripe readStripe(Socket clientSocket, DataInputStream socketInput, int length, byte[] magic, long start) throws IOException {
+        return readStripe(clientSocket, socketInput, length, magic, start, true);
+    }
+
+    /**
+     * Reads the rest of the metadata of a stripe, of which the length and the start have already been read.
+     *
+     * @param start  the System.nanoTime() the connection was accepted
+     * @param answer whether to answer the hello, a receiver that rejects the transfer answers it itself
+     */
+    static Stripe readStripe(Socket clientSocket, DataInputStream socketInput, int length, byte[] magic, long start,
+                             boolean answer) throws IOException {
+        if (!Handshake.isHello(length, magic)) {
+            TransferMetadata metadata = readLegacyMetadata(socketInput, length, magic);
+            connected(start);
+            return new Stripe(clientSocket, socketInput, metadata, null);
+        }
+
+        Handshake handshake;
+        TransferMetadata metadata;
+        try {
+            ByteBuffer hello = ByteBuffer.allocate(Handshake.HELLO_BODY_SIZE + Integer.BYTES);
+            socketInput.readFully(hello.array());
+            handshake = Handshake.LOCAL.negotiate(Handshake.read(hello));
+            ByteBuffer frame = ByteBuffer.allocate(MetadataCodec.readFrameLength(hello));
+            socketInput.readFully(frame.array());
+            metadata = MetadataCodec.decode(frame);
+        } catch (IOException | RuntimeException e) {
+            rejectHello(clientSocket, e);
+            throw e;
+        }
+
+        // An inline transfer is answered together with its acknowledgement, see receiveInline.
+        if (answer && !metadata.isInline()) {
+            ByteBuffer reply = ByteBuffer.allocate(Handshake.REPLY_SIZE);
+            handshake.writeReply(reply);
+            clientSocket.getOutputStream().write(reply.array());
+        }
+        connected(start);
+        return new Stripe(clientSocket, socketInput, metadata, handshake);
+    }
+
+    /**
+     * Answers a hello that could not be accepted, so the sender does not take the closed connection for a legacy
+     * receiver. Failing to do so is added to the failure.
+     * <p>
+     * Closing a connection with unread input resets it, which discards the answer before the sender has read it.
+     * So what the sender still sends, such as the content of an inline transfer, is skipped until it has read the
+     * answer and closed the connection, for at most REJECT_LINGER_MILLIS.
+     */
+    static void rejectHello(Socket clientSocket, Exception failure) {
+        ByteBuffer reply = ByteBuffer.allocate(Handshake.REPLY_SIZE);
+        Handshake.writeRejected(reply);
+        try {
+            clientSocket.getOutputStream().write(reply.array());
+            clientSocket.shutdownOutput();
+            clientSocket.setSoTimeout(REJECT_LINGER_MILLIS);
+            InputStream input = clientSocket.getInputStream();
+            byte[] skipped = new byte[8192];
+            while (input.read(skipped) != -1) {
+                // The sender closes the connection once it has read the answer.
+            }
+        } catch (SocketTimeoutException e) {
+            // The answer has been sent, the sender did not close the connection in time.
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Reads the JSON metadata of a legacy sender, written with writeUTF, of which the length and the start have
+     * already been read.
+     */
+    static TransferMetadata readLegacyMetadata(DataInputStream socketInput, int length, byte[] start) throws IOException {
+        byte[] utf = new byte[2 + length];
+        utf[0] = (byte) (length >>> 8);
+        utf[1] = (byte) length;
+        System.arraycopy(start, 0, utf, 2, start.length);
+        socketInput.readFully(utf, 2 + start.length, length - start.length);
+        return TransferMetadata.fromJson(new DataInputStream(new ByteArrayInputStream(utf)).readUTF());
+    }
+
+    /**
+     * Receives one stripe of the transfer. The first stripe creates the file and extends it to its full size,
+     * and the file is closed once the last stripe has been written.
+     * Stripes of the same transfer may be received concurrently from different threads.
+     * For a resumable transfer the offset to continue from is sent back to the sender before the content.
+     * If the sender asks for a codec the accepted codec is sent back as well, and the content arrives as compressed frames.
+     * The chunks of a checksummed transfer are verified before they are written, see ChecksummedTransfer.
+     * A file sent with a manifest is checked against it once the last stripe has been received, see verifyManifest.
+     * A delta transfer is rebuilt from the existing copy of the file instead, see receiveDelta,
+     * a deduplicated transfer is assembled from chunks that have been received before, see receiveDeduplicated,
+     * and a batch transfer recreates a directory tree, see receiveBatch. A small file sent inline is written
+     * at once, see receiveInline.
+     *
+     * @param stripe the stripe to receive
+     * @return true if this was the last outstanding stripe and the whole file has been received
+     * @throws IOException if the file cannot be written or the connection is closed early
+     */
+    boolean receive(Stripe stripe) throws IOException {
+        if (stripe.metadata.isInline()) {
+            receiveInline(stripe);
+            finished();
+            return true;
+        }
+        if (stripe.metadata.isDelta()) {
+            receiveDelta(stripe);
+            finished();
+            return true;
+        }
+        if (stripe.metadata.isDeduplicated()) {
+            receiveDeduplicated(stripe);
+            finished();
+            return true;
+        }
+        if (stripe.metadata.isBatch()) {
+            receiveBatch(stripe);
+            finished();
+            return true;
+        }
+
+        FileChannel channel = open(stripe.metadata, stripe.socket.getInetAddress().getHostAddress());
+        long offset = stripe.metadata.getOffset();
+        long length = stripe.metadata.getLength();
+        DataOutputStream socketOutput = new DataOutputStream(stripe.socket.getOutputStream());
+        if (stripe.metadata.isResumable()) {
+            socketOutput.writeLong(resumeOffset);
+            offset = resumeOffset;
+            length = totalBytes - resumeOffset;
+        }
+        String codec = CompressedFraming.NONE;
+        if (stripe.metadata.getCodec() != null) {
+            codec = CompressedFraming.negotiate(stripe.metadata.getCodec());
+            socketOutput.writeUTF(codec);
+        }
+        if (!CompressedFraming.NONE.equals(codec)) {
+            CompressedFraming.readFrames(stripe.input, channel, offset, length,
+                    FileSender.frameChecksums(stripe.metadata, stripe.handshake), this::received);
+        } else if (stripe.metadata.isChecksummed()) {
+            DataInputStream chunkInput = new DataInputStream(new BufferedInputStream(stripe.input, 64 * 1024));
+            DataOutputStream chunkOutput = new DataOutputStream(new BufferedOutputStream(socketOutput));
+            ChecksummedTransfer.receive(chunkInput, chunkOutput, channel, offset, length, this::received);
+        } else {
+            receiveStripe(stripe, channel, offset, length);
+        }
+        if (stripe.metadata.getManifestRoot() != null) {
+            return verifyManifest(stripe, socketOutput);
+        }
+        return stripeDone();
+    }
+
+    /**
+     * Checks the received file against the manifest of the sender once the last stripe has arrived.
+     * Every stripe tells the sender whether it completed the file. The stripe that did builds the manifest of the
+     * received file, and fetches the segments that differ over its connection, see MerkleManifest.
+     *
+     * @return true if this was the last outstanding stripe and the whole file has been received
+     * @throws IOException if the file still does not match after the repair
+     */
+    private boolean verifyManifest(Stripe stripe, DataOutputStream socketOutput) throws IOException {
+        boolean last;
+        synchronized (this) {
+            last = stripesRemaining == 1;
+            if (!last) {
+                stripesRemaining--;
+            }
+        }
+        socketOutput.writeBoolean(last);
+        if (!last) {
+            return false;
+        }
+
+        Path file = resumeTransferId != null ? getPartFile() : resolve(fName);
+        MerkleManifest manifest = MerkleManifest.build(file);
+        DataInputStream manifestInput = new DataInputStream(new BufferedInputStream(stripe.input));
+        DataOutputStream manifestOutput = new DataOutputStream(new BufferedOutputStream(socketOutput));
+        if (!manifest.reconcile(stripe.metadata.getManifestRoot(), fileChannel, manifestInput, manifestOutput)) {
+            throw new IOException(fName + " does not match the manifest of the sender");
+        }
+        return stripeDone();
+    }
+
+    /**
+     * Receives a delta transfer. The block signatures of the existing copy of the file are sent to the sender,
+     * which answers with the delta. The file is rebuilt next to the old copy and replaces it once it has been verified.
+     * Whether that succeeded is reported back to the sender.
+     */
+    private void receiveDelta(Stripe stripe) throws IOException {
+        synchronized (this) {
+            fName = stripe.metadata.getName();
+            totalBytes = stripe.metadata.getSize();
+            remoteAddress = stripe.socket.getInetAddress().getHostAddress();
+            recording = METRICS.begin(remoteAddress);
+        }
+        Path target = resolve(fName);
+        DataInputStream deltaInput = new DataInputStream(new BufferedInputStream(stripe.input));
+        DataOutputStream socketOutput = new DataOutputStream(new BufferedOutputStream(stripe.socket.getOutputStream()));
+
+        int blockSize = DeltaSync.writeSignatures(target, socketOutput);
+        socketOutput.flush();
+        try {
+            // Literals are throttled like any other content, copied blocks only count as progress.
+            DeltaSync.applyDelta(deltaInput, target, blockSize, totalBytes, this::received, this::addReceived);
+        } catch (IOException e) {
+            try {
+                socketOutput.writeBoolean(false);
+                socketOutput.flush();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        socketOutput.writeBoolean(true);
+        socketOutput.flush();
+    }
+
+    /**
+     * Receives a deduplicated transfer. The chunk hashes offered by the sender are looked up in the chunk index,
+     * and the sender is told which chunks are missing. The file is assembled in a .dedup file from local copies
+     * of the other chunks and the missing ones as they arrive, and replaces the target once it is complete.
+     * Its chunks are then added to the index. Whether that succeeded is reported back to the sender.
+     */
+    private void receiveDeduplicated(Stripe stripe) throws IOException {
+        synchronized (this) {
+            fName = stripe.metadata.getName();
+            totalBytes = stripe.metadata.getSize();
+            remoteAddress = stripe.socket.getInetAddress().getHostAddress();
+            recording = METRICS.begin(remoteAddress);
+        }
+        Path target = resolve(fName);
+        Path assemblyFile = target.resolveSibling(target.getFileName() + ".dedup");
+        DataOutputStream socketOutput = new DataOutputStream(new BufferedOutputStream(stripe.socket.getOutputStream()));
+
+        ChunkStore chunkStore = new ChunkStore(DatabaseHandler.getInstance());
+        List<String> hashes = ChunkStore.readHashes(stripe.input, totalBytes);
+        ChunkStore.Assembly assembly = chunkStore.plan(hashes, totalBytes);
+        ChunkStore.writeMissing(socketOutput, assembly.getMissing(), hashes.size());
+        socketOutput.flush();
+
+        Map<String, FileChannel> sources = new HashMap<>();
+        try (FileChannel channel = openSink(assemblyFile, 0)) {
+            // Chunks are assembled in file order, so a chunk repeated within the file is copied from its first occurrence.
+            for (int i = 0; i < hashes.size(); i++) {
+                long offset = (long) i * ChunkStore.CHUNK_SIZE;
+                int length = ChunkStore.chunkLength(i, totalBytes);
+                if (assembly.isMissing(i)) {
+                    receiveStripe(stripe, channel, offset, length);
+                } else {
+                    chunkStore.copyChunk(assembly, i, channel, totalBytes, sources);
+                    addReceived(length);
                 }
             }
+            channel.truncate(totalBytes);
+        } catch (IOException e) {
+            Files.deleteIfExists(assemblyFile);
+            try {
+                socketOutput.writeBoolean(false);
+                socketOutput.flush();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        } finally {
+            for (FileChannel source : sources.values()) {
+                source.close();
+            }
+        }
 
-        } catch (IOException | JSONException e) {
-            e.printStackTrace();
+        Files.move(assemblyFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        chunkStore.index(target, hashes, totalBytes);
+        socketOutput.writeBoolean(true);
+        socketOutput.flush();
+    }
+
+    /**
+     * Receives a batch transfer. The directory tree is recreated in a directory with the name of the transfer
+     * under the save location, and the sender is told whether that succeeded once the last entry has been written.
+     */
+    private void receiveBatch(Stripe stripe) throws IOException {
+        synchronized (this) {
+            fName = stripe.metadata.getName();
+            totalBytes = stripe.metadata.getSize();
+            remoteAddress = stripe.socket.getInetAddress().getHostAddress();
+            recording = METRICS.begin(remoteAddress);
+        }
+        DataInputStream batchInput = new DataInputStream(new BufferedInputStream(stripe.input, 64 * 1024));
+        DataOutputStream socketOutput = new DataOutputStream(stripe.socket.getOutputStream());
+        try {
+            BatchTransfer.readEntries(batchInput, resolve(fName), this::received);
+        } catch (IOException e) {
+            try {
+                socketOutput.writeBoolean(false);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        socketOutput.writeBoolean(true);
+    }
+
+    /**
+     * Receives a small file whose content follows its metadata without waiting for the answer to the hello.
+     * The content is read into memory and written with a single positional write, then the hello is answered
+     * together with whether the file has been written, in one write.
+     */
+    private void receiveInline(Stripe stripe) throws IOException {
+        synchronized (this) {
+            fName = stripe.metadata.getName();
+            totalBytes = stripe.metadata.getSize();
+            remoteAddress = stripe.socket.getInetAddress().getHostAddress();
+            recording = METRICS.begin(remoteAddress);
+            progress.start(0);
+        }
+        ByteBuffer reply = ByteBuffer.allocate(Handshake.REPLY_SIZE + 1);
+        stripe.handshake.writeReply(reply);
+        OutputStream socketOutput = stripe.socket.getOutputStream();
+        try {
+            if (totalBytes > MAX_INLINE_SIZE) {
+                throw new IOException("Inline transfer of " + fName + " is larger than " + MAX_INLINE_SIZE + " bytes");
+            }
+            ByteBuffer content = ByteBuffer.allocate((int) totalBytes);
+            stripe.input.readFully(content.array());
+            received(totalBytes);
+
+            long start = System.nanoTime();
+            try (FileChannel file = FileChannel.open(resolve(fName), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (content.hasRemaining()) {
+                    file.write(content, content.position());
+                }
+                if (durability != FileSink.Durability.NONE) {
+                    file.force(false);
+                }
+            }
+            recording.chunk(start);
+        } catch (IOException e) {
+            try {
+                socketOutput.write(reply.put((byte) 0).array());
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        socketOutput.write(reply.put((byte) 1).array());
+    }
+
+    /**
+     * Creates the file and extends it to its full size when the first stripe of the transfer arrives.
+     * Later stripes get the already opened file.
+     * A resumable transfer is written to a .part file instead, which is kept after a failure
+     * and continued from the committed offset when the sender reconnects.
+     *
+     * @param metadata      the metadata of the arriving stripe
+     * @param remoteAddress the address of the sender
+     * @return the file channel that the stripe is written to with positional writes
+     */
+    synchronized FileChannel open(TransferMetadata metadata, String remoteAddress) throws IOException {
+        if (aborted) {
+            throw new IOException("The transfer of " + metadata.getName() + " has already been aborted");
+        }
+        stripesOpened++;
+        lastActivity = System.nanoTime();
+        if (fileChannel == null) {
+            fName = metadata.getName();
+            totalBytes = metadata.getSize();
+            stripeCount = metadata.getStripeCount();
+            stripesRemaining = stripeCount;
+            this.remoteAddress = remoteAddress;
+            recording = METRICS.begin(remoteAddress);
+            progress.start(0);
+
+            if (metadata.isResumable()) {
+                openPartFile(metadata.getTransferId());
+                return fileChannel;
+            }
+            // extend the file to its full size so every stripe can be written at its own offset
+            fileChannel = openSink(resolve(fName), 0);
+        }
+        return fileChannel;
+    }
+
+    /**
+     * Opens the .part file of a resumable transfer and determines the offset to continue from.
+     * Bytes on disk are only trusted up to the offset committed in the database, anything after it is discarded.
+     */
+    private void openPartFile(String transferId) throws IOException {
+        Path partFile = getPartFile();
+        long committed = DatabaseHandler.getInstance().getCommittedOffset(transferId);
+        long onDisk = Files.exists(partFile) ? Files.size(partFile) : 0;
+
+        resumeTransferId = transferId;
+        resumeOffset = committed > 0 ? Math.min(committed, onDisk) : 0;
+        checkpointedBytes = resumeOffset;
+        bytesReceived.set(resumeOffset);
+        progress.start(resumeOffset);
+
+        fileChannel = openSink(partFile, resumeOffset);
+    }
+
+    /**
+     * Opens a file for received content with the configured write mode and durability, see FileSink.
+     *
+     * @param keep the number of bytes at the start of an existing file to keep
+     */
+    private FileSink openSink(Path file, long keep) throws IOException {
+        return FileSink.open(file, keep, totalBytes, writeMode, durability, syncInterval);
+    }
+
+    /**
+     * Resolves a file name sent by the sender in the save location. Names that would end up anywhere but inside the
+     * save location, such as absolute paths or paths with .., are rejected, and so are the files derived from them.
+     *
+     * @throws IOException if the name is not a path inside the save location
+     */
+    private Path resolve(String name) throws IOException {
+        Path root = Path.of(saveLocation).toAbsolutePath().normalize();
+        try {
+            Path path = root.resolve(name).normalize();
+            if (path.startsWith(root) && !path.equals(root)) {
+                return path;
+            }
+        } catch (InvalidPathException e) {
+            // Rejected below like any other name outside of the save location.
+        }
+        throw new IOException("Rejected file name " + name + ", it is not inside " + root);
+    }
+
+    private Path getPartFile() throws IOException {
+        Path file = resolve(fName);
+        return file.resolveSibling(file.getFileName() + ".part");
+    }
+
+    /**
+     * Returns true if not all stripes of the transfer have arrived yet.
+     */
+    synchronized boolean isMissingStripes() {
+        return fileChannel == null || stripesOpened < stripeCount;
+    }
+
+    /**
+     * Returns how long ago a stripe last arrived or delivered content.
+     */
+    long getIdleNanos() {
+        return System.nanoTime() - lastActivity;
+    }
+
+    /**
+     * Returns the offset a resumable transfer continues from, 0 for a new transfer.
+     */
+    long getResumeOffset() {
+        return resumeOffset;
+    }
+
+    /**
+     * Adds bytes written by a stripe to the progress of the transfer.
+     * Resumable transfers are checkpointed in the database at regular intervals.
+     */
+    void addReceived(long bytes) throws IOException {
+        lastActivity = System.nanoTime();
+        long received = bytesReceived.addAndGet(bytes);
+        progress.update(received);
+        recording.bytes(bytes);
+        if (resumeTransferId != null && received - checkpointedBytes >= CHECKPOINT_INTERVAL) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Adds bytes a stripe has read from the socket to the progress, and waits if the transfer is over its rate limit.
+     */
+    private void received(long bytes) throws IOException {
+        addReceived(bytes);
+        TokenBucket.acquire(GLOBAL_RATE_LIMITER, rateLimiter, bytes);
+    }
+
+    /**
+     * Takes bandwidth for bytes a stripe has read from the socket without blocking, for the NIO engine.
+     *
+     * @return how long the stripe has to pause in nanoseconds, 0 if it may continue
+     */
+    long throttle(long bytes) {
+        return Math.max(GLOBAL_RATE_LIMITER.reserve(bytes), rateLimiter.reserve(bytes));
+    }
+
+    /**
+     * Returns how long to wait until both rate limits are out of debt at their current rates.
+     */
+    long throttlePending() {
+        return Math.max(GLOBAL_RATE_LIMITER.pending(), rateLimiter.pending());
+    }
+
+    /**
+     * Limits a chunk to the burst size of the rate limits, so a slow rate is spread over many small chunks.
+     */
+    long maxChunk(long chunk) {
+        return Math.min(GLOBAL_RATE_LIMITER.maxChunk(chunk), rateLimiter.maxChunk(chunk));
+    }
+
+    /**
+     * Flushes the .part file to disk and commits the number of bytes it holds, so a reconnect can continue from there.
+     */
+    private synchronized void checkpoint() throws IOException {
+        long received = bytesReceived.get();
+        fileChannel.force(false);
+        DatabaseHandler.getInstance().saveCheckpoint(resumeTransferId, fName, totalBytes, received);
+        checkpointedBytes = received;
+    }
+
+    /**
+     * Marks one stripe as completely written and closes the file after the last one.
+     * A completed resumable transfer is renamed from its .part file and its checkpoint is removed.
+     *
+     * @return true if this was the last outstanding stripe and the whole file has been received
+     */
+    synchronized boolean stripeDone() throws IOException {
+        if (--stripesRemaining > 0) {
+            return false;
+        }
+        fileChannel.close();
+        if (resumeTransferId != null) {
+            Files.move(getPartFile(), resolve(fName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            DatabaseHandler.getInstance().deleteCheckpoint(resumeTransferId);
+        }
+        finished();
+        return true;
+    }
+
+    // Publishes the last progress event and records the completed transfer.
+    private void finished() {
+        progress.done(bytesReceived.get());
+        recording.completed();
+    }
+
+    /**
+     * Closes the file after a failed transfer. Stripes that are still being received will fail as well,
+     * and stripes that arrive afterwards are refused.
+     * A resumable transfer commits what it has received so far, so nothing on disk is sent again.
+     */
+    synchronized void abort() {
+        aborted = true;
+        if (recording != null) {
+            recording.failed();
+        }
+        if (fileChannel != null && fileChannel.isOpen()) {
+            try {
+                if (resumeTransferId != null) {
+                    checkpoint();
+                }
+                fileChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Receives all stripes, in parallel when there is more than one.
+    private void receiveStripes(List<Stripe> stripes) throws IOException {
+        if (stripes.size() == 1) {
+            receive(stripes.get(0));
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(stripes.size());
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (Stripe stripe : stripes) {
+                results.add(executor.submit(() -> {
+                    receive(stripe);
+                    return null;
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Receiving a stripe of " + fName + " failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while receiving " + fName);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes the content of one stripe to the given byte range in the file.
+     * If the accepted socket is backed by a channel the content is written with FileChannel.transferFrom,
+     * otherwise it is copied through a stream loop.
+     */
+    private void receiveStripe(Stripe stripe, FileChannel fileChannel, long offset, long length) throws IOException {
+        SocketChannel socketChannel = stripe.socket.getChannel();
+        if (socketChannel != null) {
+            receiveWithTransferFrom(socketChannel, fileChannel, offset, length);
+        } else {
+            receiveWithStream(stripe.input, fileChannel, offset, length);
+        }
+    }
+
+    // Writes the announced number of bytes from the socket straight into the file.
+    private void receiveWithTransferFrom(SocketChannel socketChannel, FileChannel fileChannel, long offset, long length) throws IOException {
+        long received = 0;
+        while (received < length) {
+            long start = System.nanoTime();
+            long transferred = fileChannel.transferFrom(socketChannel, offset + received, maxChunk(Math.min(TRANSFER_CHUNK_SIZE, length - received)));
+            if (transferred <= 0) {
+                throw new EOFException("Connection closed at " + (offset + received) + " of " + totalBytes + " bytes");
+            }
+            recording.chunk(start);
+            received += transferred;
+            received(transferred);
+        }
+    }
+
+    // Fallback for sockets without a channel, e.g. SSL sockets.
+    private void receiveWithStream(InputStream socketInput, FileChannel fileChannel, long offset, long length) throws IOException {
+        byte[] buffer = new byte[bufferSize];
+        long received = 0;
+        while (received < length) {
+            int bytesRead = socketInput.read(buffer, 0, (int) Math.min(buffer.length, length - received));
+            if (bytesRead == -1) {
+                throw new EOFException("Connection closed at " + (offset + received) + " of " + totalBytes + " bytes");
+            }
+            long start = System.nanoTime();
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, bytesRead);
+            while (data.hasRemaining()) {
+                fileChannel.write(data, offset + received + data.position());
+            }
+            recording.chunk(start);
+            received += bytesRead;
+            received(bytesRead);
         }
     }
 
     public double getProgress() {
-        return totalBytes > 0 ? (double) bytesReceived / totalBytes : 1.0;
+        // Progress is summed over all stripes of the transfer.
+        return totalBytes > 0 ? (double) bytesReceived.get() / totalBytes : 1.0;
     }
 
     public boolean isReceiving() {
-        return bytesReceived < totalBytes;
+        return bytesReceived.get() < totalBytes;
     }
 
     public String getFilename() {
         return fName;
     }
 
+    /**
+     * Returns the address of the sender, or null before the first connection has been accepted.
+     */
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
     public long getTotalBytes() {
         return totalBytes;
     }
-}
\ No newline at end of file
+
+    /**
+     * Enables or disables the zero-copy transfer path. When disabled, the file is copied through a stream loop.
+     */
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    /**
+     * Sets the size of the buffer used by the stream copy loop, which is used when the socket has no channel.
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be at least 1, was " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Subscribes to progress events of this transfer, see ProgressListener. Without listeners, reporting progress
+     * costs nothing while receiving.
+     */
+    public void addProgressListener(ProgressListener listener) {
+        progress.addListener(listener);
+    }
+
+    public void removeProgressListener(ProgressListener listener) {
+        progress.removeListener(listener);
+    }
+
+    /**
+     * Limits the bandwidth of this transfer over all of its stripes. Can be changed while the file is being received.
+     *
+     * @param bytesPerSecond the rate, or TokenBucket.UNLIMITED
+     */
+    public void setRateLimit(long bytesPerSecond) {
+        rateLimiter.setRate(bytesPerSecond);
+    }
+
+    /**
+     * Returns the rate limiter of this transfer, which also measures its throughput.
+     */
+    public TokenBucket getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Returns the rate limiter shared by all transfers received by this process. Every transfer is held to both
+     * its own limit and the global one.
+     */
+    public static TokenBucket getGlobalRateLimiter() {
+        return GLOBAL_RATE_LIMITER;
+    }
+
+    /**
+     * Returns the metrics of all transfers received by this process.
+     */
+    public static TransferMetrics getMetrics() {
+        return METRICS;
+    }
+
+    /**
+     * Records the time from accepting a connection until its metadata was read, since the given System.nanoTime().
+     */
+    static void connected(long startNanos) {
+        METRICS.connected(startNanos);
+    }
+
+    /**
+     * Counts a connection that was refused because it was not authenticated.
+     */
+    static void rejected() {
+        METRICS.rejected();
+    }
+
+    /**
+     * Records the latency of a chunk a stripe has written to the file, since the given System.nanoTime().
+     */
+    void chunkReceived(long startNanos) {
+        recording.chunk(startNanos);
+    }
+
+    /**
+     * Sets how received content is written to the file. Must be called before the first stripe arrives.
+     */
+    public void setWriteMode(FileSink.Mode writeMode) {
+        this.writeMode = writeMode;
+    }
+
+    /**
+     * Sets when received content is forced to disk, trading safety for throughput.
+     * Must be called before the first stripe arrives.
+     *
+     * @param syncInterval the number of bytes between two syncs for Durability.INTERVAL
+     */
+    public void setDurability(FileSink.Durability durability, long syncInterval) {
+        if (syncInterval <= 0) {
+            throw new IllegalArgumentException("Sync interval must be positive, was " + syncInterval);
+        }
+        this.durability = durability;
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * An accepted connection together with the metadata of the stripe it carries.
+     */
+    static final class Stripe {
+        private final Socket socket;
+        private final DataInputStream input;
+        private final TransferMetadata metadata;
+        private final Handshake handshake;
+
+        /**
+         * @param handshake what both sides agreed on, or null if the sender speaks the legacy protocol
+         */
+        Stripe(Socket socket, DataInputStream input, TransferMetadata metadata, Handshake handshake) {
+            this.socket = socket;
+            this.input = input;
+            this.metadata = metadata;
+            this.handshake = handshake;
+        }
+
+        Socket getSocket() {
+            return socket;
+        }
+
+        TransferMetadata getMetadata() {
+            return metadata;
+        }
+
+        DataInputStream getInput() {
+            return input;
+        }
+
+        Handshake getHandshake() {
+            return handshake;
+        }
+    }
+}
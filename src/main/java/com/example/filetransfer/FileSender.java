@@ -1,10 +1,23 @@
 package com.example.filetransfer;
 
-import org.json.JSONObject;
-
 import javax.net.SocketFactory;
 import java.io.*;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The FileSender class is responsible for sending a file to a specified server and port number.
@@ -12,59 +25,733 @@ import java.net.Socket;
  * send the file, and retrieve the progress of the file sending operation.
  */
 public class FileSender {
+    // Upper bound for a single transferTo call, so progress is updated regularly on large files.
+    private static final long TRANSFER_CHUNK_SIZE = 8L * 1024 * 1024;
+    // Size of the buffer of the stream copy loop.
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    // Files are not split into stripes smaller than this, the connection setup would cost more than it gains.
+    private static final long MIN_STRIPE_SIZE = 4L * 1024 * 1024;
+    // Files up to this size are sent inline, in the same write as their metadata.
+    public static final int DEFAULT_INLINE_THRESHOLD = 64 * 1024;
+
+    // Receivers that only speak the legacy JSON metadata, remembered for a while so the hello is not tried again.
+    private static final PeerCache LEGACY_PEERS = new PeerCache(PeerCache.DEFAULT_TTL_MILLIS);
+    // Receivers that have answered a hello, to which small files can be sent before the answer.
+    private static final PeerCache HELLO_PEERS = new PeerCache(PeerCache.DEFAULT_TTL_MILLIS);
+    // Receivers that do not support sessions, which get a connection per transfer instead.
+    private static final PeerCache SESSIONLESS_PEERS = new PeerCache(PeerCache.DEFAULT_TTL_MILLIS);
+    private static final SessionPool SESSIONS = new SessionPool();
+    // Shared by all transfers sent from this process.
+    private static final TokenBucket GLOBAL_RATE_LIMITER = new TokenBucket(TokenBucket.UNLIMITED);
+    private static final TransferMetrics METRICS = new TransferMetrics("sent");
+
     private final String filename;
     private final String server;
     private final int port;
     private final long totalBytes;
-    private long bytesSent = 0;
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final TokenBucket rateLimiter = new TokenBucket(TokenBucket.UNLIMITED);
+    private final ProgressPublisher progress;
+    private volatile TransferMetrics.Recording recording;
+    // Connections that are open, closed by cancel().
+    private final Set<Closeable> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled;
+    private boolean zeroCopy = true;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private int stripeCount = 1;
+    private NioTransferEngine engine;
+    private boolean resumable;
+    private boolean delta;
+    private boolean dedup;
+    private boolean compressed;
+    private boolean checksummed;
+    private boolean manifestRequested;
+    private boolean keepAlive;
+    private int inlineThreshold = DEFAULT_INLINE_THRESHOLD;
+    private MerkleManifest manifest;
 
     public FileSender(String filename, String server, int port) {
         this.filename = filename;
         this.server = server;
         this.port = port;
-        this.totalBytes = new File(filename).length();
+        this.totalBytes = sizeOf(filename);
+        this.progress = new ProgressPublisher(() -> filename, () -> totalBytes);
+    }
+
+    // The size of a directory is the total size of the files in it.
+    private static long sizeOf(String filename) {
+        File file = new File(filename);
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        try {
+            return BatchTransfer.totalSize(file.toPath());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
     }
 
     /**
-     * Sends a file over the network using a socket connection.
-     * The method reads the file, creates JSON-formatted metadata,
-     * and writes the metadata as well as the file content to the socket connection.
-     * The metadata contains the name and the total size of the file.
-     * Right now the connection is not secure but can be implemented using SSL.
+     * Sends a file over the network using socket connections.
+     * A directory is sent as a batch of all files in it over a single connection, see BatchTransfer.
+     * The file is split into stripes, each of which is sent over its own connection in parallel.
+     * By default there is a single stripe covering the whole file.
+     * If a NIO engine has been set, the connections are driven by its event loops instead of by blocking threads.
+     * With keep-alive, stripes are sent over pooled sessions instead of connections of their own, see SessionPool.
+     * If a manifest is requested it is built before anything is sent, and its root is part of the metadata,
+     * unless the transfer is of a kind that does not carry one.
      *
-     * @throws IOException if an I/O error occurs when creating the socket,
-     *                     reading the file or writing to the socket connection
+     * @throws IOException if an I/O error occurs when creating a socket,
+     *                     reading the file or writing to a socket connection
      */
     public void send() throws IOException {
-        // TODO: Make this SSL: https://github.com/Hakky54/sslcontext-kickstart
-        // SocketFactory factory = SSLSocketFactory.getDefault();
-        SocketFactory factory = SocketFactory.getDefault();
-
-        try (Socket socket = factory.createSocket(server, port);
-             InputStream fileInput = new FileInputStream(filename);
-             DataOutputStream socketOutput = new DataOutputStream(socket.getOutputStream())) {
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-
-            // create JSON formatted metadata
-            JSONObject json = new JSONObject();
-            json.put("name", new File(filename).getName());
-            json.put("size", totalBytes);
-            String metadata = json.toString();
+        recording = METRICS.begin(server);
+        try {
+            checkCancelled();
+            progress.start(0);
+            try {
+                send(createStripes());
+            } catch (Handshake.LegacyPeerException e) {
+                // Nothing has been sent yet, so the transfer starts over in the legacy protocol.
+                checkCancelled();
+                LEGACY_PEERS.add(getAddress());
+                HELLO_PEERS.remove(getAddress());
+                System.out.println("The receiver at " + server + ":" + port + " only speaks the legacy protocol, sending " + filename + " again in it");
+                bytesSent.set(0);
+                progress.start(0);
+                try {
+                    send(createStripes());
+                } catch (ConnectException retry) {
+                    // A legacy receiver takes a single connection, which the hello used up.
+                    retry.addSuppressed(e);
+                    throw new IOException("The receiver at " + server + ":" + port + " only speaks the legacy protocol and stopped"
+                            + " listening after the hello. Start it again and resend, the file is then sent in the legacy protocol", retry);
+                }
+            }
+            progress.done(bytesSent.get());
+            recording.completed();
+        } catch (IOException e) {
+            recording.failed();
+            if (cancelled) {
+                throw new InterruptedIOException("Sending " + filename + " was cancelled");
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Stops the transfer by closing its connections. send() then fails with an InterruptedIOException.
+     * A resumable transfer can be continued later by a new sender for the same file.
+     */
+    public void cancel() {
+        cancelled = true;
+        for (Closeable connection : connections) {
+            closeConnection(connection);
+        }
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        if (cancelled) {
+            throw new InterruptedIOException("Sending " + filename + " was cancelled");
+        }
+    }
+
+    /**
+     * Registers an open connection of this transfer, so that cancel() can close it.
+     * A connection opened after the transfer was cancelled is closed right away.
+     */
+    void track(Closeable connection) {
+        connections.add(connection);
+        if (cancelled) {
+            closeConnection(connection);
+        }
+    }
+
+    void untrack(Closeable connection) {
+        connections.remove(connection);
+    }
+
+    private static void closeConnection(Closeable connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void send(List<TransferMetadata> stripes) throws IOException {
+        // The NIO engine only moves plain file content, delta and deduplicated transfers need the blocking path.
+        if (engine != null && !useSessions() && !stripes.get(0).requiresExchange()) {
+            await(engine.send(this, stripes));
+            return;
+        }
+
+        if (stripes.size() == 1) {
+            sendStripe(stripes.get(0));
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(stripes.size());
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (TransferMetadata stripe : stripes) {
+                results.add(executor.submit(() -> {
+                    sendStripe(stripe);
+                    return null;
+                }));
+            }
+            for (Future<Void> result : results) {
+                await(result);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Waits for a stripe to be sent and rethrows its failure as an IOException.
+    private void await(Future<?> result) throws IOException {
+        try {
+            result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Sending " + filename + " failed", e.getCause());
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sending " + filename);
+        }
+    }
+
+    /**
+     * Splits the file into byte ranges of roughly equal size, one for each connection.
+     * Small files are sent over fewer connections than requested.
+     * A legacy receiver only knows the name and the size of a file, so it gets the whole file as a plain transfer
+     * over a single connection, without any of the modes that need an answer from the receiver.
+     *
+     * @throws IOException if a directory is sent to a legacy receiver
+     */
+    List<TransferMetadata> createStripes() throws IOException {
+        String name = new File(filename).getName();
+        if (isLegacyPeer()) {
+            if (new File(filename).isDirectory()) {
+                throw new IOException("The receiver only speaks the legacy protocol and cannot receive the directory " + filename);
+            }
+            return List.of(new TransferMetadata(name, totalBytes, null, 0, 1, 0, totalBytes));
+        }
+        if (new File(filename).isDirectory()) {
+            TransferMetadata metadata = new TransferMetadata(name, totalBytes, null, 0, 1, 0, totalBytes);
+            metadata.setBatch(true);
+            return List.of(metadata);
+        }
+        if (delta) {
+            TransferMetadata metadata = new TransferMetadata(name, totalBytes, null, 0, 1, 0, totalBytes);
+            metadata.setDelta(true);
+            return List.of(metadata);
+        }
+        if (dedup) {
+            TransferMetadata metadata = new TransferMetadata(name, totalBytes, null, 0, 1, 0, totalBytes);
+            metadata.setDeduplicated(true);
+            return List.of(metadata);
+        }
+        if (resumable) {
+            TransferMetadata metadata = new TransferMetadata(name, totalBytes, getResumeId(), 0, 1, 0, totalBytes);
+            metadata.setResumable(true);
+            metadata.setCodec(getCodec());
+            metadata.setManifestRoot(getManifestRoot());
+            return List.of(metadata);
+        }
+
+        if (inlineThreshold > 0 && totalBytes <= inlineThreshold && !compressed && !checksummed && !manifestRequested
+                && HELLO_PEERS.contains(getAddress())) {
+            TransferMetadata metadata = new TransferMetadata(name, totalBytes, null, 0, 1, 0, totalBytes);
+            metadata.setInline(true);
+            return List.of(metadata);
+        }
+
+        int count = (int) Math.max(1, Math.min(stripeCount, totalBytes / MIN_STRIPE_SIZE));
+        String transferId = UUID.randomUUID().toString();
+        long stripeSize = totalBytes / count;
+
+        List<TransferMetadata> stripes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long offset = i * stripeSize;
+            long length = i == count - 1 ? totalBytes - offset : stripeSize;
+            TransferMetadata stripe = new TransferMetadata(name, totalBytes, transferId, i, count, offset, length);
+            stripe.setCodec(getCodec());
+            // How compressed content is checked depends on whether the receiver accepts the codec, see sendContent.
+            stripe.setChecksummed(checksummed);
+            stripe.setManifestRoot(getManifestRoot());
+            stripes.add(stripe);
+        }
+        return stripes;
+    }
+
+    private String getCodec() {
+        return compressed ? CompressedFraming.DEFLATE : null;
+    }
+
+    // Builds the manifest on first use, so transfers that do not carry its root never read the whole file for it.
+    private String getManifestRoot() throws IOException {
+        if (!manifestRequested) {
+            return null;
+        }
+        if (manifest == null) {
+            manifest = MerkleManifest.build(getPath());
+        }
+        return manifest.getRoot();
+    }
+
+    /**
+     * Creates the id of a resumable transfer. The id stays the same as long as the file is not modified,
+     * so the receiver recognizes a transfer that is sent again after a dropped connection.
+     */
+    private String getResumeId() {
+        File file = new File(filename);
+        String identity = file.getAbsolutePath() + ":" + totalBytes + ":" + file.lastModified();
+        return UUID.nameUUIDFromBytes(identity.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * Sends one stripe of the file over its own socket connection, or over a pooled session with keep-alive.
+     */
+    private void sendStripe(TransferMetadata stripe) throws IOException {
+        if (useSessions() && !isLegacyPeer() && !SESSIONLESS_PEERS.contains(getAddress()) && sendOverSession(stripe)) {
+            return;
+        }
+        Socket socket = openSocket();
+        track(socket);
+        try (socket) {
+            sendStripe(stripe, socket, new DataInputStream(new BufferedInputStream(socket.getInputStream())),
+                    new DataOutputStream(socket.getOutputStream()));
+        } finally {
+            untrack(socket);
+        }
+    }
 
+    /**
+     * Sends one stripe over a pooled session, and gives the session back once the receiver has confirmed it.
+     * A session that turns out to have been closed by the receiver while it was idle is replaced once.
+     *
+     * @return false if the receiver does not support sessions, nothing has been sent then
+     */
+    private boolean sendOverSession(TransferMetadata stripe) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            TransferSession session;
+            try {
+                session = SESSIONS.acquire(server + ":" + port, this);
+            } catch (Handshake.LegacyPeerException e) {
+                SESSIONLESS_PEERS.add(getAddress());
+                return false;
+            }
+            // Cancelling aborts the session, see TransferSession.abort.
+            Closeable abort = session::abort;
+            track(abort);
+            boolean confirmed = false;
+            try {
+                Handshake handshake;
+                try {
+                    session.beginTransfer();
+                    handshake = openStripe(stripe, session.getSocket(), session.getInput(), session.getOutput());
+                } catch (IOException e) {
+                    // Nothing has been received if the hello was not answered, a pooled session may have been closed by the receiver.
+                    if (!session.isReused() || attempt > 0) {
+                        throw e instanceof Handshake.LegacyPeerException
+                                ? new IOException("The receiver closed the session while sending " + filename, e) : e;
+                    }
+                    continue;
+                }
+                sendContent(stripe, handshake, session.getSocket(), session.getInput(), session.getOutput());
+                session.awaitTransfer();
+                confirmed = true;
+                return true;
+            } finally {
+                untrack(abort);
+                if (confirmed) {
+                    SESSIONS.release(session);
+                } else {
+                    session.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends one stripe of the file over an open connection, which is left open.
+     * The method writes the metadata describing the stripe, followed by the stripe content.
+     * The metadata contains the name and the total size of the file, and the byte range when the file is striped.
+     * It is sent as a binary frame after a hello, see MetadataCodec, and the receiver answers the hello with the
+     * capabilities both sides share, see Handshake. Receivers that only speak the legacy protocol get the metadata
+     * as JSON instead.
+     * If the socket is backed by a channel the content is sent with FileChannel.transferTo,
+     * which lets the operating system copy the file without going through a heap buffer.
+     * Otherwise the content is copied through a stream loop.
+     * For a resumable transfer the receiver answers with the offset it has committed, and only the rest is sent.
+     * For a compressed transfer the receiver answers with the codec it accepts, and the content is sent as
+     * compressed frames if it accepted one. A checksummed transfer is sent in chunks that are verified by the receiver.
+     * Right now the connection is not secure but can be implemented using SSL.
+     */
+    private void sendStripe(TransferMetadata stripe, Socket socket, DataInputStream socketInput, DataOutputStream socketOutput) throws IOException {
+        sendContent(stripe, openStripe(stripe, socket, socketInput, socketOutput), socket, socketInput, socketOutput);
+    }
+
+    /**
+     * Writes the metadata of a stripe and waits for the receiver to answer the hello.
+     *
+     * @return the largest compressed frame the receiver accepts
+     */
+    private Handshake openStripe(TransferMetadata stripe, Socket socket, DataInputStream socketInput, DataOutputStream socketOutput) throws IOException {
+        if (isLegacyPeer()) {
             // write metadata to socket
-            socketOutput.writeUTF(metadata);
+            socketOutput.writeUTF(stripe.toJson());
+            socketOutput.flush();
+            return null;
+        }
+        if (stripe.isInline()) {
+            writeInline(stripe, socket, socketOutput);
+        } else {
+            socketOutput.write(Handshake.header(stripe).array());
+            socketOutput.flush();
+        }
+        Handshake handshake = readHandshake(socketInput);
+        handshake.require(stripe);
+        helloAnswered();
+        return handshake;
+    }
 
+    /**
+     * Writes the metadata and the whole content of a small file at once, in a single gather write if the socket
+     * has a channel, so the file takes one round trip.
+     */
+    private void writeInline(TransferMetadata stripe, Socket socket, DataOutputStream socketOutput) throws IOException {
+        ByteBuffer header = Handshake.header(stripe);
+        SocketChannel socketChannel = socket.getChannel();
+        // Without a channel the content is read into the same buffer right behind the header.
+        ByteBuffer content = socketChannel != null
+                ? ByteBuffer.allocate((int) totalBytes)
+                : ByteBuffer.allocate(header.remaining() + (int) totalBytes).put(header);
+        try (FileChannel fileChannel = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+            while (content.hasRemaining()) {
+                if (fileChannel.read(content, content.position() - (socketChannel != null ? 0 : header.limit())) == -1) {
+                    throw new EOFException("File " + filename + " ended before " + totalBytes + " bytes");
+                }
+            }
+        }
+        content.flip();
+
+        long start = System.nanoTime();
+        if (socketChannel != null) {
+            ByteBuffer[] frame = {header, content};
+            while (header.hasRemaining() || content.hasRemaining()) {
+                socketChannel.write(frame);
+            }
+        } else {
+            socketOutput.write(content.array(), 0, content.limit());
+            socketOutput.flush();
+        }
+        recording.chunk(start);
+        sent(totalBytes);
+    }
+
+    // Sends the content of a stripe after the metadata, in the mode of the transfer.
+    private void sendContent(TransferMetadata stripe, Handshake handshake, Socket socket, DataInputStream socketInput, DataOutputStream socketOutput) throws IOException {
+        if (stripe.isInline()) {
+            // A receiver that does not know inline transfers received the file as a plain transfer and does not answer.
+            if (handshake.supports(Handshake.INLINE) && !socketInput.readBoolean()) {
+                throw new IOException("The receiver could not write " + filename);
+            }
+            return;
+        }
+        int frameSize = handshake != null ? handshake.getMaxFrameSize() : CompressedFraming.FRAME_SIZE;
+        if (stripe.isDelta()) {
+            sendDelta(socketInput, socketOutput);
+            return;
+        }
+        if (stripe.isDeduplicated()) {
+            sendDeduplicated(socket, socketInput, socketOutput);
+            return;
+        }
+        if (stripe.isBatch()) {
+            sendBatch(socketInput, socketOutput);
+            return;
+        }
+
+        long offset = stripe.getOffset();
+        long length = stripe.getLength();
+        if (stripe.isResumable()) {
+            long committed = socketInput.readLong();
+            addResumed(committed);
+            offset = committed;
+            length = totalBytes - committed;
+        }
+        boolean framed = stripe.getCodec() != null && !CompressedFraming.NONE.equals(socketInput.readUTF());
+        if (framed) {
+            try (FileChannel fileChannel = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+                CompressedFraming.writeFrames(fileChannel, offset, length, frameSize, frameChecksums(stripe, handshake),
+                        socketOutput, this::sent);
+            }
+        } else if (stripe.isChecksummed()) {
+            DataOutputStream chunkOutput = new DataOutputStream(new BufferedOutputStream(socketOutput, 64 * 1024));
+            try (FileChannel fileChannel = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+                ChecksummedTransfer.send(fileChannel, offset, length, chunkOutput, socketInput, this::sent);
+            }
+        } else {
             // write actual file content to socket
-            while ((bytesRead = fileInput.read(buffer)) != -1) {
+            SocketChannel socketChannel = socket.getChannel();
+            if (socketChannel != null) {
+                sendWithTransferTo(socketChannel, offset, length);
+            } else {
+                sendWithStream(socketOutput, offset, length);
+            }
+        }
+
+        if (stripe.getManifestRoot() != null) {
+            verifyManifest(socketInput, socketOutput);
+        }
+    }
+
+    /**
+     * Returns true if the compressed frames of a stripe carry checksums. A checksummed transfer whose codec the
+     * receiver declined is sent in checksummed chunks instead, and so is one to a receiver without frame checksums.
+     */
+    static boolean frameChecksums(TransferMetadata stripe, Handshake handshake) {
+        return stripe.isChecksummed() && handshake != null && handshake.supports(Handshake.FRAME_CHECKSUMS);
+    }
+
+    /**
+     * Lets the receiver check its copy of the file against the manifest. The receiver answers every stripe with
+     * whether it completed the file, and repairs its copy over the connection of the stripe that did.
+     */
+    private void verifyManifest(DataInputStream socketInput, DataOutputStream socketOutput) throws IOException {
+        if (!socketInput.readBoolean()) {
+            return;
+        }
+        // The input of the connection is buffered already, and must not be read ahead of the manifest exchange.
+        DataOutputStream manifestOutput = new DataOutputStream(new BufferedOutputStream(socketOutput));
+        try (FileChannel fileChannel = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+            if (!manifest.serve(fileChannel, socketInput, manifestOutput)) {
+                throw new IOException("The receiver's copy of " + filename + " does not match the manifest");
+            }
+        }
+    }
+
+    /**
+     * Reads the answer to the hello. A receiver that closes the connection instead of answering only speaks
+     * the legacy protocol. Any other failure, such as a timeout or a reset connection, is not taken as a sign of that.
+     */
+    private static Handshake readHandshake(DataInputStream socketInput) throws IOException {
+        byte[] reply = new byte[Handshake.REPLY_SIZE];
+        int first = socketInput.read();
+        if (first == -1) {
+            throw new Handshake.LegacyPeerException(new EOFException("Connection closed before the hello was answered"));
+        }
+        reply[0] = (byte) first;
+        socketInput.readFully(reply, 1, reply.length - 1);
+        return Handshake.read(ByteBuffer.wrap(reply));
+    }
+
+    /**
+     * Sends only what differs from the receiver's copy of the file. The receiver answers the metadata with the
+     * block signatures of its copy, and confirms that the rebuilt file matches after the delta has been sent.
+     */
+    private void sendDelta(DataInputStream socketInput, DataOutputStream socketOutput) throws IOException {
+        DataOutputStream deltaOutput = new DataOutputStream(new BufferedOutputStream(socketOutput));
+
+        DeltaSync.Signatures signatures = DeltaSync.readSignatures(socketInput);
+        // Only literals go over the wire and take bandwidth, blocks the receiver already has only count as progress.
+        DeltaSync.writeDelta(Path.of(filename), signatures, deltaOutput, this::sent, this::addSent);
+        deltaOutput.flush();
+
+        if (!socketInput.readBoolean()) {
+            throw new IOException("The receiver could not rebuild " + filename + " from the delta");
+        }
+    }
+
+    /**
+     * Sends only the chunks the receiver does not have yet. The hashes of all chunks are offered first,
+     * the receiver answers with the chunks it is missing, and only those are sent, in file order.
+     * The receiver confirms that the assembled file is complete.
+     */
+    private void sendDeduplicated(Socket socket, DataInputStream socketInput, DataOutputStream socketOutput) throws IOException {
+        List<String> hashes = ChunkStore.hashChunks(Path.of(filename));
+        ChunkStore.writeHashes(socketOutput, hashes);
+        socketOutput.flush();
+
+        BitSet missing = ChunkStore.readMissing(socketInput, hashes.size());
+        SocketChannel socketChannel = socket.getChannel();
+        for (int i = 0; i < hashes.size(); i++) {
+            long offset = (long) i * ChunkStore.CHUNK_SIZE;
+            long length = ChunkStore.chunkLength(i, totalBytes);
+            if (!missing.get(i)) {
+                addSent(length);
+            } else if (socketChannel != null) {
+                sendWithTransferTo(socketChannel, offset, length);
+            } else {
+                sendWithStream(socketOutput, offset, length);
+            }
+        }
+        socketOutput.flush();
+
+        if (!socketInput.readBoolean()) {
+            throw new IOException("The receiver could not assemble " + filename + " from its chunks");
+        }
+    }
+
+    /**
+     * Sends every file of a directory tree back to back, without waiting for the receiver between files.
+     * The receiver confirms once it has written the whole tree.
+     */
+    private void sendBatch(DataInputStream socketInput, DataOutputStream socketOutput) throws IOException {
+        DataOutputStream batchOutput = new DataOutputStream(new BufferedOutputStream(socketOutput, 64 * 1024));
+        BatchTransfer.writeEntries(Path.of(filename), batchOutput, this::sent);
+
+        if (!socketInput.readBoolean()) {
+            throw new IOException("The receiver could not recreate " + filename);
+        }
+    }
+
+    /**
+     * Opens a socket for the transfer. When zero-copy is enabled the socket is created from a SocketChannel,
+     * since sockets from the default SocketFactory have no channel to transfer to.
+     */
+    Socket openSocket() throws IOException {
+        long start = System.nanoTime();
+        Socket socket;
+        if (zeroCopy) {
+            socket = SocketChannel.open(new InetSocketAddress(server, port)).socket();
+        } else {
+            // TODO: Make this SSL: https://github.com/Hakky54/sslcontext-kickstart
+            // SocketFactory factory = SSLSocketFactory.getDefault();
+            SocketFactory factory = SocketFactory.getDefault();
+            socket = factory.createSocket(server, port);
+        }
+        connected(start);
+        return socket;
+    }
+
+    // Copies the byte range straight from the page cache to the socket.
+    private void sendWithTransferTo(SocketChannel socketChannel, long offset, long length) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+            long sent = 0;
+            while (sent < length) {
+                long start = System.nanoTime();
+                long transferred = fileChannel.transferTo(offset + sent, maxChunk(Math.min(TRANSFER_CHUNK_SIZE, length - sent)), socketChannel);
+                if (transferred <= 0) {
+                    throw new EOFException("File " + filename + " ended at " + (offset + sent) + " of " + totalBytes + " bytes");
+                }
+                recording.chunk(start);
+                sent += transferred;
+                sent(transferred);
+            }
+        }
+    }
+
+    // Fallback for sockets without a channel, e.g. SSL sockets.
+    private void sendWithStream(OutputStream socketOutput, long offset, long length) throws IOException {
+        try (RandomAccessFile fileInput = new RandomAccessFile(filename, "r")) {
+            fileInput.seek(offset);
+            byte[] buffer = new byte[bufferSize];
+            long remaining = length;
+            while (remaining > 0) {
+                int bytesRead = fileInput.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead == -1) {
+                    throw new EOFException("File " + filename + " ended at " + (offset + length - remaining) + " of " + totalBytes + " bytes");
+                }
+                long start = System.nanoTime();
                 socketOutput.write(buffer, 0, bytesRead);
-                bytesSent += bytesRead;
+                recording.chunk(start);
+                remaining -= bytesRead;
+                sent(bytesRead);
             }
         }
     }
 
+    /**
+     * Adds bytes written by a stripe to the progress of the transfer.
+     */
+    void addSent(long bytes) {
+        progress.update(bytesSent.addAndGet(bytes));
+        recording.bytes(bytes);
+    }
+
+    /**
+     * Records the time a connection of the transfer took to be established, since the given System.nanoTime().
+     */
+    void connected(long startNanos) {
+        METRICS.connected(startNanos);
+    }
+
+    /**
+     * Records the latency of a chunk a stripe has written to the socket, since the given System.nanoTime().
+     */
+    void chunkSent(long startNanos) {
+        recording.chunk(startNanos);
+    }
+
+    /**
+     * Adds the bytes the receiver of a resumable transfer already has, which do not count towards the throughput.
+     */
+    void addResumed(long committed) {
+        progress.start(bytesSent.addAndGet(committed));
+    }
+
+    /**
+     * Adds bytes a stripe has written to the socket to the progress, and waits if the transfer is over its rate limit.
+     */
+    private void sent(long bytes) throws IOException {
+        addSent(bytes);
+        TokenBucket.acquire(GLOBAL_RATE_LIMITER, rateLimiter, bytes);
+    }
+
+    /**
+     * Takes bandwidth for bytes a stripe has written to the socket without blocking, for the NIO engine.
+     *
+     * @return how long the stripe has to pause in nanoseconds, 0 if it may continue
+     */
+    long throttle(long bytes) {
+        return Math.max(GLOBAL_RATE_LIMITER.reserve(bytes), rateLimiter.reserve(bytes));
+    }
+
+    /**
+     * Returns how long to wait until both rate limits are out of debt at their current rates.
+     */
+    long throttlePending() {
+        return Math.max(GLOBAL_RATE_LIMITER.pending(), rateLimiter.pending());
+    }
+
+    /**
+     * Limits a chunk to the burst size of the rate limits, so a slow rate is spread over many small chunks.
+     */
+    long maxChunk(long chunk) {
+        return Math.min(GLOBAL_RATE_LIMITER.maxChunk(chunk), rateLimiter.maxChunk(chunk));
+    }
+
+    Path getPath() {
+        return Path.of(filename);
+    }
+
+    InetSocketAddress getAddress() {
+        return new InetSocketAddress(server, port);
+    }
+
+    /**
+     * Remembers that the receiver answered a hello, so small files can be sent to it inline.
+     */
+    void helloAnswered() {
+        HELLO_PEERS.add(getAddress());
+    }
+
+    /**
+     * Returns true if the receiver is known to only speak the legacy protocol.
+     */
+    boolean isLegacyPeer() {
+        return LEGACY_PEERS.contains(getAddress());
+    }
+
     public boolean isSending() {
-        return bytesSent < totalBytes;
+        return bytesSent.get() < totalBytes;
     }
 
     public long getTotalBytes() {
@@ -72,7 +759,197 @@ public class FileSender {
     }
 
     public double getProgress() {
-        // If the total bytes is more than 0, return the ratio of bytes sent to total bytes.
-        return totalBytes > 0 ? (double) bytesSent / totalBytes : 1.0;
+        // If the total bytes is more than 0, return the ratio of bytes sent to total bytes across all stripes.
+        return totalBytes > 0 ? (double) bytesSent.get() / totalBytes : 1.0;
+    }
+
+    /**
+     * Enables or disables the zero-copy transfer path. When disabled, the file is copied through a stream loop.
+     */
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    /**
+     * Sets the size of the buffer used by the stream copy loop, which is used when the socket has no channel.
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be at least 1, was " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Sets the number of parallel connections the file is split over.
+     *
+     * @param stripeCount the number of stripes, from 1 to TransferMetadata.MAX_STRIPE_COUNT
+     */
+    public void setStripeCount(int stripeCount) {
+        if (stripeCount < 1 || stripeCount > TransferMetadata.MAX_STRIPE_COUNT) {
+            throw new IllegalArgumentException("Stripe count must be from 1 to " + TransferMetadata.MAX_STRIPE_COUNT + ", was " + stripeCount);
+        }
+        this.stripeCount = stripeCount;
+    }
+
+    /**
+     * Makes the transfer resumable. The receiver keeps what it has received when the connection drops,
+     * and sending the same file again continues from there. Resumable transfers use a single connection
+     * and cannot be checksummed, see setChecksummed.
+     */
+    public void setResumable(boolean resumable) {
+        checkNotChecksummed(resumable, "resumable");
+        this.resumable = resumable;
+    }
+
+    /**
+     * Sends only the differences to the copy of the file the receiver already has, rsync style.
+     * If the receiver has no copy the whole file is sent. Delta transfers use a single connection
+     * and are always sent on the blocking path. They cannot be checksummed, see setChecksummed.
+     */
+    public void setDelta(boolean delta) {
+        checkNotChecksummed(delta, "delta");
+        this.delta = delta;
+    }
+
+    /**
+     * Sends only the chunks of the file the receiver has not seen before, in this or any earlier file.
+     * Deduplicated transfers use a single connection and are always sent on the blocking path.
+     * They cannot be checksummed, see setChecksummed.
+     */
+    public void setDedup(boolean dedup) {
+        checkNotChecksummed(dedup, "deduplicated");
+        this.dedup = dedup;
+    }
+
+    /**
+     * Compresses the content where that pays off, see CompressedFraming. The receiver may decline the codec,
+     * in which case the content is sent uncompressed. Compressed transfers are always sent on the blocking path.
+     */
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    /**
+     * Verifies the content while it streams, with a CRC32C per chunk and a hash of the whole file,
+     * and resends only the chunks that fail, see ChecksummedTransfer. Compressed transfers rely on the checksum of
+     * the compressed frames. Checksummed transfers are always sent on the blocking path.
+     * <p>
+     * Delta, deduplicated and directory transfers verify what they send with checks of their own, and a resumable
+     * transfer only commits content up to the first gap, which a chunk that is resent later would leave behind.
+     * None of them can be checksummed.
+     *
+     * @throws IllegalArgumentException if the transfer is resumable, delta, deduplicated or of a directory
+     */
+    public void setChecksummed(boolean checksummed) {
+        if (checksummed && (resumable || delta || dedup || new File(filename).isDirectory())) {
+            throw new IllegalArgumentException("Resumable, delta, deduplicated and directory transfers cannot be checksummed");
+        }
+        this.checksummed = checksummed;
+    }
+
+    private void checkNotChecksummed(boolean mode, String name) {
+        if (mode && checksummed) {
+            throw new IllegalArgumentException("Checksummed transfers cannot be " + name);
+        }
+    }
+
+    /**
+     * Builds a Merkle tree manifest of the file before sending it, see MerkleManifest. The receiver checks the
+     * received file against it and fetches only the segments that differ. Delta, deduplicated and batch transfers
+     * have checks of their own and do not use a manifest. Transfers with a manifest are always sent on the blocking path.
+     */
+    public void setManifest(boolean manifestRequested) {
+        this.manifestRequested = manifestRequested;
+    }
+
+    /**
+     * Subscribes to progress events of this transfer, see ProgressListener. Without listeners, reporting progress
+     * costs nothing while sending.
+     */
+    public void addProgressListener(ProgressListener listener) {
+        progress.addListener(listener);
+    }
+
+    public void removeProgressListener(ProgressListener listener) {
+        progress.removeListener(listener);
+    }
+
+    /**
+     * Limits the bandwidth of this transfer over all of its stripes. Can be changed while the file is being sent.
+     *
+     * @param bytesPerSecond the rate, or TokenBucket.UNLIMITED
+     */
+    public void setRateLimit(long bytesPerSecond) {
+        rateLimiter.setRate(bytesPerSecond);
+    }
+
+    /**
+     * Returns the rate limiter of this transfer, which also measures its throughput.
+     */
+    public TokenBucket getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Returns the rate limiter shared by all transfers sent from this process. Every transfer is held to both
+     * its own limit and the global one.
+     */
+    public static TokenBucket getGlobalRateLimiter() {
+        return GLOBAL_RATE_LIMITER;
+    }
+
+    /**
+     * Returns the metrics of all transfers sent by this process.
+     */
+    public static TransferMetrics getMetrics() {
+        return METRICS;
+    }
+
+    /**
+     * Sends the file on the event loops of a non-blocking engine instead of on blocking threads.
+     * The engine is shared and is not closed by the sender.
+     */
+    public void setEngine(NioTransferEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Sends the file over sessions that stay open for the next transfers to the same receiver, see SessionPool,
+     * instead of opening a connection per stripe. Receivers that do not support sessions get connections of their own.
+     * Transfers with keep-alive are always sent on the blocking path. Without keep-alive, sessions are still used if
+     * the session pool has a key, see SessionPool.setKey.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Returns true if the file is sent over pooled sessions: with keep-alive, and whenever the sessions authenticate
+     * with a key, as receivers with a key only accept transfers over authenticated sessions.
+     */
+    private boolean useSessions() {
+        return keepAlive || SESSIONS.hasKey();
+    }
+
+    /**
+     * Sets the size up to which files are sent inline: the metadata and the content go out in a single write,
+     * without waiting for the receiver to answer the hello first, and the receiver confirms the file once it has
+     * been written. Compressed, checksummed and other special transfers are never sent inline.
+     *
+     * @param inlineThreshold the size in bytes, 0 to disable inline transfers
+     */
+    public void setInlineThreshold(int inlineThreshold) {
+        if (inlineThreshold < 0 || inlineThreshold > FileReceiver.MAX_INLINE_SIZE) {
+            throw new IllegalArgumentException("Inline threshold must be between 0 and " + FileReceiver.MAX_INLINE_SIZE + ", was " + inlineThreshold);
+        }
+        this.inlineThreshold = inlineThreshold;
+    }
+
+    /**
+     * Returns the pool of the sessions of all transfers sent with keep-alive from this process.
+     */
+    public static SessionPool getSessionPool() {
+        return SESSIONS;
     }
-}
\ No newline at end of file
+}
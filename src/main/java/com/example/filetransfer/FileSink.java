@@ -0,0 +1,338 @@
+package com.example.filetransfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The FileSink class is the file channel received content is written to. The file is sized to its announced
+ * size when it is opened, and content is written either with positional channel writes or into memory-mapped
+ * windows of WINDOW_SIZE bytes, see Mode. Stripes write their own byte ranges concurrently in both modes.
+ * In MAPPED mode the file is preallocated by writing zeros, so a full disk is reported when the file is opened.
+ * In POSITIONAL mode it is only extended, which leaves it sparse on most file systems until the content is
+ * written, and a full disk surfaces as an IOException of the write that runs out of space.
+ * <p>
+ * How often the content is forced to disk is set by the Durability. A window is dropped once it has been written
+ * completely, so it can be unmapped before the whole file has been received. Java has no way to unmap a window
+ * explicitly, so that happens once the window has been garbage collected, which may be after the file is closed.
+ * Everything else is delegated to the underlying channel, so a FileSink can be used wherever a FileChannel is.
+ */
+public final class FileSink extends FileChannel {
+    static final int WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int PREALLOCATION_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * How received content is written to the file.
+     */
+    public enum Mode {
+        /**
+         * Positional writes through the file channel.
+         */
+        POSITIONAL,
+        /**
+         * Copies into memory-mapped windows of the file, which saves a system call per write.
+         * The file is preallocated when it is opened, as a write to a mapped page that has no disk space behind it
+         * cannot fail cleanly. A write that fails anyway is reported as an IOException.
+         * On Windows a file cannot be renamed or deleted while windows of it are still mapped, so a resumable
+         * transfer may fail to move its .part file into place until they have been garbage collected.
+         */
+        MAPPED
+    }
+
+    /**
+     * When received content is forced to disk. Resumable transfers are additionally forced at every checkpoint.
+     */
+    public enum Durability {
+        /**
+         * Leaves flushing to the operating system.
+         */
+        NONE,
+        /**
+         * Forces the file to disk once it has been received completely.
+         */
+        END,
+        /**
+         * Forces the file to disk every sync interval, and once it has been received completely.
+         */
+        INTERVAL
+    }
+
+    private final FileChannel channel;
+    private final long size;
+    private final Mode mode;
+    private final Durability durability;
+    private final long syncInterval;
+    private final AtomicLong unsynced = new AtomicLong();
+    private final MappedByteBuffer[] windows;
+    private final AtomicLongArray windowWritten;
+    private long position;
+
+    private FileSink(FileChannel channel, long size, Mode mode, Durability durability, long syncInterval) {
+        this.channel = channel;
+        this.size = size;
+        this.mode = mode;
+        this.durability = durability;
+        this.syncInterval = syncInterval;
+        int windowCount = mode == Mode.MAPPED ? (int) ((size + WINDOW_SIZE - 1) / WINDOW_SIZE) : 0;
+        this.windows = new MappedByteBuffer[windowCount];
+        this.windowWritten = new AtomicLongArray(windowCount);
+    }
+
+    /**
+     * Opens a file for received content and sizes it to its announced size, preallocating it in MAPPED mode.
+     *
+     * @param file         the file to write
+     * @param keep         the number of bytes at the start of an existing file to keep, 0 to discard its content
+     * @param size         the announced size of the file
+     * @param syncInterval the number of bytes between two syncs for Durability.INTERVAL
+     */
+    static FileSink open(Path file, long keep, long size, Mode mode, Durability durability, long syncInterval) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            channel.truncate(keep);
+            if (mode == Mode.MAPPED) {
+                preallocate(channel, size);
+            } else if (channel.size() < size) {
+                // Extends the file to its full size, as RandomAccessFile.setLength does.
+                channel.write(ByteBuffer.allocate(1), size - 1);
+            }
+            return new FileSink(channel, size, mode, durability, syncInterval);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Allocates the blocks of the file up to its full size by writing zeros behind the content that is kept.
+    private static void preallocate(FileChannel channel, long size) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocateDirect(PREALLOCATION_CHUNK_SIZE);
+        for (long position = channel.size(); position < size; ) {
+            zeros.clear().limit((int) Math.min(zeros.capacity(), size - position));
+            position += channel.write(zeros, position);
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        int written;
+        if (mode == Mode.MAPPED && position + src.remaining() <= size) {
+            written = src.remaining();
+            long at = position;
+            while (src.hasRemaining()) {
+                int index = (int) (at / WINDOW_SIZE);
+                int windowOffset = (int) (at % WINDOW_SIZE);
+                MappedByteBuffer window = window(index);
+                int length = Math.min(src.remaining(), window.capacity() - windowOffset);
+                try {
+                    window.put(windowOffset, src, src.position(), length);
+                } catch (InternalError e) {
+                    throw mappedWriteFailed(at, e);
+                }
+                src.position(src.position() + length);
+                windowWritten(index, window, length);
+                at += length;
+            }
+        } else {
+            written = channel.write(src, position);
+        }
+        written(written);
+        return written;
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        if (mode != Mode.MAPPED || position >= size) {
+            long transferred = channel.transferFrom(src, position, count);
+            written(transferred);
+            return transferred;
+        }
+        // Reads straight into the window, within a single window per call.
+        int index = (int) (position / WINDOW_SIZE);
+        int windowOffset = (int) (position % WINDOW_SIZE);
+        MappedByteBuffer window = window(index);
+        int length = (int) Math.min(count, window.capacity() - windowOffset);
+        int transferred;
+        try {
+            transferred = src.read(window.slice(windowOffset, length));
+        } catch (InternalError e) {
+            throw mappedWriteFailed(position, e);
+        }
+        if (transferred <= 0) {
+            return 0;
+        }
+        windowWritten(index, window, transferred);
+        written(transferred);
+        return transferred;
+    }
+
+    // A write to a mapped page the file system cannot back, typically because the disk is full, raises an InternalError.
+    private static IOException mappedWriteFailed(long position, InternalError e) {
+        return new IOException("Writing at " + position + " failed, the disk may be full", e);
+    }
+
+    private synchronized MappedByteBuffer window(int index) throws IOException {
+        if (windows[index] == null) {
+            long offset = (long) index * WINDOW_SIZE;
+            windows[index] = channel.map(MapMode.READ_WRITE, offset, Math.min(WINDOW_SIZE, size - offset));
+        }
+        return windows[index];
+    }
+
+    // Drops a window once all of its bytes have been written, forcing it first unless durability is NONE.
+    // It is unmapped when it has been garbage collected.
+    private void windowWritten(int index, MappedByteBuffer window, long bytes) {
+        long after = windowWritten.addAndGet(index, bytes);
+        if (after - bytes < window.capacity() && after >= window.capacity()) {
+            if (durability != Durability.NONE) {
+                window.force();
+            }
+            synchronized (this) {
+                if (windows[index] == window) {
+                    windows[index] = null;
+                }
+            }
+        }
+    }
+
+    private void written(long bytes) throws IOException {
+        if (durability == Durability.INTERVAL && unsynced.addAndGet(bytes) >= syncInterval) {
+            sync();
+        }
+    }
+
+    private synchronized void sync() throws IOException {
+        if (unsynced.get() >= syncInterval) {
+            unsynced.set(0);
+            force(false);
+        }
+    }
+
+    /**
+     * Forces the mapped windows and the channel to disk.
+     */
+    @Override
+    public void force(boolean metaData) throws IOException {
+        for (MappedByteBuffer window : mappedWindows()) {
+            if (window != null) {
+                window.force();
+            }
+        }
+        channel.force(metaData);
+    }
+
+    private synchronized MappedByteBuffer[] mappedWindows() {
+        return windows.clone();
+    }
+
+    /**
+     * Closes the file, forcing it to disk first unless durability is NONE.
+     */
+    @Override
+    protected void implCloseChannel() throws IOException {
+        try {
+            if (durability != Durability.NONE) {
+                force(false);
+            }
+        } finally {
+            synchronized (this) {
+                Arrays.fill(windows, null);
+            }
+            channel.close();
+        }
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        int written = write(src, position);
+        position += written;
+        return written;
+    }
+
+    @Override
+    public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long written = 0;
+        for (int i = offset; i < offset + length; i++) {
+            written += write(srcs[i]);
+        }
+        return written;
+    }
+
+    // Reads go to the channel, which sees what was written to the mapped windows through the shared page cache.
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        return channel.read(dst, position);
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        int read = channel.read(dst, position);
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long read = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int n = read(dsts[i]);
+            if (n <= 0) {
+                return read > 0 ? read : n;
+            }
+            read += n;
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized long position() {
+        return position;
+    }
+
+    @Override
+    public synchronized FileChannel position(long newPosition) {
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public FileChannel truncate(long size) throws IOException {
+        channel.truncate(size);
+        return this;
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return channel.transferTo(position, count, target);
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        return channel.map(mode, position, size);
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        return channel.lock(position, size, shared);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        return channel.tryLock(position, size, shared);
+    }
+}
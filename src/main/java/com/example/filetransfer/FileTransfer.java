@@ -5,16 +5,24 @@ import javafx.scene.Scene;
 import javafx.scene.control.TabPane;
 import javafx.stage.Stage;
 
+import javax.management.JMException;
+import java.lang.management.ManagementFactory;
+
 /**
  * The FileTransfer class represents an application for transferring files between devices.
  * It extends the Application class provided by JavaFX.
  * <p>
- * This class provides methods for starting and stopping the application, as well as accessing the database handler.
+ * This class provides methods for starting and stopping the application, as well as accessing the database handler
+ * and the transfer scheduler.
+ * The metrics of sent and received files are registered with JMX, and printed every n seconds if the system property
+ * filetransfer.metrics.interval is set to n.
  * The application GUI consists of a tab pane with tabs for sending files, receiving files, and displaying log information.
  */
 public class FileTransfer extends Application {
 
     private static DatabaseHandler db;
+    private static final TransferScheduler scheduler = new TransferScheduler();
+    private ReceiveTab receiveTab;
 
     /**
      * Retrieves the instance of the DatabaseHandler class.
@@ -24,11 +32,32 @@ public class FileTransfer extends Application {
         return db;
     }
 
+    /**
+     * Retrieves the scheduler that all files sent from the application are queued with.
+     */
+    public static TransferScheduler getScheduler() {
+        return scheduler;
+    }
+
     public static void main(String[] args) {
         db = DatabaseHandler.getInstance();
+        exposeMetrics();
         launch(args);
     }
 
+    /**
+     * Registers the transfer metrics with the platform MBean server, and schedules snapshots if requested.
+     */
+    static void exposeMetrics() {
+        try {
+            FileSender.getMetrics().registerMBean(ManagementFactory.getPlatformMBeanServer());
+            FileReceiver.getMetrics().registerMBean(ManagementFactory.getPlatformMBeanServer());
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        TransferMetrics.printSnapshotsIfRequested();
+    }
+
     /**
      * Starts the application and sets up the main user interface.
      *
@@ -41,12 +70,12 @@ public class FileTransfer extends Application {
 
         LogTab logTab = new LogTab(primaryStage);
         SendTab sendTab = new SendTab(primaryStage, logTab);
-        ReceiveTab receiveTab = new ReceiveTab(primaryStage, logTab);
+        receiveTab = new ReceiveTab(primaryStage, logTab);
 
 
         tabPane.getTabs().addAll(sendTab, receiveTab, logTab);
 
-        Scene scene = new Scene(tabPane, 550, 250);
+        Scene scene = new Scene(tabPane, 550, 275);
 
         primaryStage.setScene(scene);
         primaryStage.setTitle("File Transfer");
@@ -56,6 +85,9 @@ public class FileTransfer extends Application {
 
     @Override
     public void stop() {
+        receiveTab.stopReceiving();
+        scheduler.close();
+        FileSender.getSessionPool().closeAll();
         db.closeConnection();
     }
 }
\ No newline at end of file
@@ -9,6 +9,7 @@ import java.time.Instant;
  * This class can be used to store and read information about file transfers.
  */
 public class FileTransferRecord {
+    private final long id;
     private final String filename;
     private final long filesize;
     private final String transferDirection;
@@ -17,6 +18,14 @@ public class FileTransferRecord {
     private final String port;
 
     public FileTransferRecord(String filename, long filesize, String transferDirection, Instant timestamp, String server, String port) {
+        this(-1, filename, filesize, transferDirection, timestamp, server, port);
+    }
+
+    /**
+     * @param id the id of the record in the database, -1 for a record that has not been written yet
+     */
+    public FileTransferRecord(long id, String filename, long filesize, String transferDirection, Instant timestamp, String server, String port) {
+        this.id = id;
         this.filename = filename;
         this.filesize = filesize;
         this.transferDirection = transferDirection;
@@ -25,6 +34,10 @@ public class FileTransferRecord {
         this.port = port;
     }
 
+    public long getId() {
+        return id;
+    }
+
     public String getServer() {
         return server;
     }
@@ -0,0 +1,224 @@
+package com.example.filetransfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The Handshake class is the opening exchange of the binary wire protocol, in which both sides advertise their
+ * protocol version and capabilities.
+ * <p>
+ * The sender opens every connection with a hello, immediately followed by the metadata frame of the transfer,
+ * see MetadataCodec. The receiver answers with its own hello, carrying the version and capabilities both sides
+ * have in common, before anything else it sends. The sender does not send content before it has the answer,
+ * except for the inline transfer of a small file, which the receiver answers once it has written the file.
+ * <p>
+ * The hello starts with MAGIC, which a legacy peer reads as the two byte length of a JSON metadata string
+ * that does not parse, so a legacy receiver closes the connection and the sender falls back to the legacy JSON
+ * metadata. A receiver recognizes a legacy sender by the metadata length that is read instead of MAGIC.
+ */
+public final class Handshake {
+    /**
+     * The protocol version spoken by this side. Version 1 is the legacy JSON metadata.
+     */
+    public static final int VERSION = 2;
+
+    public static final int RESUME = 1;
+    public static final int STRIPES = 1 << 1;
+    public static final int DELTA = 1 << 2;
+    public static final int DEDUP = 1 << 3;
+    public static final int COMPRESSION = 1 << 4;
+    public static final int BATCH = 1 << 5;
+    public static final int CHECKSUMS = 1 << 6;
+    public static final int MANIFEST = 1 << 7;
+    // Not required by inline transfers, a receiver without it receives them as plain transfers without answering.
+    public static final int INLINE = 1 << 8;
+    // Compressed frames of a checksummed transfer carry a CRC32C, see CompressedFraming.
+    public static final int FRAME_CHECKSUMS = 1 << 9;
+    static final int SUPPORTED = RESUME | STRIPES | DELTA | DEDUP | COMPRESSION | BATCH | CHECKSUMS | MANIFEST | INLINE
+            | FRAME_CHECKSUMS;
+    // Only ever in the answer of a receiver with a session key, which accepts transfers over authenticated sessions only.
+    static final int SESSION_REQUIRED = 1 << 30;
+    // Only ever in the answer of a receiver that failed before it could answer the hello, e.g. on invalid metadata.
+    // Without it the sender could not tell the closed connection from a legacy receiver.
+    static final int REJECTED = 1 << 29;
+
+    // A writeUTF of "FTP2": a legacy receiver reads a four character string that is not JSON.
+    private static final byte[] MAGIC = {0, 4, 'F', 'T', 'P', '2'};
+    static final int MAGIC_LENGTH = 4;
+    // Version, capabilities and the largest frame accepted.
+    static final int HELLO_BODY_SIZE = 1 + Integer.BYTES + Integer.BYTES;
+    static final int HELLO_SIZE = MAGIC.length + HELLO_BODY_SIZE;
+    static final int REPLY_SIZE = HELLO_BODY_SIZE;
+
+    static final Handshake LOCAL = new Handshake(VERSION, SUPPORTED, CompressedFraming.FRAME_SIZE);
+
+    private final int version;
+    private final int capabilities;
+    private final int maxFrameSize;
+
+    Handshake(int version, int capabilities, int maxFrameSize) {
+        this.version = version;
+        this.capabilities = capabilities;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Returns true if the bytes read where a legacy sender writes its metadata length are the start of a hello.
+     *
+     * @param length the two byte length read from the connection
+     * @param bytes  the first MAGIC_LENGTH bytes after it
+     */
+    static boolean isHello(int length, byte[] bytes) {
+        if (length != MAGIC_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC_LENGTH; i++) {
+            if (bytes[i] != MAGIC[i + 2]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the hello including MAGIC.
+     */
+    void writeHello(ByteBuffer buffer) {
+        buffer.put(MAGIC);
+        writeReply(buffer);
+    }
+
+    /**
+     * Writes the answer of the receiver, a hello without MAGIC.
+     */
+    void writeReply(ByteBuffer buffer) {
+        buffer.put((byte) version).putInt(capabilities).putInt(maxFrameSize);
+    }
+
+    /**
+     * Writes the answer of a receiver that rejects a transfer because it did not come over an authenticated session.
+     */
+    static void writeSessionRequired(ByteBuffer buffer) {
+        new Handshake(VERSION, SESSION_REQUIRED, CompressedFraming.FRAME_SIZE).writeReply(buffer);
+    }
+
+    /**
+     * Writes the answer of a receiver that failed to accept the hello or the metadata of a transfer.
+     */
+    static void writeRejected(ByteBuffer buffer) {
+        new Handshake(VERSION, REJECTED, CompressedFraming.FRAME_SIZE).writeReply(buffer);
+    }
+
+    /**
+     * Checks that the answer of the receiver does not reject the transfer or the session.
+     *
+     * @throws IOException if the receiver failed to accept the hello
+     */
+    void checkAccepted() throws IOException {
+        if (supports(REJECTED)) {
+            throw new IOException("The receiver rejected the transfer, its log tells why");
+        }
+    }
+
+    /**
+     * Reads a hello after MAGIC, or the answer of the receiver.
+     */
+    static Handshake read(ByteBuffer buffer) throws IOException {
+        int version = buffer.get() & 0xFF;
+        int capabilities = buffer.getInt();
+        int maxFrameSize = buffer.getInt();
+        if (version < 2 || maxFrameSize <= 0) {
+            throw new IOException("Invalid hello for protocol version " + version);
+        }
+        return new Handshake(version, capabilities, maxFrameSize);
+    }
+
+    /**
+     * Returns what this side and the remote side have in common.
+     */
+    Handshake negotiate(Handshake remote) {
+        return new Handshake(Math.min(version, remote.version), capabilities & remote.capabilities,
+                Math.min(maxFrameSize, remote.maxFrameSize));
+    }
+
+    /**
+     * Checks that the receiver supports everything the transfer needs.
+     *
+     * @throws IOException if a required capability is missing
+     */
+    void require(TransferMetadata metadata) throws IOException {
+        checkAccepted();
+        if (supports(SESSION_REQUIRED)) {
+            throw new IOException("The receiver only accepts transfers over authenticated sessions, set "
+                    + TransferSession.KEY_PROPERTY);
+        }
+        int missing = requiredCapabilities(metadata) & ~capabilities;
+        if (missing != 0) {
+            throw new IOException("The receiver does not support the requested transfer mode, missing capabilities 0x"
+                    + Integer.toHexString(missing));
+        }
+    }
+
+    private static int requiredCapabilities(TransferMetadata metadata) {
+        int required = 0;
+        if (metadata.isResumable()) {
+            required |= RESUME;
+        }
+        if (metadata.isStriped()) {
+            required |= STRIPES;
+        }
+        if (metadata.isDelta()) {
+            required |= DELTA;
+        }
+        if (metadata.isDeduplicated()) {
+            required |= DEDUP;
+        }
+        if (metadata.getCodec() != null) {
+            required |= COMPRESSION;
+        }
+        if (metadata.isBatch()) {
+            required |= BATCH;
+        }
+        if (metadata.isChecksummed()) {
+            required |= CHECKSUMS;
+        }
+        if (metadata.getManifestRoot() != null) {
+            required |= MANIFEST;
+        }
+        return required;
+    }
+
+    /**
+     * Encodes what the sender writes when it opens a connection: the hello and the metadata frame.
+     */
+    static ByteBuffer header(TransferMetadata metadata) {
+        ByteBuffer buffer = ByteBuffer.allocate(HELLO_SIZE + MetadataCodec.frameSize(metadata));
+        LOCAL.writeHello(buffer);
+        MetadataCodec.encode(metadata, buffer);
+        return buffer.flip();
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public boolean supports(int capability) {
+        return (capabilities & capability) == capability;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Thrown by a sender when the receiver closes the connection instead of answering the hello,
+     * which is how a receiver that only speaks the legacy JSON metadata reacts.
+     */
+    static final class LegacyPeerException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        LegacyPeerException(Throwable cause) {
+            super("The receiver does not speak protocol version " + VERSION, cause);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.filetransfer;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The LatencyHistogram class counts durations in nanoseconds into buckets of fixed relative width.
+ * <p>
+ * Every power of two is split into SUB_BUCKETS buckets, so a percentile is accurate to within an eighth of its value
+ * from nanoseconds up to centuries, with a fixed number of counters. Recording a value updates a few atomic counters
+ * and does not allocate or lock, so it can be called from the copy loop of every transfer at once.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values below SUB_BUCKETS have a bucket each, every power of two above has SUB_BUCKETS buckets.
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration. Negative durations, from a clock that went backwards, count as 0.
+     */
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long previous = max.get();
+        while (value > previous && !max.compareAndSet(previous, value)) {
+            previous = max.get();
+        }
+    }
+
+    /**
+     * Records the time that has passed since the given System.nanoTime().
+     */
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    // Also used for the file size distribution of the transfer statistics, see TransferRollup.
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // The largest value that falls into a bucket.
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+
+    /**
+     * Returns the value below which the given fraction of the recorded values fall, 0 if nothing has been recorded.
+     * The counters are read one by one while values may still be recorded, so the result is approximate.
+     */
+    long percentile(double fraction) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Takes a copy of the statistics of the histogram, in milliseconds.
+     */
+    Snapshot snapshot() {
+        long total = count.get();
+        return new Snapshot(total, total > 0 ? toMillis(sum.get()) / total : 0, toMillis(percentile(0.5)),
+                toMillis(percentile(0.9)), toMillis(percentile(0.99)), toMillis(max.get()));
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * The statistics of a histogram at one point in time, in milliseconds.
+     * Exposed over JMX as composite data.
+     */
+    public static final class Snapshot {
+        private final long count;
+        private final double mean;
+        private final double median;
+        private final double percentile90;
+        private final double percentile99;
+        private final double max;
+
+        Snapshot(long count, double mean, double median, double percentile90, double percentile99, double max) {
+            this.count = count;
+            this.mean = mean;
+            this.median = median;
+            this.percentile90 = percentile90;
+            this.percentile99 = percentile99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getMedian() {
+            return median;
+        }
+
+        public double getPercentile90() {
+            return percentile90;
+        }
+
+        public double getPercentile99() {
+            return percentile99;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        JSONObject toJson() {
+            return new JSONObject()
+                    .put("count", count)
+                    .put("mean", mean)
+                    .put("median", median)
+                    .put("p90", percentile90)
+                    .put("p99", percentile99)
+                    .put("max", max);
+        }
+    }
+}
@@ -3,9 +3,16 @@ package com.example.filetransfer;
 /**
  * Use this class to launch the application to avoid the following error:
  * https://stackoverflow.com/questions/54806788/javafx-cant-build-artifact-fxdeploy-is-not-available-in-this-jdk
+ * <p>
+ * When the first argument is a command such as send, receive or serve, the command line is run instead,
+ * without loading JavaFX, see CommandLine.
  */
 public class Launcher {
     public static void main(String[] args) {
-        FileTransfer.main(args);
+        if (args.length > 0 && CommandLine.isCommand(args[0])) {
+            CommandLine.main(args);
+        } else {
+            FileTransfer.main(args);
+        }
     }
 }
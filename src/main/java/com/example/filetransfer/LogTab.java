@@ -1,67 +1,168 @@
 package com.example.filetransfer;
 
+import javafx.application.Platform;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
 import javafx.scene.control.Tab;
-import javafx.scene.control.TextArea;
+import javafx.scene.layout.BorderPane;
 import javafx.stage.Stage;
 
 import java.sql.SQLException;
 import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * A class representing a tab for displaying log information.
  * The LogTab extends the Tab class and provides methods for logging sent and received file transfers.
+ * <p>
+ * Transfers are listed newest first. Old transfers are loaded from the database one page at a time on a background
+ * thread, and the next page is only loaded when the list is scrolled close to its end. The list view only creates
+ * cells for the rows that are visible, so a long history costs neither startup time nor memory.
+ * A summary of the last days above the list is read from the statistics tables rather than the history.
  */
 public class LogTab extends Tab {
+    // The number of transfers loaded from the database at a time.
+    private static final int PAGE_SIZE = 200;
+    // The next page is loaded once a row this close to the end of the list is shown.
+    private static final int PREFETCH_ROWS = 50;
+    // The number of days the summary covers, today included.
+    private static final int SUMMARY_DAYS = 7;
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+    private static final ExecutorService HISTORY_LOADER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "history-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    private final TextArea logTextArea = new TextArea();
+    private final ListView<FileTransferRecord> logListView = new ListView<>();
+    private final Label summaryLabel = new Label();
+    // Only accessed on the FX thread.
+    private FileTransferRecord lastLoaded;
+    private boolean loading;
+    private boolean historyComplete;
 
     public LogTab(Stage stage) {
         setText("Log");
-        logTextArea.setEditable(false);
-        setContent(logTextArea);
-
-        // Load old transfers from the database when the program starts.
-        try {
-            List<FileTransferRecord> transfers = DatabaseHandler.getInstance().getAllFileTransfers();
-            for (FileTransferRecord record : transfers) {
-                if (record.getTransferDirection().equals("send")) {
-                    logOldSent(record.getFilename(), record.getServer(), record.getPort(), record.getTimestamp());
-                } else if (record.getTransferDirection().equals("receive")) {
-                    logOldReceived(record.getFilename(), record.getServer(), record.getPort(), record.getTimestamp());
+        logListView.setPlaceholder(new Label("No transfers yet"));
+        logListView.setCellFactory(listView -> new TransferCell());
+        BorderPane content = new BorderPane(logListView);
+        content.setTop(summaryLabel);
+        setContent(content);
+
+        // Load the most recent transfers from the database when the program starts.
+        loadNextPage();
+        loadSummary();
+    }
+
+    /**
+     * Loads the number of transfers, bytes and the 95th percentile of the file size of the last days.
+     */
+    private void loadSummary() {
+        HISTORY_LOADER.execute(() -> {
+            LocalDate to = LocalDate.now();
+            LocalDate from = to.minusDays(SUMMARY_DAYS - 1);
+            try {
+                DatabaseHandler db = DatabaseHandler.getInstance();
+                StringBuilder summary = new StringBuilder("Last " + SUMMARY_DAYS + " days:");
+                List<TransferStatistics> directions = db.getDirectionStatistics(from, to);
+                for (TransferStatistics direction : directions) {
+                    summary.append(String.format(" %d %s (%s),", direction.getTransfers(),
+                            direction.getTransferDirection().equals("send") ? "sent" : "received",
+                            formatSize(direction.getTotalBytes())));
                 }
+                if (directions.isEmpty()) {
+                    summary.append(" no transfers");
+                } else {
+                    summary.append(" 95% of files up to ").append(formatSize(db.getSizePercentile(from, to, null, null, 0.95)));
+                }
+                Platform.runLater(() -> summaryLabel.setText(summary.toString()));
+            } catch (SQLException e) {
+                Platform.runLater(() -> summaryLabel.setText("Error loading transfer statistics from database: " + e.getMessage()));
             }
-        } catch (SQLException e) {
-            logTextArea.appendText("Error loading transfer history from database: " + e.getMessage() + "\n");
-        }
+        });
     }
 
-    // Below are methods for logging sent and received file transfers.
-    // The logOldSent() and logOldReceived() methods are used to load old transfers from the database when the program starts.
-    // The logSent() and logReceived() methods are used to log new transfers when they occur.
+    private static String formatSize(long bytes) {
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        return String.format("%.1f MB", bytes / (1024.0 * 1024));
+    }
 
-    private void logOldSent(String filename, String server, String port, Instant timestamp) {
-        String ts = java.time.LocalDateTime.ofInstant(timestamp,
-                java.time.ZoneId.systemDefault()).format(java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-        logTextArea.appendText("[" + ts + "]" + " Sent " + filename + " to " + server + ":" + port + "\n");
+    /**
+     * Loads the page of transfers after the last one loaded, unless a page is already being loaded
+     * or all transfers have been loaded.
+     */
+    private void loadNextPage() {
+        if (loading || historyComplete) {
+            return;
+        }
+        loading = true;
+        FileTransferRecord after = lastLoaded;
+        HISTORY_LOADER.execute(() -> {
+            try {
+                List<FileTransferRecord> page = DatabaseHandler.getInstance().getFileTransferPage(after, PAGE_SIZE);
+                Platform.runLater(() -> showPage(page));
+            } catch (SQLException e) {
+                Platform.runLater(() -> {
+                    loading = false;
+                    historyComplete = true;
+                    logListView.setPlaceholder(new Label("Error loading transfer history from database: " + e.getMessage()));
+                });
+            }
+        });
     }
 
-    private void logOldReceived(String filename, String server, String port, Instant timestamp) {
-        String ts = java.time.LocalDateTime.ofInstant(timestamp,
-                java.time.ZoneId.systemDefault()).format(java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-        logTextArea.appendText("[" + ts + "]" + " Received " + filename + " from " + server + ":" + port + "\n");
+    private void showPage(List<FileTransferRecord> page) {
+        loading = false;
+        historyComplete = page.size() < PAGE_SIZE;
+        if (!page.isEmpty()) {
+            lastLoaded = page.get(page.size() - 1);
+            logListView.getItems().addAll(page);
+        }
     }
 
-    private String timeDate() {
-        return java.time.LocalDateTime.now().format(java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+    private static String format(FileTransferRecord record) {
+        String timestamp = TIMESTAMP_FORMAT.format(record.getTimestamp());
+        if (record.getTransferDirection().equals("send")) {
+            return "[" + timestamp + "]" + " Sent " + record.getFilename() + " to " + record.getServer() + ":" + record.getPort();
+        }
+        return "[" + timestamp + "]" + " Received " + record.getFilename() + " from " + record.getServer() + ":" + record.getPort();
     }
 
+    // Below are methods for logging sent and received file transfers when they occur. They must be called on the FX thread.
+
     public void logSent(String filename, String server, int port) {
-        logTextArea.appendText("[" + timeDate() + "]" + " Sent " + filename + " to " + server + ":" + port + "\n");
+        log(new FileTransferRecord(filename, 0, "send", Instant.now(), server, String.valueOf(port)));
     }
 
     public void logReceived(String filename, String server, int port) {
-        logTextArea.appendText("[" + timeDate() + "]" + " Received " + filename + " from " + server + ":" + port + "\n");
+        log(new FileTransferRecord(filename, 0, "receive", Instant.now(), server, String.valueOf(port)));
+    }
+
+    private void log(FileTransferRecord record) {
+        logListView.getItems().add(0, record);
+        loadSummary();
     }
 
+    /**
+     * Shows a transfer, and loads the next page of the history when it comes close to the end of the list.
+     */
+    private final class TransferCell extends ListCell<FileTransferRecord> {
+        @Override
+        protected void updateItem(FileTransferRecord record, boolean empty) {
+            super.updateItem(record, empty);
+            setText(empty || record == null ? null : format(record));
+            if (!empty && getIndex() >= getListView().getItems().size() - PREFETCH_ROWS) {
+                loadNextPage();
+            }
+        }
+    }
 }
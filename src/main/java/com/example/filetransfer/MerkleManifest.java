@@ -0,0 +1,302 @@
+package com.example.filetransfer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The MerkleManifest class is a Merkle tree over the segments of a file, used to check a received file against
+ * the sender's copy and to find the parts that differ without hashing or sending the whole file again.
+ * <p>
+ * The leaves are the SHA-256 hashes of segments of SEGMENT_SIZE bytes, and every inner node is the SHA-256 of its
+ * two children. A node without a sibling is promoted to the next level unchanged. Leaves are hashed in parallel on
+ * the common ForkJoinPool, each task hashing a memory-mapped segment, so building the manifest of a large file
+ * is bound by the disk rather than by a single core.
+ * <p>
+ * The sender puts the root into the transfer metadata. Once the receiver has the whole file, it builds its own tree
+ * and compares the roots. On a mismatch it descends the tree, asking the sender for the hashes of the children of
+ * every differing node, one level per round trip, and finally for the content of the differing segments only.
+ * The receiver sends:
+ * <pre>
+ * HASHES,   int level, int count, count node indices: the sender answers with their hashes
+ * SEGMENTS, int count, count segment indices: the sender answers with the content of the segments
+ * DONE,     boolean: whether the roots match after the repair
+ * </pre>
+ */
+public final class MerkleManifest {
+    static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    static final int HASH_SIZE = 32;
+    // Leaves hashed by a single fork-join task before it stops splitting.
+    private static final int LEAVES_PER_TASK = 4;
+
+    private static final byte DONE = 0;
+    private static final byte HASHES = 1;
+    private static final byte SEGMENTS = 2;
+
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+
+    private final long size;
+    // levels[0] holds the leaves, the last level holds the root.
+    private final byte[][][] levels;
+
+    private MerkleManifest(long size, byte[][] leaves) {
+        this.size = size;
+        List<byte[][]> tree = new ArrayList<>();
+        tree.add(leaves);
+        while (tree.get(tree.size() - 1).length > 1) {
+            byte[][] children = tree.get(tree.size() - 1);
+            tree.add(new byte[(children.length + 1) / 2][]);
+        }
+        this.levels = tree.toArray(new byte[0][][]);
+        for (int level = 1; level < levels.length; level++) {
+            for (int i = 0; i < levels[level].length; i++) {
+                levels[level][i] = combine(level, i);
+            }
+        }
+    }
+
+    /**
+     * Builds the manifest of a file, hashing its segments in parallel.
+     */
+    public static MerkleManifest build(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            byte[][] leaves = new byte[segmentCount(size)][];
+            try {
+                ForkJoinPool.commonPool().invoke(new LeafTask(channel, size, leaves, 0, leaves.length));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return new MerkleManifest(size, leaves);
+        }
+    }
+
+    public String getRoot() {
+        return HexFormat.of().formatHex(levels[levels.length - 1][0]);
+    }
+
+    /**
+     * Hashes a range of leaves, splitting it between forked tasks until it is small enough.
+     */
+    private static final class LeafTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long size;
+        private final byte[][] leaves;
+        private final int from;
+        private final int to;
+
+        private LeafTask(FileChannel channel, long size, byte[][] leaves, int from, int to) {
+            this.channel = channel;
+            this.size = size;
+            this.leaves = leaves;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > LEAVES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new LeafTask(channel, size, leaves, from, middle), new LeafTask(channel, size, leaves, middle, to));
+                return;
+            }
+            MessageDigest sha256 = sha256();
+            for (int i = from; i < to; i++) {
+                try {
+                    long offset = (long) i * SEGMENT_SIZE;
+                    MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, offset, segmentLength(size, i));
+                    leaves[i] = hashLeaf(sha256, segment);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    private static byte[] hashLeaf(MessageDigest sha256, ByteBuffer segment) {
+        sha256.update(LEAF_PREFIX);
+        sha256.update(segment);
+        return sha256.digest();
+    }
+
+    // Computes an inner node from its children, a node without a sibling is promoted unchanged.
+    private byte[] combine(int level, int index) {
+        byte[][] children = levels[level - 1];
+        int left = 2 * index;
+        if (left + 1 >= children.length) {
+            return children[left];
+        }
+        MessageDigest sha256 = sha256();
+        sha256.update(NODE_PREFIX);
+        sha256.update(children[left]);
+        sha256.update(children[left + 1]);
+        return sha256.digest();
+    }
+
+    /**
+     * Replaces a leaf after its segment has been repaired and recomputes the nodes above it.
+     */
+    private void updateLeaf(int index, byte[] hash) {
+        levels[0][index] = hash;
+        for (int level = 1; level < levels.length; level++) {
+            index /= 2;
+            levels[level][index] = combine(level, index);
+        }
+    }
+
+    /**
+     * Compares this manifest of a received file with the root sent by the sender, finds the segments that differ
+     * by descending the tree, and receives and writes those segments again.
+     *
+     * @param expectedRoot the root of the sender's manifest
+     * @param file         the received file, open for writing
+     * @return true if the roots match, after repairing the file if needed
+     */
+    boolean reconcile(String expectedRoot, FileChannel file, DataInputStream input, DataOutputStream output) throws IOException {
+        List<Integer> differing = new ArrayList<>();
+        if (!getRoot().equals(expectedRoot)) {
+            differing.add(0);
+        }
+
+        byte[] remote = new byte[HASH_SIZE];
+        for (int level = levels.length - 1; level > 0 && !differing.isEmpty(); level--) {
+            List<Integer> children = new ArrayList<>();
+            for (int node : differing) {
+                children.add(2 * node);
+                if (2 * node + 1 < levels[level - 1].length) {
+                    children.add(2 * node + 1);
+                }
+            }
+            output.writeByte(HASHES);
+            output.writeInt(level - 1);
+            writeIndices(output, children);
+            output.flush();
+
+            differing = new ArrayList<>();
+            for (int child : children) {
+                input.readFully(remote);
+                if (!Arrays.equals(remote, levels[level - 1][child])) {
+                    differing.add(child);
+                }
+            }
+        }
+
+        if (!differing.isEmpty()) {
+            output.writeByte(SEGMENTS);
+            writeIndices(output, differing);
+            output.flush();
+
+            MessageDigest sha256 = sha256();
+            ByteBuffer buffer = ByteBuffer.allocate(SEGMENT_SIZE);
+            for (int segment : differing) {
+                buffer.clear().limit(segmentLength(size, segment));
+                input.readFully(buffer.array(), 0, buffer.limit());
+                long offset = (long) segment * SEGMENT_SIZE;
+                while (buffer.hasRemaining()) {
+                    file.write(buffer, offset + buffer.position());
+                }
+                updateLeaf(segment, hashLeaf(sha256, buffer.flip()));
+            }
+        }
+
+        boolean matches = getRoot().equals(expectedRoot);
+        output.writeByte(DONE);
+        output.writeBoolean(matches);
+        output.flush();
+        return matches;
+    }
+
+    /**
+     * Answers the requests of a receiver reconciling its copy of the file with this manifest.
+     *
+     * @param file the file this manifest was built from
+     * @return true if the receiver reports that the roots match
+     */
+    boolean serve(FileChannel file, DataInputStream input, DataOutputStream output) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SEGMENT_SIZE);
+        while (true) {
+            byte request = input.readByte();
+            switch (request) {
+                case HASHES:
+                    int level = input.readInt();
+                    if (level < 0 || level >= levels.length) {
+                        throw new IOException("The receiver asked for level " + level + " of " + levels.length);
+                    }
+                    for (int node : readIndices(input, levels[level].length)) {
+                        output.write(levels[level][node]);
+                    }
+                    break;
+                case SEGMENTS:
+                    for (int segment : readIndices(input, levels[0].length)) {
+                        long offset = (long) segment * SEGMENT_SIZE;
+                        buffer.clear().limit(segmentLength(size, segment));
+                        while (buffer.hasRemaining()) {
+                            if (file.read(buffer, offset + buffer.position()) == -1) {
+                                throw new EOFException("File ended at " + (offset + buffer.position()));
+                            }
+                        }
+                        output.write(buffer.array(), 0, buffer.limit());
+                    }
+                    break;
+                case DONE:
+                    return input.readBoolean();
+                default:
+                    throw new IOException("Unknown manifest request " + request);
+            }
+            output.flush();
+        }
+    }
+
+    private static void writeIndices(DataOutputStream output, List<Integer> indices) throws IOException {
+        output.writeInt(indices.size());
+        for (int index : indices) {
+            output.writeInt(index);
+        }
+    }
+
+    private static int[] readIndices(DataInputStream input, int bound) throws IOException {
+        int count = input.readInt();
+        if (count < 0 || count > bound) {
+            throw new IOException("Invalid number of manifest nodes " + count);
+        }
+        int[] indices = new int[count];
+        for (int i = 0; i < count; i++) {
+            indices[i] = input.readInt();
+            if (indices[i] < 0 || indices[i] >= bound) {
+                throw new IOException("Invalid manifest node " + indices[i]);
+            }
+        }
+        return indices;
+    }
+
+    // An empty file has a single empty segment, so every tree has a root.
+    private static int segmentCount(long size) {
+        return (int) Math.max(1, (size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+    }
+
+    private static int segmentLength(long size, int index) {
+        return (int) Math.max(0, Math.min(SEGMENT_SIZE, size - (long) index * SEGMENT_SIZE));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required by every Java platform", e);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.example.filetransfer;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+import java.util.UUID;
+
+/**
+ * The MetadataCodec class encodes TransferMetadata as a binary frame, the successor of the JSON metadata.
+ * <p>
+ * A frame is a four byte length followed by fixed-size fields and the file name:
+ * <pre>
+ * int    frame length, excluding this field
+ * short  flags: resumable, delta, deduplicated, batch, has transfer id, checksummed, has manifest, inline
+ * byte   codec: 0 for none, 1 for deflate
+ * long   size, int stripe index, int stripe count, long offset, long length
+ * long   most and least significant bits of the transfer id, if the flag is set
+ * short  length of the name, followed by the name in UTF-8
+ * byte[] root of the Merkle tree manifest, 32 bytes, if the flag is set
+ * </pre>
+ * Fields are read straight from the buffer the frame was received into, so decoding allocates nothing but the
+ * resulting metadata and its strings. New fields are appended at the end, and decoders skip what they do not know.
+ */
+public final class MetadataCodec {
+    /**
+     * The largest frame a receiver accepts, a name of up to 64 KB plus the fixed fields.
+     */
+    static final int MAX_FRAME_SIZE = 128 * 1024;
+
+    private static final int RESUMABLE = 1;
+    private static final int DELTA = 1 << 1;
+    private static final int DEDUPLICATED = 1 << 2;
+    private static final int BATCH = 1 << 3;
+    private static final int HAS_TRANSFER_ID = 1 << 4;
+    private static final int CHECKSUMMED = 1 << 5;
+    private static final int HAS_MANIFEST = 1 << 6;
+    // Decoders that do not know the flag receive the content as a plain transfer, which it also is.
+    private static final int INLINE = 1 << 7;
+
+    private static final byte CODEC_NONE = 0;
+    private static final byte CODEC_DEFLATE = 1;
+
+    // Flags, codec, size, stripe index and count, offset and length.
+    private static final int FIXED_SIZE = Short.BYTES + 1 + Long.BYTES + 2 * Integer.BYTES + 2 * Long.BYTES;
+
+    private MetadataCodec() {
+    }
+
+    /**
+     * Returns the size of the encoded frame including its length field.
+     */
+    static int frameSize(TransferMetadata metadata) {
+        int size = Integer.BYTES + FIXED_SIZE + Short.BYTES + metadata.getName().getBytes(StandardCharsets.UTF_8).length;
+        if (metadata.getTransferId() != null) {
+            size += 2 * Long.BYTES;
+        }
+        if (metadata.getManifestRoot() != null) {
+            size += MerkleManifest.HASH_SIZE;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the frame for the given metadata.
+     */
+    static void encode(TransferMetadata metadata, ByteBuffer buffer) {
+        byte[] name = metadata.getName().getBytes(StandardCharsets.UTF_8);
+        if (name.length > 0xFFFF) {
+            throw new IllegalArgumentException("File name is longer than 65535 bytes: " + metadata.getName());
+        }
+        int flags = 0;
+        if (metadata.isResumable()) {
+            flags |= RESUMABLE;
+        }
+        if (metadata.isDelta()) {
+            flags |= DELTA;
+        }
+        if (metadata.isDeduplicated()) {
+            flags |= DEDUPLICATED;
+        }
+        if (metadata.isBatch()) {
+            flags |= BATCH;
+        }
+        if (metadata.isChecksummed()) {
+            flags |= CHECKSUMMED;
+        }
+        if (metadata.getManifestRoot() != null) {
+            flags |= HAS_MANIFEST;
+        }
+        if (metadata.isInline()) {
+            flags |= INLINE;
+        }
+        UUID transferId = null;
+        if (metadata.getTransferId() != null) {
+            transferId = UUID.fromString(metadata.getTransferId());
+            flags |= HAS_TRANSFER_ID;
+        }
+
+        buffer.putInt(frameSize(metadata) - Integer.BYTES);
+        buffer.putShort((short) flags);
+        buffer.put(encodeCodec(metadata.getCodec()));
+        buffer.putLong(metadata.getSize());
+        buffer.putInt(metadata.getStripeIndex());
+        buffer.putInt(metadata.getStripeCount());
+        buffer.putLong(metadata.getOffset());
+        buffer.putLong(metadata.getLength());
+        if (transferId != null) {
+            buffer.putLong(transferId.getMostSignificantBits());
+            buffer.putLong(transferId.getLeastSignificantBits());
+        }
+        buffer.putShort((short) name.length);
+        buffer.put(name);
+        if (metadata.getManifestRoot() != null) {
+            buffer.put(HexFormat.of().parseHex(metadata.getManifestRoot()));
+        }
+    }
+
+    /**
+     * Reads and validates the length field of a frame.
+     *
+     * @return the number of bytes of the frame after the length field
+     */
+    static int readFrameLength(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < FIXED_SIZE + Short.BYTES || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid metadata frame of " + length + " bytes");
+        }
+        return length;
+    }
+
+    /**
+     * Reads a frame after its length field. The buffer must hold the complete frame.
+     */
+    static TransferMetadata decode(ByteBuffer buffer) throws IOException {
+        try {
+            int frameEnd = buffer.limit();
+            int flags = buffer.getShort() & 0xFFFF;
+            String codec = decodeCodec(buffer.get());
+            long size = buffer.getLong();
+            int stripeIndex = buffer.getInt();
+            int stripeCount = buffer.getInt();
+            long offset = buffer.getLong();
+            long length = buffer.getLong();
+            String transferId = null;
+            if ((flags & HAS_TRANSFER_ID) != 0) {
+                transferId = new UUID(buffer.getLong(), buffer.getLong()).toString();
+            }
+            int nameLength = buffer.getShort() & 0xFFFF;
+            String name = decodeName(buffer, nameLength);
+            String manifestRoot = null;
+            if ((flags & HAS_MANIFEST) != 0) {
+                byte[] root = new byte[MerkleManifest.HASH_SIZE];
+                buffer.get(root);
+                manifestRoot = HexFormat.of().formatHex(root);
+            }
+            // Fields appended by newer versions are skipped.
+            buffer.position(frameEnd);
+
+            TransferMetadata metadata = new TransferMetadata(name, size, transferId, stripeIndex, stripeCount, offset, length);
+            metadata.setResumable((flags & RESUMABLE) != 0);
+            metadata.setDelta((flags & DELTA) != 0);
+            metadata.setDeduplicated((flags & DEDUPLICATED) != 0);
+            metadata.setBatch((flags & BATCH) != 0);
+            metadata.setChecksummed((flags & CHECKSUMMED) != 0);
+            metadata.setManifestRoot(manifestRoot);
+            metadata.setInline((flags & INLINE) != 0);
+            metadata.setCodec(codec);
+            metadata.validate();
+            return metadata;
+        } catch (RuntimeException e) {
+            throw new IOException("Truncated metadata frame", e);
+        }
+    }
+
+    private static String decodeName(ByteBuffer buffer, int length) {
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        if (buffer.hasArray()) {
+            String name = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return name;
+        }
+        byte[] name = new byte[length];
+        buffer.get(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private static byte encodeCodec(String codec) {
+        if (codec == null) {
+            return CODEC_NONE;
+        }
+        if (CompressedFraming.DEFLATE.equals(codec)) {
+            return CODEC_DEFLATE;
+        }
+        throw new IllegalArgumentException("Unknown codec " + codec);
+    }
+
+    // Codecs of newer versions are kept by number, the receiver then declines them, see CompressedFraming.negotiate.
+    private static String decodeCodec(byte codec) {
+        switch (codec) {
+            case CODEC_NONE:
+                return null;
+            case CODEC_DEFLATE:
+                return CompressedFraming.DEFLATE;
+            default:
+                return "codec-" + codec;
+        }
+    }
+}
@@ -0,0 +1,709 @@
+package com.example.filetransfer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The NioTransferEngine class drives many sending and receiving connections from a small, fixed number of
+ * event loop threads using non-blocking channels and selectors, instead of blocking one thread per connection.
+ * It speaks the same protocol as the blocking path and plugs in behind FileSender.send() and ReceiverServer,
+ * see FileSender.setEngine and ReceiverServer.setEngine.
+ * <p>
+ * Every connection is a small state machine that moves from its metadata, to the file content, to done.
+ * Disk reads and writes are done on the event loop threads, each of which reuses a single direct buffer.
+ * A connection over its rate limit stops selecting for a while instead of blocking its event loop.
+ */
+public class NioTransferEngine implements AutoCloseable {
+    public static final int DEFAULT_EVENT_LOOPS = 2;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final EventLoop[] eventLoops;
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+    /**
+     * Starts the engine with the given number of event loop threads.
+     *
+     * @throws IOException if a selector cannot be opened
+     */
+    public NioTransferEngine(int eventLoopCount) throws IOException {
+        if (eventLoopCount < 1) {
+            throw new IllegalArgumentException("Event loop count must be at least 1, was " + eventLoopCount);
+        }
+        eventLoops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop("transfer-event-loop-" + i);
+        }
+    }
+
+    public NioTransferEngine() throws IOException {
+        this(DEFAULT_EVENT_LOOPS);
+    }
+
+    /**
+     * Sends all stripes of a file, each over its own connection.
+     *
+     * @return a future that completes once every stripe has been sent
+     */
+    CompletableFuture<Void> send(FileSender sender, List<TransferMetadata> stripes) {
+        CompletableFuture<?>[] results = new CompletableFuture<?>[stripes.size()];
+        for (int i = 0; i < results.length; i++) {
+            EventLoop eventLoop = nextEventLoop();
+            SendConnection connection = new SendConnection(sender, stripes.get(i), eventLoop);
+            results[i] = connection.result;
+            eventLoop.execute(connection::connect);
+        }
+        return CompletableFuture.allOf(results);
+    }
+
+    /**
+     * Accepts connections for a receiver server. The server socket channel is closed by the server.
+     */
+    void listen(ReceiverServer server, ServerSocketChannel serverChannel) {
+        Acceptor acceptor = new Acceptor(server, serverChannel, eventLoops[0]);
+        eventLoops[0].register(serverChannel, SelectionKey.OP_ACCEPT, acceptor);
+    }
+
+    private EventLoop nextEventLoop() {
+        return eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+    }
+
+    /**
+     * Stops the event loops. Connections that are still open are closed and fail.
+     */
+    @Override
+    public void close() {
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Callbacks of a channel registered with an event loop. Both are only called on the event loop thread.
+     */
+    private abstract static class Handler {
+        /**
+         * Called when the channel is ready for the operations it is interested in.
+         *
+         * @param buffer a direct buffer owned by the event loop, its content is not kept between calls
+         */
+        abstract void ready(SelectionKey key, ByteBuffer buffer) throws IOException;
+
+        abstract void fail(Exception e);
+
+        // Set while paused for the rate limits, which are checked again at their current rates when the pause is over.
+        private boolean throttled;
+
+        /**
+         * Pauses the channel if the rate limits require a delay, for at most TokenBucket.MAX_WAIT, so a rate that
+         * changes meanwhile applies soon. Must be called on the event loop thread.
+         *
+         * @return true if the channel has been paused
+         */
+        boolean pauseForRateLimits(EventLoop eventLoop, SelectionKey key, long delay) {
+            throttled = delay > 0;
+            if (throttled) {
+                eventLoop.pause(key, Math.min(delay, TokenBucket.MAX_WAIT));
+            }
+            return throttled;
+        }
+
+        boolean isThrottled() {
+            return throttled;
+        }
+    }
+
+    /**
+     * A thread that runs a selector and the handlers of all channels registered with it.
+     */
+    private static final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        // Only accessed on the event loop thread.
+        private final PriorityQueue<ScheduledTask> scheduled = new PriorityQueue<>(Comparator.comparingLong(task -> task.deadline));
+        private volatile boolean running = true;
+
+        private EventLoop(String name) throws IOException {
+            selector = Selector.open();
+            Thread thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // Runs a task on the event loop thread.
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        // Runs a task on the event loop thread after a delay, must be called on the event loop thread.
+        void schedule(Runnable task, long delayNanos) {
+            scheduled.add(new ScheduledTask(System.nanoTime() + delayNanos, task));
+        }
+
+        /**
+         * Stops selecting a key for the given time, then restores the operations it was interested in.
+         * Must be called on the event loop thread.
+         */
+        void pause(SelectionKey key, long delayNanos) {
+            int interestOps = key.interestOps();
+            key.interestOps(0);
+            schedule(() -> {
+                if (key.isValid()) {
+                    key.interestOps(interestOps);
+                }
+            }, delayNanos);
+        }
+
+        void register(SelectableChannel channel, int interestOps, Handler handler) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    channel.register(selector, interestOps, handler);
+                } catch (IOException e) {
+                    handler.fail(e);
+                }
+            });
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    try {
+                        ScheduledTask next = scheduled.peek();
+                        if (next == null) {
+                            selector.select();
+                        } else {
+                            long timeout = TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime());
+                            if (timeout > 0) {
+                                selector.select(timeout);
+                            } else {
+                                selector.selectNow();
+                            }
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        break;
+                    }
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    long now = System.nanoTime();
+                    while (!scheduled.isEmpty() && scheduled.peek().deadline - now <= 0) {
+                        scheduled.poll().task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Handler handler = (Handler) key.attachment();
+                        try {
+                            if (key.isValid()) {
+                                handler.ready(key, buffer);
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            key.cancel();
+                            handler.fail(e);
+                        }
+                    }
+                }
+            } finally {
+                // Also when a handler or task throws an Error, so the transfers on this loop do not wait forever.
+                for (SelectionKey key : selector.keys()) {
+                    ((Handler) key.attachment()).fail(new ClosedChannelException());
+                }
+                closeQuietly(selector);
+            }
+        }
+    }
+
+    private static final class ScheduledTask {
+        private final long deadline;
+        private final Runnable task;
+
+        private ScheduledTask(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Accepts connections for a receiver server and hands them to the event loops.
+     * Accepting is paused while the server is handling its maximum number of connections.
+     */
+    private final class Acceptor extends Handler {
+        private final ReceiverServer server;
+        private final ServerSocketChannel serverChannel;
+        private final EventLoop eventLoop;
+        private SelectionKey key;
+
+        private Acceptor(ReceiverServer server, ServerSocketChannel serverChannel, EventLoop eventLoop) {
+            this.server = server;
+            this.serverChannel = serverChannel;
+            this.eventLoop = eventLoop;
+        }
+
+        @Override
+        void ready(SelectionKey key, ByteBuffer buffer) throws IOException {
+            this.key = key;
+            while (server.tryAcquireConnection()) {
+                SocketChannel channel = serverChannel.accept();
+                if (channel == null) {
+                    server.releaseConnection();
+                    return;
+                }
+                EventLoop connectionLoop = nextEventLoop();
+                connectionLoop.register(channel, SelectionKey.OP_READ, new ReceiveConnection(server, channel, this, connectionLoop));
+            }
+            key.interestOps(0);
+        }
+
+        // Called when a connection has been handled, so that accepting continues if it was paused.
+        void connectionClosed() {
+            server.releaseConnection();
+            eventLoop.execute(() -> {
+                if (key != null && key.isValid() && key.interestOps() == 0) {
+                    key.interestOps(SelectionKey.OP_ACCEPT);
+                }
+            });
+        }
+
+        @Override
+        void fail(Exception e) {
+            if (serverChannel.isOpen()) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Sends one stripe of a file: connect, write the hello and the metadata, read the answer to the hello and
+     * the committed offset of a resumable transfer, transfer the content, done.
+     */
+    private static final class SendConnection extends Handler {
+        private final FileSender sender;
+        private final TransferMetadata stripe;
+        private final EventLoop eventLoop;
+        private final boolean legacy;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+        // Closing the channel from another thread would not wake the selector for it, so cancel() fails it on the loop.
+        private final Closeable canceller;
+        private SocketChannel channel;
+        private FileChannel fileChannel;
+        private ByteBuffer header;
+        private ByteBuffer reply;
+        private long connectStart;
+        private long offset;
+        private long length;
+        private long sent;
+
+        private SendConnection(FileSender sender, TransferMetadata stripe, EventLoop eventLoop) {
+            this.sender = sender;
+            this.stripe = stripe;
+            this.eventLoop = eventLoop;
+            this.canceller = () -> eventLoop.execute(() -> fail(new AsynchronousCloseException()));
+            this.legacy = sender.isLegacyPeer();
+            this.offset = stripe.getOffset();
+            this.length = stripe.getLength();
+            // A legacy receiver does not answer at all.
+            int replySize = legacy ? 0 : Handshake.REPLY_SIZE + (stripe.isResumable() ? Long.BYTES : 0);
+            reply = ByteBuffer.allocate(replySize);
+        }
+
+        // Runs on the event loop of this connection.
+        private void connect() {
+            try {
+                if (legacy) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    new DataOutputStream(bytes).writeUTF(stripe.toJson());
+                    header = ByteBuffer.wrap(bytes.toByteArray());
+                } else {
+                    header = Handshake.header(stripe);
+                }
+                fileChannel = FileChannel.open(sender.getPath(), StandardOpenOption.READ);
+
+                channel = SocketChannel.open();
+                sender.track(canceller);
+                channel.configureBlocking(false);
+                connectStart = System.nanoTime();
+                boolean connected = channel.connect(sender.getAddress());
+                if (connected) {
+                    sender.connected(connectStart);
+                }
+                eventLoop.register(channel, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, this);
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        void ready(SelectionKey key, ByteBuffer buffer) throws IOException {
+            if (key.isConnectable()) {
+                if (!channel.finishConnect()) {
+                    return;
+                }
+                sender.connected(connectStart);
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+
+            if (header.hasRemaining()) {
+                channel.write(header);
+                if (header.hasRemaining()) {
+                    return;
+                }
+            }
+
+            // Wait for the answer to the hello and, for a resumable transfer, the offset the receiver has committed.
+            if (reply.hasRemaining()) {
+                if (!readReply()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+
+            // Transfer as much as the socket buffer takes, the selector reports when there is room for more.
+            if (sent < length) {
+                if (isThrottled() && pauseForRateLimits(eventLoop, key, sender.throttlePending())) {
+                    return;
+                }
+                long position = offset + sent;
+                long start = System.nanoTime();
+                long transferred = fileChannel.transferTo(position, sender.maxChunk(length - sent), channel);
+                sender.chunkSent(start);
+                if (transferred == 0 && position >= fileChannel.size()) {
+                    throw new EOFException("File " + sender.getPath() + " ended at " + position + " of " + stripe.getSize() + " bytes");
+                }
+                sent += transferred;
+                sender.addSent(transferred);
+                if (sent < length && pauseForRateLimits(eventLoop, key, sender.throttle(transferred))) {
+                    return;
+                }
+            }
+
+            if (sent == length) {
+                key.cancel();
+                closeQuietly(channel);
+                closeQuietly(fileChannel);
+                sender.untrack(canceller);
+                result.complete(null);
+            }
+        }
+
+        /**
+         * Reads the answer of the receiver. A receiver that closes the connection instead of answering the hello
+         * only speaks the legacy protocol, other failures are not taken as a sign of that.
+         *
+         * @return true once the whole answer has been read
+         */
+        private boolean readReply() throws IOException {
+            boolean answered = reply.position() > 0;
+            if (channel.read(reply) == -1) {
+                if (reply.position() >= Handshake.REPLY_SIZE) {
+                    // A receiver that rejects the transfer closes the connection without the resume offset.
+                    Handshake.read(reply.flip()).checkAccepted();
+                }
+                EOFException e = new EOFException("Connection closed before the hello was answered");
+                throw answered ? e : new Handshake.LegacyPeerException(e);
+            }
+            if (reply.hasRemaining()) {
+                return false;
+            }
+
+            reply.flip();
+            Handshake.read(reply).require(stripe);
+            sender.helloAnswered();
+            if (stripe.isResumable()) {
+                offset = reply.getLong();
+                length = stripe.getSize() - offset;
+                sender.addResumed(offset);
+            }
+            return true;
+        }
+
+        @Override
+        void fail(Exception e) {
+            closeQuietly(channel);
+            closeQuietly(fileChannel);
+            sender.untrack(canceller);
+            result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Receives one stripe of a file: read the hello and the metadata, answer the hello and the committed offset
+     * of a resumable transfer, write the content at its offset, done.
+     */
+    private static final class ReceiveConnection extends Handler {
+        private final ReceiverServer server;
+        private final SocketChannel channel;
+        private final Acceptor acceptor;
+        private final EventLoop eventLoop;
+        private final long acceptedAt = System.nanoTime();
+        private ByteBuffer header = ByteBuffer.allocate(2);
+        private HeaderPart headerPart = HeaderPart.LENGTH;
+        private int legacyLength;
+        private Handshake handshake;
+        private TransferMetadata metadata;
+        private FileReceiver receiver;
+        private FileChannel fileChannel;
+        private ByteBuffer reply;
+        private long offset;
+        private long length;
+        private long received;
+        private boolean sessionHandedOff;
+        // Whether a hello has been read, and whether its answer is being written, see fail().
+        private boolean helloRead;
+        private boolean answered;
+
+        private ReceiveConnection(ReceiverServer server, SocketChannel channel, Acceptor acceptor, EventLoop eventLoop) {
+            this.server = server;
+            this.channel = channel;
+            this.acceptor = acceptor;
+            this.eventLoop = eventLoop;
+        }
+
+        @Override
+        void ready(SelectionKey key, ByteBuffer buffer) throws IOException {
+            if (metadata == null && !readMetadata()) {
+                return;
+            }
+
+            if (reply.hasRemaining()) {
+                answered = true;
+                channel.write(reply);
+                if (reply.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            }
+
+            if (received < length) {
+                if (isThrottled() && pauseForRateLimits(eventLoop, key, receiver.throttlePending())) {
+                    return;
+                }
+                buffer.clear();
+                buffer.limit((int) receiver.maxChunk(Math.min(buffer.capacity(), length - received)));
+                int bytesRead = channel.read(buffer);
+                if (bytesRead == -1) {
+                    throw new EOFException("Connection closed at " + (offset + received) + " of " + metadata.getSize() + " bytes");
+                }
+                buffer.flip();
+                long position = offset + received;
+                long start = System.nanoTime();
+                while (buffer.hasRemaining()) {
+                    fileChannel.write(buffer, position + buffer.position());
+                }
+                receiver.chunkReceived(start);
+                received += bytesRead;
+                receiver.addReceived(bytesRead);
+                if (received < length && pauseForRateLimits(eventLoop, key, receiver.throttle(bytesRead))) {
+                    return;
+                }
+            }
+
+            if (received == length) {
+                key.cancel();
+                closeQuietly(channel);
+                if (receiver.stripeDone()) {
+                    server.transferReceived(receiver, metadata);
+                }
+                acceptor.connectionClosed();
+            }
+        }
+
+        /**
+         * Reads the hello and the metadata frame, or the JSON metadata of a legacy sender.
+         * Exactly that many bytes are read, so the file content is left in the socket.
+         * A connection that opens a session is handed off to the server instead.
+         *
+         * @return true once the metadata has been read and the file has been opened
+         */
+        private boolean readMetadata() throws IOException {
+            while (metadata == null) {
+                if (header.hasRemaining() && channel.read(header) == -1) {
+                    throw new EOFException("Connection closed while reading metadata");
+                }
+                if (header.hasRemaining()) {
+                    return false;
+                }
+                header.flip();
+                readHeaderPart();
+                if (sessionHandedOff) {
+                    return false;
+                }
+            }
+            FileReceiver.connected(acceptedAt);
+
+            reply = ByteBuffer.allocate((handshake != null ? Handshake.REPLY_SIZE : 0) + Long.BYTES);
+            if (handshake != null) {
+                handshake.writeReply(reply);
+            }
+            // A server that requires sessions refuses the transfer on a worker, see ReceiverServer.handOff.
+            if (metadata.requiresExchange() || server.requiresSession()) {
+                handOff();
+                return false;
+            }
+            receiver = server.receiverFor(metadata);
+            fileChannel = receiver.open(metadata, channel.socket().getInetAddress().getHostAddress());
+            offset = metadata.getOffset();
+            length = metadata.getLength();
+            if (metadata.isResumable()) {
+                offset = receiver.getResumeOffset();
+                length = metadata.getSize() - offset;
+                reply.putLong(offset);
+            }
+            reply.flip();
+            return true;
+        }
+
+        // Parses a completely read part of the header and prepares the buffer for the next one.
+        private void readHeaderPart() throws IOException {
+            switch (headerPart) {
+                case LENGTH:
+                    legacyLength = header.getShort() & 0xFFFF;
+                    header = ByteBuffer.allocate(Math.min(legacyLength, Handshake.MAGIC_LENGTH));
+                    headerPart = HeaderPart.MAGIC;
+                    break;
+                case MAGIC:
+                    if (TransferSession.isSessionHello(legacyLength, header.array())) {
+                        handOffSession();
+                        return;
+                    }
+                    if (Handshake.isHello(legacyLength, header.array())) {
+                        helloRead = true;
+                        header = ByteBuffer.allocate(Handshake.HELLO_BODY_SIZE + Integer.BYTES);
+                        headerPart = HeaderPart.HELLO;
+                    } else {
+                        // A legacy sender, the bytes read so far are the start of its JSON.
+                        header = ByteBuffer.allocate(2 + legacyLength).putShort((short) legacyLength).put(header);
+                        headerPart = HeaderPart.JSON;
+                    }
+                    break;
+                case HELLO:
+                    handshake = Handshake.LOCAL.negotiate(Handshake.read(header));
+                    header = ByteBuffer.allocate(MetadataCodec.readFrameLength(header));
+                    headerPart = HeaderPart.FRAME;
+                    break;
+                case FRAME:
+                    metadata = MetadataCodec.decode(header);
+                    break;
+                case JSON:
+                    metadata = TransferMetadata.fromJson(new DataInputStream(new ByteArrayInputStream(header.array())).readUTF());
+                    break;
+            }
+        }
+
+        /**
+         * Passes the connection to a worker thread of the server, after answering the hello.
+         * An inline transfer is answered by the worker once it has written the file.
+         * The channel can only be switched back to blocking mode once the selector has dropped its cancelled key,
+         * which happens on the next select.
+         */
+        private void handOff() {
+            answered = true;
+            channel.keyFor(eventLoop.selector).cancel();
+            reply.flip();
+            if (metadata.isInline() || server.requiresSession()) {
+                reply.limit(0);
+            }
+            eventLoop.execute(() -> {
+                try {
+                    channel.configureBlocking(true);
+                    while (reply.hasRemaining()) {
+                        channel.write(reply);
+                    }
+                    server.handOff(channel.socket(), metadata, handshake, acceptor::connectionClosed);
+                } catch (IOException | RuntimeException e) {
+                    fail(e);
+                }
+            });
+        }
+
+        /**
+         * Passes a connection that opens a session to a worker thread of the server, see TransferSession.
+         */
+        private void handOffSession() {
+            sessionHandedOff = true;
+            channel.keyFor(eventLoop.selector).cancel();
+            eventLoop.execute(() -> {
+                try {
+                    channel.configureBlocking(true);
+                    server.handOffSession(channel.socket(), acceptor::connectionClosed);
+                } catch (IOException | RuntimeException e) {
+                    fail(e);
+                }
+            });
+        }
+
+        @Override
+        void fail(Exception e) {
+            if (helloRead && !answered) {
+                rejectHello();
+            }
+            closeQuietly(channel);
+            if (receiver != null) {
+                server.transferFailed(receiver, metadata);
+            }
+            acceptor.connectionClosed();
+            e.printStackTrace();
+        }
+
+        // Answers a hello that could not be accepted, see FileReceiver.rejectHello. The answer fits into the empty
+        // send buffer of the connection, so a single non-blocking write is enough. Input that has already arrived
+        // is skipped, so closing the connection does not reset it, which would discard the answer.
+        private void rejectHello() {
+            ByteBuffer rejected = ByteBuffer.allocate(Handshake.REPLY_SIZE);
+            Handshake.writeRejected(rejected);
+            try {
+                channel.write(rejected.flip());
+                channel.shutdownOutput();
+                ByteBuffer skipped = ByteBuffer.allocate(8192);
+                while (channel.read(skipped.clear()) > 0) {
+                    // Skipped.
+                }
+            } catch (IOException e) {
+                // The sender is gone, it sees the connection closed either way.
+            }
+        }
+    }
+
+    /**
+     * The parts of the header a receiving connection reads one after the other.
+     */
+    private enum HeaderPart {
+        LENGTH, MAGIC, HELLO, FRAME, JSON
+    }
+}
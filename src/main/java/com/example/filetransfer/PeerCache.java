@@ -0,0 +1,43 @@
+package com.example.filetransfer;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The PeerCache class remembers something learned about receivers, such as the protocol they speak, for a limited
+ * time. A receiver may be upgraded or replaced at the same address, so what was learned is checked again once it
+ * has expired.
+ */
+final class PeerCache {
+    // How long what was learned about a receiver is trusted.
+    static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final long ttl;
+    private final Map<InetSocketAddress, Long> expiries = new ConcurrentHashMap<>();
+
+    PeerCache(long ttlMillis) {
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    void add(InetSocketAddress peer) {
+        expiries.put(peer, System.nanoTime() + ttl);
+    }
+
+    void remove(InetSocketAddress peer) {
+        expiries.remove(peer);
+    }
+
+    boolean contains(InetSocketAddress peer) {
+        Long expiry = expiries.get(peer);
+        if (expiry == null) {
+            return false;
+        }
+        if (expiry - System.nanoTime() < 0) {
+            expiries.remove(peer, expiry);
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.filetransfer;
+
+import java.time.Duration;
+
+/**
+ * A snapshot of the progress of a transfer.
+ */
+public final class ProgressEvent {
+    private final String filename;
+    private final long bytesTransferred;
+    private final long totalBytes;
+    private final double throughput;
+    private final double averageThroughput;
+    private final boolean done;
+
+    ProgressEvent(String filename, long bytesTransferred, long totalBytes, double throughput, double averageThroughput,
+                  boolean done) {
+        this.filename = filename;
+        this.bytesTransferred = bytesTransferred;
+        this.totalBytes = totalBytes;
+        this.throughput = throughput;
+        this.averageThroughput = averageThroughput;
+        this.done = done;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Returns the fraction of the file that has been transferred, between 0 and 1.
+     */
+    public double getProgress() {
+        return totalBytes > 0 ? Math.min(1.0, (double) bytesTransferred / totalBytes) : (done ? 1.0 : 0.0);
+    }
+
+    /**
+     * Returns the bytes per second since the previous event.
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * Returns the bytes per second since the transfer started, not counting bytes a resumed transfer already had.
+     */
+    public double getAverageThroughput() {
+        return averageThroughput;
+    }
+
+    /**
+     * Returns the estimated time until the transfer is done at the current throughput,
+     * or null if nothing is being transferred.
+     */
+    public Duration getEstimatedTimeRemaining() {
+        if (done) {
+            return Duration.ZERO;
+        }
+        double rate = throughput > 0 ? throughput : averageThroughput;
+        if (rate <= 0) {
+            return null;
+        }
+        return Duration.ofMillis((long) (Math.max(0, totalBytes - bytesTransferred) * 1000 / rate));
+    }
+
+    /**
+     * Returns true for the last event of a transfer that completed.
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public String toString() {
+        Duration eta = getEstimatedTimeRemaining();
+        return String.format("%s: %.1f%%, %.1f MB/s, ETA %s", filename, getProgress() * 100, throughput / (1024 * 1024),
+                eta == null ? "unknown" : eta.getSeconds() + "s");
+    }
+}
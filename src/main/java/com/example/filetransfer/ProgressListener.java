@@ -0,0 +1,11 @@
+package com.example.filetransfer;
+
+/**
+ * Receives progress events of a transfer, see FileSender.addProgressListener and FileReceiver.addProgressListener.
+ * Events are delivered one at a time on a shared background thread, and only the latest event is delivered if the
+ * listener falls behind. Listeners that update a user interface have to hand the event over to its thread.
+ */
+@FunctionalInterface
+public interface ProgressListener {
+    void progressChanged(ProgressEvent event);
+}
@@ -0,0 +1,132 @@
+package com.example.filetransfer;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Publishes the progress of a transfer to its listeners.
+ * <p>
+ * Transfers report every chunk, but an event is created at most once per INTERVAL, by the first thread to report
+ * after the interval has passed. Without listeners reporting is a single volatile read. Events are delivered on a
+ * shared background thread, and an event that has not been delivered yet is replaced by a newer one, so a slow
+ * listener never holds up a transfer.
+ */
+final class ProgressPublisher {
+    private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final ExecutorService DELIVERY = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "progress-delivery");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Supplier<String> filename;
+    private final LongSupplier totalBytes;
+    private final List<ProgressListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean subscribed;
+    private volatile boolean finished;
+    private final AtomicLong lastPublished = new AtomicLong(System.nanoTime());
+    private final AtomicReference<ProgressEvent> pending = new AtomicReference<>();
+
+    // Samples for the throughput, guarded by this.
+    private long startTime = -1;
+    private long startBytes;
+    private long lastTime;
+    private long lastBytes;
+
+    ProgressPublisher(Supplier<String> filename, LongSupplier totalBytes) {
+        this.filename = filename;
+        this.totalBytes = totalBytes;
+    }
+
+    void addListener(ProgressListener listener) {
+        listeners.add(listener);
+        subscribed = true;
+    }
+
+    void removeListener(ProgressListener listener) {
+        listeners.remove(listener);
+        subscribed = !listeners.isEmpty();
+    }
+
+    /**
+     * Marks the start of the transfer for the average throughput.
+     *
+     * @param bytes the bytes already transferred, such as the committed offset of a resumed transfer
+     */
+    synchronized void start(long bytes) {
+        startTime = System.nanoTime();
+        startBytes = bytes;
+        lastTime = startTime;
+        lastBytes = bytes;
+    }
+
+    /**
+     * Reports the bytes transferred so far, publishing an event if the interval has passed.
+     */
+    void update(long bytes) {
+        if (!subscribed || finished) {
+            return;
+        }
+        long now = System.nanoTime();
+        long last = lastPublished.get();
+        if (now - last < INTERVAL || !lastPublished.compareAndSet(last, now)) {
+            return;
+        }
+        publish(event(now, bytes, false));
+    }
+
+    /**
+     * Publishes the last event of a completed transfer.
+     */
+    void done(long bytes) {
+        finished = true;
+        if (subscribed) {
+            publish(event(System.nanoTime(), bytes, true));
+        }
+    }
+
+    private synchronized ProgressEvent event(long now, long bytes, boolean done) {
+        if (startTime < 0) {
+            start(0);
+        }
+        double seconds = (now - lastTime) / 1e9;
+        double throughput = seconds > 0 ? (bytes - lastBytes) / seconds : 0;
+        double elapsed = (now - startTime) / 1e9;
+        double average = elapsed > 0 ? (bytes - startBytes) / elapsed : 0;
+        lastTime = now;
+        lastBytes = bytes;
+        return new ProgressEvent(filename.get(), bytes, totalBytes.getAsLong(), throughput, average, done);
+    }
+
+    // Replaces an event that is still waiting for delivery, or schedules the delivery. The last event is never replaced.
+    private void publish(ProgressEvent event) {
+        ProgressEvent previous;
+        do {
+            previous = pending.get();
+            if (previous != null && previous.isDone()) {
+                return;
+            }
+        } while (!pending.compareAndSet(previous, event));
+        if (previous == null) {
+            DELIVERY.execute(this::deliver);
+        }
+    }
+
+    private void deliver() {
+        ProgressEvent event = pending.getAndSet(null);
+        for (ProgressListener listener : listeners) {
+            try {
+                listener.progressChanged(event);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
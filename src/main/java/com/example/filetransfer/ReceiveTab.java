@@ -9,6 +9,7 @@ import javafx.stage.DirectoryChooser;
 import javafx.stage.Stage;
 
 import java.io.File;
+import java.io.IOException;
 
 /**
  * Represents a tab for receiving files.
@@ -19,7 +20,11 @@ public class ReceiveTab extends Tab {
     private final LogTab logTab;
     private final DatabaseHandler db = FileTransfer.getDatabaseHandler();
     private TextField portTextField = new TextField("8080");
+    private CheckBox mappedCheckBox = new CheckBox("Memory-mapped");
+    private ChoiceBox<FileSink.Durability> durabilityChoiceBox = new ChoiceBox<>();
     private ProgressBar receiveProgressBar;
+    private Label progressLabel = new Label();
+    private ReceiverServer receiverServer;
 
     public ReceiveTab(Stage stage, LogTab logTab) {
         this.logTab = logTab;
@@ -53,22 +58,35 @@ public class ReceiveTab extends Tab {
         HBox portBox = new HBox(portText, portTextField);
         portBox.setAlignment(Pos.CENTER);
 
-        VBox vBox = new VBox(portBox, chooseSaveLocationButton, receivePathField, receiveFileButton, receiveProgressBar);
+        durabilityChoiceBox.getItems().addAll(FileSink.Durability.values());
+        durabilityChoiceBox.setValue(FileSink.Durability.NONE);
+        durabilityChoiceBox.setTooltip(new Tooltip("When received files are forced to disk"));
+        HBox writeBox = new HBox(mappedCheckBox, new Label("Sync: "), durabilityChoiceBox);
+        writeBox.setAlignment(Pos.CENTER);
+
+        VBox vBox = new VBox(portBox, writeBox, chooseSaveLocationButton, receivePathField, receiveFileButton, receiveProgressBar, progressLabel);
         vBox.setAlignment(Pos.CENTER);
 
         return vBox;
     }
 
     /**
-     * Creates a receive file button.
-     * When clicked, the button will call the receiveFile() method.
+     * Creates a receive files button.
+     * When clicked, the button starts receiving files, or stops receiving if files are already being received.
      *
      * @param receivePathField The text field to receive the path.
-     * @return The receive file button.
+     * @return The receive files button.
      */
     private Button createReceiveFileButton(TextField receivePathField) {
-        Button receiveFileButton = new Button("Receive File");
-        receiveFileButton.setOnAction(e -> receiveFile(receivePathField));
+        Button receiveFileButton = new Button("Start Receiving");
+        receiveFileButton.setOnAction(e -> {
+            if (receiverServer != null && receiverServer.isRunning()) {
+                stopReceiving();
+                receiveFileButton.setText("Start Receiving");
+            } else if (startReceiving(receivePathField)) {
+                receiveFileButton.setText("Stop Receiving");
+            }
+        });
         return receiveFileButton;
     }
 
@@ -160,52 +178,65 @@ public class ReceiveTab extends Tab {
     }
 
     /**
-     * Method to receive a file over the network.
-     * This method does some initialization work, including checking if all necessary fields are filled,
-     * and starting a new FileReceiver object.
-     * <p>
-     * It then starts a new Thread which continually checks if the FileReceiver is still receiving data,
-     * updating a progress bar on the GUI with the current transfer progress.
-     * If an InterruptedException occurs, it will print a stack trace.
-     * After the file has been received, this method will hide the progress bar,
-     * log the received file, insert the file transfer into the database,
-     * and display a message saying the file was received successfully.
+     * Starts receiving files over the network.
+     * This method checks if all necessary fields are filled and starts a ReceiverServer on the chosen port,
+     * which keeps accepting files from any number of senders until receiving is stopped.
+     * The progress bar is shown while the server is running.
+     * Every received file is logged, inserted into the database, and reported with a message.
      *
-     * @param receivePathField The TextField containing the path where the file should be received to.
+     * @param receivePathField The TextField containing the path where the files should be received to.
+     * @return true if the server was started
      */
-    private void receiveFile(TextField receivePathField) {
+    private boolean startReceiving(TextField receivePathField) {
         if (receivePathField.getText().isEmpty() || portTextField.getText().isEmpty()) {
             showErrorMessage("Please fill in all fields and select a save location.");
-            return;
+            return false;
         }
 
         String receiveFilePath = receivePathField.getText();
         int port = Integer.parseInt(portTextField.getText());
 
-        FileReceiver fileReceiver = new FileReceiver(receiveFilePath, port);
+        receiverServer = new ReceiverServer(receiveFilePath, port, fileReceiver -> {
+            String sender = fileReceiver.getRemoteAddress();
+            db.insertReceivedFileTransfer(fileReceiver.getFilename(), fileReceiver.getTotalBytes(), sender, String.valueOf(port));
+            Platform.runLater(() -> {
+                logTab.logReceived(fileReceiver.getFilename(), sender, port);
+                showInformationMessage("File " + fileReceiver.getFilename() + " received successfully.");
+            });
+        });
+        receiverServer.setProgressListener(event -> Platform.runLater(() -> {
+            receiveProgressBar.setProgress(event.isDone() ? ProgressBar.INDETERMINATE_PROGRESS : event.getProgress());
+            progressLabel.setText(event.isDone() ? "" : event.toString());
+        }));
+        receiverServer.setWriteMode(mappedCheckBox.isSelected() ? FileSink.Mode.MAPPED : FileSink.Mode.POSITIONAL);
+        receiverServer.setDurability(durabilityChoiceBox.getValue(), FileReceiver.DEFAULT_SYNC_INTERVAL);
+        try {
+            receiverServer.start();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            showErrorMessage("Could not listen on port " + port + ".");
+            return false;
+        }
 
+        receiveProgressBar.setProgress(ProgressBar.INDETERMINATE_PROGRESS);
         receiveProgressBar.setVisible(true);
+        portTextField.setEditable(false);
+        mappedCheckBox.setDisable(true);
+        durabilityChoiceBox.setDisable(true);
+        return true;
+    }
 
-        new Thread(() -> {
-            fileReceiver.run();
-
-            // TODO: never seems to get here. Investigate.
-            while (fileReceiver.isReceiving()) {
-                double progress = fileReceiver.getProgress();
-                Platform.runLater(() -> receiveProgressBar.setProgress(progress));
-
-                try {
-                    // Sleep for 100 milliseconds to avoid using too much CPU while waiting for the file to be received.
-                    Thread.sleep(100);
-                } catch (InterruptedException ex) {
-                    ex.printStackTrace();
-                }
-            }
-
-            receiveProgressBar.setVisible(false);
-            logTab.logReceived(fileReceiver.getFilename(), "localhost", port);
-            db.insertReceivedFileTransfer(fileReceiver.getFilename(), fileReceiver.getTotalBytes(), "localhost", String.valueOf(port));
-            Platform.runLater(() -> showInformationMessage("File received successfully."));
-        }).start();
+    /**
+     * Stops accepting new files. Files that are currently being received are still completed.
+     */
+    public void stopReceiving() {
+        if (receiverServer != null) {
+            receiverServer.stop();
+        }
+        receiveProgressBar.setVisible(false);
+        progressLabel.setText("");
+        portTextField.setEditable(true);
+        mappedCheckBox.setDisable(false);
+        durabilityChoiceBox.setDisable(false);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,512 @@
+package com.example.filetransfer;
+
+import org.json.JSONException;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The ReceiverServer class keeps a port open and receives files from any number of senders until it is stopped.
+ * Every accepted connection is handled on its own thread, so many senders can push files at the same time.
+ * The number of connections handled at once is limited; further senders wait in the accept backlog
+ * until a transfer finishes. Stripes of a striped transfer are matched by their transfer id
+ * and written into the same file as they arrive. A striped transfer that receives nothing for the stripe idle
+ * timeout is aborted, so stripes that never arrive do not keep its file open.
+ * With a NioTransferEngine set, connections are driven by the engine's event loops instead of worker threads.
+ * <p>
+ * A connection may also open a session that carries many transfers one after the other, see TransferSession.
+ * Sessions are always served on worker threads, hold their connection slot until they are closed, and are closed
+ * by the server once they have been idle for the session idle timeout.
+ * <p>
+ * A server with a session key only accepts transfers over sessions that have been authenticated with it. Senders
+ * with the key always use sessions, other connections are answered with Handshake.SESSION_REQUIRED and closed.
+ */
+public class ReceiverServer implements AutoCloseable {
+    public static final int DEFAULT_MAX_CONCURRENT_TRANSFERS = 256;
+    // Longer than the idle timeout of the senders, see SessionPool, so idle sessions are closed by the sender.
+    public static final long DEFAULT_SESSION_IDLE_TIMEOUT_MILLIS = 60_000;
+    public static final long DEFAULT_STRIPE_IDLE_TIMEOUT_MILLIS = 300_000;
+
+    private final String saveLocation;
+    private final int port;
+    private final Semaphore permits;
+    private final Consumer<FileReceiver> onReceived;
+    private final Map<String, FileReceiver> stripedTransfers = new ConcurrentHashMap<>();
+    // Sessions waiting for their next request, closed when the server stops.
+    private final Set<Socket> idleSessions = ConcurrentHashMap.newKeySet();
+    private final ExecutorService workers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "receiver-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Aborts striped transfers that have been idle for the stripe idle timeout, from start() until stop().
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "receiver-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile ServerSocket serverSocket;
+    private boolean zeroCopy = true;
+    private int bufferSize = FileReceiver.DEFAULT_BUFFER_SIZE;
+    private FileSink.Mode writeMode = FileSink.Mode.POSITIONAL;
+    private FileSink.Durability durability = FileSink.Durability.NONE;
+    private long syncInterval = FileReceiver.DEFAULT_SYNC_INTERVAL;
+    private volatile long rateLimit = TokenBucket.UNLIMITED;
+    private volatile ProgressListener progressListener;
+    private NioTransferEngine engine;
+    private volatile byte[] sessionKey = TransferSession.defaultKey();
+    private volatile int sessionIdleTimeout = (int) DEFAULT_SESSION_IDLE_TIMEOUT_MILLIS;
+    private volatile long stripeIdleTimeout = TimeUnit.MILLISECONDS.toNanos(DEFAULT_STRIPE_IDLE_TIMEOUT_MILLIS);
+
+    /**
+     * @param saveLocation           the directory received files are saved in
+     * @param port                   the port to listen on
+     * @param maxConcurrentTransfers the maximum number of connections handled at the same time
+     * @param onReceived             called from a worker thread for every file that has been received completely
+     */
+    public ReceiverServer(String saveLocation, int port, int maxConcurrentTransfers, Consumer<FileReceiver> onReceived) {
+        if (maxConcurrentTransfers < 1) {
+            throw new IllegalArgumentException("Max concurrent transfers must be at least 1, was " + maxConcurrentTransfers);
+        }
+        this.saveLocation = saveLocation;
+        this.port = port;
+        this.permits = new Semaphore(maxConcurrentTransfers);
+        this.onReceived = onReceived;
+    }
+
+    public ReceiverServer(String saveLocation, int port, Consumer<FileReceiver> onReceived) {
+        this(saveLocation, port, DEFAULT_MAX_CONCURRENT_TRANSFERS, onReceived);
+    }
+
+    /**
+     * Binds the port and starts accepting connections on a background thread,
+     * or on the event loops of the NIO engine if one has been set.
+     *
+     * @throws IOException if the port cannot be bound
+     */
+    public void start() throws IOException {
+        long period = Math.max(TimeUnit.MILLISECONDS.toNanos(100), stripeIdleTimeout / 4);
+        reaper.scheduleWithFixedDelay(this::abortIdleTransfers, period, period, TimeUnit.NANOSECONDS);
+        if (engine != null) {
+            serverSocket = FileReceiver.openServerSocket(port, true);
+            engine.listen(this, serverSocket.getChannel());
+            return;
+        }
+        serverSocket = FileReceiver.openServerSocket(port, zeroCopy);
+        Thread acceptor = new Thread(this::acceptConnections, "receiver-acceptor-" + port);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // Accepts connections until the server socket is closed, waiting for a free slot before each accept.
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try {
+                permits.acquire();
+                Socket clientSocket = serverSocket.accept();
+                workers.execute(() -> {
+                    try {
+                        handle(clientSocket);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                permits.release();
+                // Accept fails once the server socket has been closed by stop().
+                if (!serverSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives the stripe carried by a connection, or the transfers of a session.
+     */
+    private void handle(Socket clientSocket) {
+        long start = System.nanoTime();
+        try (Socket socket = clientSocket) {
+            DataInputStream input = FileReceiver.openInput(socket);
+            int length = input.readUnsignedShort();
+            byte[] magic = new byte[Math.min(length, Handshake.MAGIC_LENGTH)];
+            input.readFully(magic);
+            if (TransferSession.isSessionHello(length, magic)) {
+                serveSession(socket, input);
+            } else if (requiresSession()) {
+                reject(Handshake.isHello(length, magic) ? FileReceiver.readStripe(socket, input, length, magic, start, false) : null, socket);
+            } else {
+                handle(FileReceiver.readStripe(socket, input, length, magic, start));
+            }
+        } catch (IOException | JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Receives one transfer after the other over a session until the sender closes it, a transfer fails,
+     * or no request arrives within the session idle timeout. The session has been opened with SESSION_MAGIC,
+     * which has already been read.
+     */
+    private void serveSession(Socket socket, DataInputStream input) throws IOException {
+        boolean accepted;
+        try {
+            accepted = TransferSession.accept(socket, input, sessionKey);
+        } catch (SocketTimeoutException e) {
+            accepted = false;
+        }
+        if (!accepted) {
+            FileReceiver.rejected();
+            return;
+        }
+        socket.setTcpNoDelay(true);
+        OutputStream output = socket.getOutputStream();
+        while (isRunning()) {
+            int request;
+            idleSessions.add(socket);
+            try {
+                socket.setSoTimeout(sessionIdleTimeout);
+                request = input.read();
+                socket.setSoTimeout(0);
+            } catch (SocketTimeoutException e) {
+                return;
+            } catch (IOException e) {
+                // stop() closes idle sessions.
+                if (!isRunning()) {
+                    return;
+                }
+                throw e;
+            } finally {
+                idleSessions.remove(socket);
+            }
+            switch (request) {
+                case TransferSession.TRANSFER:
+                    if (!handle(FileReceiver.readStripe(socket, input))) {
+                        return;
+                    }
+                    output.write(TransferSession.TRANSFER);
+                    break;
+                case TransferSession.PING:
+                    output.write(TransferSession.PING);
+                    break;
+                case TransferSession.CLOSE:
+                case -1:
+                    return;
+                default:
+                    throw new IOException("Unknown session request " + request);
+            }
+        }
+    }
+
+    /**
+     * Returns true if transfers are only accepted over authenticated sessions.
+     */
+    boolean requiresSession() {
+        return sessionKey != null;
+    }
+
+    /**
+     * Refuses a transfer that did not come over an authenticated session. The sender of a hello is told why, after
+     * the content of an inline transfer has been read so the answer is not lost to a reset connection. A legacy
+     * sender, for which the stripe is null, cannot be told and its connection is just closed.
+     */
+    private void reject(FileReceiver.Stripe stripe, Socket socket) throws IOException {
+        FileReceiver.rejected();
+        if (stripe == null) {
+            return;
+        }
+        TransferMetadata metadata = stripe.getMetadata();
+        if (metadata.isInline() && metadata.getLength() <= FileReceiver.MAX_INLINE_SIZE) {
+            stripe.getInput().skipNBytes(metadata.getLength());
+        }
+        ByteBuffer reply = ByteBuffer.allocate(Handshake.REPLY_SIZE);
+        Handshake.writeSessionRequired(reply);
+        socket.getOutputStream().write(reply.array());
+        socket.shutdownOutput();
+    }
+
+    /**
+     * Continues a connection that opened a session on a worker thread, after the NIO engine has read SESSION_MAGIC.
+     * The socket must be in blocking mode.
+     *
+     * @param onClosed called once the session has ended
+     */
+    void handOffSession(Socket socket, Runnable onClosed) {
+        workers.execute(() -> {
+            try (socket) {
+                serveSession(socket, new DataInputStream(socket.getInputStream()));
+            } catch (IOException | JSONException e) {
+                e.printStackTrace();
+            } finally {
+                onClosed.run();
+            }
+        });
+    }
+
+    /**
+     * Receives a stripe.
+     *
+     * @return false if the stripe failed
+     */
+    private boolean handle(FileReceiver.Stripe stripe) {
+        TransferMetadata metadata = stripe.getMetadata();
+        FileReceiver receiver = receiverFor(metadata);
+        try {
+            if (receiver.receive(stripe)) {
+                transferReceived(receiver, metadata);
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            transferFailed(receiver, metadata);
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Continues a connection on a worker thread after the NIO engine has read its metadata,
+     * for transfers that need more than moving the file content, such as delta transfers.
+     * The socket must be in blocking mode, and the hello of the sender must already have been answered.
+     *
+     * @param handshake what both sides agreed on, or null if the sender speaks the legacy protocol
+     * @param onClosed  called once the connection has been handled
+     */
+    void handOff(Socket socket, TransferMetadata metadata, Handshake handshake, Runnable onClosed) {
+        workers.execute(() -> {
+            try (socket) {
+                FileReceiver.Stripe stripe = new FileReceiver.Stripe(socket, new DataInputStream(socket.getInputStream()), metadata, handshake);
+                if (requiresSession()) {
+                    reject(handshake != null ? stripe : null, socket);
+                } else {
+                    handle(stripe);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                onClosed.run();
+            }
+        });
+    }
+
+    /**
+     * Returns the receiver for the transfer a stripe belongs to. Striped transfers share one FileReceiver
+     * between their connections.
+     */
+    FileReceiver receiverFor(TransferMetadata metadata) {
+        if (metadata.isStriped()) {
+            return stripedTransfers.computeIfAbsent(metadata.getTransferId(), id -> createReceiver());
+        }
+        return createReceiver();
+    }
+
+    private FileReceiver createReceiver() {
+        FileReceiver receiver = new FileReceiver(saveLocation);
+        receiver.setBufferSize(bufferSize);
+        receiver.setWriteMode(writeMode);
+        receiver.setDurability(durability, syncInterval);
+        receiver.setRateLimit(rateLimit);
+        if (progressListener != null) {
+            receiver.addProgressListener(progressListener);
+        }
+        return receiver;
+    }
+
+    /**
+     * Reports a completely received file to the callback.
+     */
+    void transferReceived(FileReceiver receiver, TransferMetadata metadata) {
+        if (metadata.isStriped()) {
+            stripedTransfers.remove(metadata.getTransferId());
+        }
+        onReceived.accept(receiver);
+    }
+
+    /**
+     * Closes the file of a failed transfer. Other stripes of the same transfer fail as well.
+     */
+    void transferFailed(FileReceiver receiver, TransferMetadata metadata) {
+        receiver.abort();
+        if (metadata.isStriped()) {
+            stripedTransfers.remove(metadata.getTransferId(), receiver);
+        }
+    }
+
+    // Aborts striped transfers of which no stripe has arrived or delivered content for the stripe idle timeout.
+    private void abortIdleTransfers() {
+        stripedTransfers.forEach((transferId, receiver) -> {
+            if (receiver.getIdleNanos() >= stripeIdleTimeout && stripedTransfers.remove(transferId, receiver)) {
+                System.out.println("Aborting striped transfer " + transferId + ", no stripe has been received for "
+                        + TimeUnit.NANOSECONDS.toSeconds(stripeIdleTimeout) + " seconds");
+                receiver.abort();
+            }
+        });
+    }
+
+    /**
+     * Reserves a slot for a connection if fewer than the maximum number of connections are being handled.
+     */
+    boolean tryAcquireConnection() {
+        return permits.tryAcquire();
+    }
+
+    /**
+     * Releases the slot of a connection that has been handled.
+     */
+    void releaseConnection() {
+        permits.release();
+    }
+
+    /**
+     * Stops accepting connections and closes idle sessions. Transfers that are already running are finished
+     * in the background, except for striped transfers that are still missing stripes, which can no longer
+     * connect. Those are aborted.
+     */
+    public void stop() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            for (Socket session : idleSessions) {
+                session.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        stripedTransfers.forEach((transferId, receiver) -> {
+            if (receiver.isMissingStripes() && stripedTransfers.remove(transferId, receiver)) {
+                receiver.abort();
+            }
+        });
+        reaper.shutdown();
+        workers.shutdown();
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    public boolean isRunning() {
+        return serverSocket != null && !serverSocket.isClosed();
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Enables or disables the zero-copy transfer path. Must be called before start().
+     */
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    /**
+     * Sets the size of the buffer used to receive files when zero-copy is disabled.
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be at least 1, was " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Sets how received files are written, see FileSink.Mode. Applies to transfers that start afterwards.
+     */
+    public void setWriteMode(FileSink.Mode writeMode) {
+        this.writeMode = writeMode;
+    }
+
+    /**
+     * Sets when received files are forced to disk, see FileSink.Durability. Applies to transfers that start afterwards.
+     *
+     * @param syncInterval the number of bytes between two syncs for Durability.INTERVAL
+     */
+    public void setDurability(FileSink.Durability durability, long syncInterval) {
+        if (syncInterval <= 0) {
+            throw new IllegalArgumentException("Sync interval must be positive, was " + syncInterval);
+        }
+        this.durability = durability;
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * Limits the bandwidth of every transfer that starts afterwards. The limit of all transfers together is set
+     * with FileReceiver.getGlobalRateLimiter().
+     *
+     * @param bytesPerSecond the rate, or TokenBucket.UNLIMITED
+     */
+    public void setRateLimit(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Rate limit must not be negative, was " + bytesPerSecond);
+        }
+        this.rateLimit = bytesPerSecond;
+    }
+
+    /**
+     * Subscribes a listener to the progress of every transfer that starts afterwards.
+     * Events of concurrent transfers are told apart by their file name.
+     */
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Sets the key senders have to authenticate sessions with, see TransferSession. While a key is set, transfers
+     * are only accepted over sessions authenticated with it, connections of their own are refused. Applies to
+     * sessions opened afterwards. The default is the value of the system property filetransfer.session.key.
+     *
+     * @param key the key, or null to accept transfers from any sender
+     */
+    public void setSessionKey(String key) {
+        this.sessionKey = key != null ? key.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Sets how long a session may wait for its next request before the server closes it.
+     */
+    public void setSessionIdleTimeout(long millis) {
+        if (millis <= 0 || millis > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid session idle timeout " + millis);
+        }
+        this.sessionIdleTimeout = (int) millis;
+    }
+
+    /**
+     * Sets how long a striped transfer may receive nothing, neither a new stripe nor content, before it is aborted.
+     * Must be called before start().
+     */
+    public void setStripeIdleTimeout(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("Invalid stripe idle timeout " + millis);
+        }
+        this.stripeIdleTimeout = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Handles connections on the event loops of a non-blocking engine instead of a thread per connection.
+     * Must be called before start(). The engine is shared and is not closed when the server stops.
+     */
+    public void setEngine(NioTransferEngine engine) {
+        this.engine = engine;
+    }
+}
@@ -5,11 +5,13 @@ import javafx.geometry.Pos;
 import javafx.scene.control.*;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
 import java.io.File;
-import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Represents a tab for sending a file.
@@ -21,7 +23,19 @@ public class SendTab extends Tab {
     private final DatabaseHandler db = FileTransfer.getDatabaseHandler();
     private TextField serverTextField = new TextField("localhost");
     private TextField portTextField = new TextField("8080");
+    private TextField connectionsTextField = new TextField("1");
+    private CheckBox resumableCheckBox = new CheckBox("Resumable");
+    private CheckBox deltaCheckBox = new CheckBox("Delta");
+    private CheckBox dedupCheckBox = new CheckBox("Dedup");
+    private CheckBox compressCheckBox = new CheckBox("Compress");
+    private CheckBox verifyCheckBox = new CheckBox("Verify");
+    private CheckBox manifestCheckBox = new CheckBox("Manifest");
+    private TextField rateLimitTextField = new TextField();
+    private ChoiceBox<TransferScheduler.Priority> priorityChoiceBox = new ChoiceBox<>();
+    // Jobs submitted from this tab that have not finished yet.
+    private final Set<TransferScheduler.Job> jobs = ConcurrentHashMap.newKeySet();
     private ProgressBar sendProgressBar;
+    private Label progressLabel = new Label();
 
     public SendTab(Stage stage, LogTab logTab) {
         this.logTab = logTab;
@@ -40,17 +54,47 @@ public class SendTab extends Tab {
     private VBox getvBox(Button sendFileButton, TextField sendPathField, Button chooseFileToSend) {
         TextField serverText = new TextField("Server: ");
         TextField portText = new TextField("Port: ");
+        TextField connectionsText = new TextField("Connections: ");
         serverText.setEditable(false);
         portText.setEditable(false);
-        HBox hBox = new HBox(serverText, serverTextField);
-        HBox hBox1 = new HBox(portText, portTextField);
+        connectionsText.setEditable(false);
+        priorityChoiceBox.getItems().addAll(TransferScheduler.Priority.values());
+        priorityChoiceBox.setValue(TransferScheduler.Priority.NORMAL);
+        priorityChoiceBox.setTooltip(new Tooltip("Files with a higher priority are sent first"));
+        Button cancelButton = new Button("Cancel Transfers");
+        cancelButton.setOnAction(e -> cancelTransfers());
+        HBox hBox = new HBox(serverText, serverTextField, priorityChoiceBox, cancelButton);
+        TextField rateLimitText = new TextField("Max MB/s: ");
+        rateLimitText.setEditable(false);
+        rateLimitTextField.setPromptText("unlimited");
+        rateLimitTextField.setOnAction(e -> applyRateLimit());
+        HBox hBox1 = new HBox(portText, portTextField, rateLimitText, rateLimitTextField);
+        HBox hBox2 = new HBox(connectionsText, connectionsTextField, resumableCheckBox, deltaCheckBox, dedupCheckBox, compressCheckBox, verifyCheckBox, manifestCheckBox);
         hBox.setAlignment(Pos.CENTER);
         hBox1.setAlignment(Pos.CENTER);
-        VBox vBox = new VBox(hBox, hBox1, sendFileButton, sendPathField, chooseFileToSend, sendProgressBar);
+        hBox2.setAlignment(Pos.CENTER);
+        VBox vBox = new VBox(hBox, hBox1, hBox2, sendFileButton, sendPathField, chooseFileToSend, sendProgressBar, progressLabel);
         vBox.setAlignment(Pos.CENTER);
         return vBox;
     }
 
+    /**
+     * Applies the rate limit entered in the GUI to all transfers sent from this application, including those
+     * that are running. An empty field removes the limit.
+     */
+    private void applyRateLimit() {
+        String text = rateLimitTextField.getText().trim();
+        try {
+            double megabytesPerSecond = text.isEmpty() ? 0 : Double.parseDouble(text);
+            if (megabytesPerSecond < 0) {
+                throw new NumberFormatException(text);
+            }
+            FileSender.getGlobalRateLimiter().setRate((long) (megabytesPerSecond * 1024 * 1024));
+        } catch (NumberFormatException ex) {
+            showErrorMessage("The rate limit must be a number of megabytes per second.");
+        }
+    }
+
     /**
      * Initializes the components of the application window.
      *
@@ -60,8 +104,14 @@ public class SendTab extends Tab {
         sendProgressBar = createProgressBar();
         TextField sendPathField = createSendPathField();
         Button chooseFileToSend = createChooseFileButton(stage, sendPathField);
+        Button chooseFolderToSend = createChooseFolderButton(stage, sendPathField);
         Button sendFileButton = createSendFileButton(sendPathField);
         VBox vBox = getvBox(chooseFileToSend, sendPathField, sendFileButton);
+        // Put the folder chooser next to the file chooser. Moving the file chooser into the HBox removes it from the VBox.
+        int chooseIndex = vBox.getChildren().indexOf(chooseFileToSend);
+        HBox chooseButtons = new HBox(chooseFileToSend, chooseFolderToSend);
+        chooseButtons.setAlignment(Pos.CENTER);
+        vBox.getChildren().add(chooseIndex, chooseButtons);
         setContent(vBox);
     }
 
@@ -110,14 +160,18 @@ public class SendTab extends Tab {
      * This method is used to send a file to a specified server on a specific port.
      * It retrieves filename, server and port values from the GUI, validates that they are not empty,
      * and then initializes a file sender with these parameters.
-     * A progress bar is shown in the GUI while the file is being sent.
+     * The file is split over the number of parallel connections entered in the GUI,
+     * unless the transfer is resumable, a delta or a deduplicated transfer, in which case a single connection is used.
+     * The file is queued with the transfer scheduler of the application at the priority chosen in the GUI,
+     * and a progress bar is shown while files from this tab are queued or being sent, updated by progress events.
      * If sending the file is successful, it logs the transfer and inserts it into a database.
      * If the file transfer fails, it shows an error message.
      *
      * @param sendPathField TextField GUI component that contains the full path to the file to send.
      */
     private void sendFile(TextField sendPathField) {
-        if (sendPathField.getText().isEmpty() || serverTextField.getText().isEmpty() || portTextField.getText().isEmpty()) {
+        if (sendPathField.getText().isEmpty() || serverTextField.getText().isEmpty() || portTextField.getText().isEmpty()
+                || connectionsTextField.getText().isEmpty()) {
             showErrorMessage("Please fill in all fields and select a file.");
             return;
         }
@@ -125,48 +179,62 @@ public class SendTab extends Tab {
         String filename = sendPathField.getText();
         String server = serverTextField.getText();
         int port = Integer.parseInt(portTextField.getText());
+        int connections = Integer.parseInt(connectionsTextField.getText());
+        if (connections < 1 || connections > TransferMetadata.MAX_STRIPE_COUNT) {
+            showErrorMessage("Connections must be from 1 to " + TransferMetadata.MAX_STRIPE_COUNT + ".");
+            return;
+        }
 
         FileSender fileSender = new FileSender(filename, server, port);
+        fileSender.setStripeCount(connections);
+        try {
+            fileSender.setResumable(resumableCheckBox.isSelected());
+            fileSender.setDelta(deltaCheckBox.isSelected());
+            fileSender.setDedup(dedupCheckBox.isSelected());
+            fileSender.setCompressed(compressCheckBox.isSelected());
+            fileSender.setChecksummed(verifyCheckBox.isSelected());
+        } catch (IllegalArgumentException e) {
+            showErrorMessage(e.getMessage() + ".");
+            return;
+        }
+        fileSender.setManifest(manifestCheckBox.isSelected());
+        // Files sent one after the other to the same receiver reuse the connection.
+        fileSender.setKeepAlive(true);
 
+        applyRateLimit();
         sendProgressBar.setVisible(true);
 
-        new Thread(() -> {
-            try {
-                fileSender.send();
-                // TODO: never reaches this point it seems. Investigate.
-                waitForFileToSend(fileSender);
-
+        fileSender.addProgressListener(event -> Platform.runLater(() -> {
+            sendProgressBar.setProgress(event.getProgress());
+            progressLabel.setText(event.isDone() ? "" : event.toString());
+        }));
+        TransferScheduler.Job job = FileTransfer.getScheduler().submit(fileSender, priorityChoiceBox.getValue());
+        jobs.add(job);
+        job.getResult().whenComplete((result, failure) -> {
+            jobs.remove(job);
+            if (failure == null) {
+                db.insertSentFileTransfer(filename, fileSender.getTotalBytes(), server, String.valueOf(port));
                 Platform.runLater(() -> {
-                    sendProgressBar.setVisible(false);
+                    sendProgressBar.setVisible(!jobs.isEmpty());
                     logTab.logSent(filename, server, port);
-                    db.insertSentFileTransfer(filename, fileSender.getTotalBytes(), server, String.valueOf(port));
                     showInformation("File sent successfully.");
                 });
-            } catch (IOException ex) {
-                ex.printStackTrace();
+            } else if (job.getState() == TransferScheduler.State.CANCELLED) {
+                Platform.runLater(() -> sendProgressBar.setVisible(!jobs.isEmpty()));
+            } else {
+                failure.printStackTrace();
+                Platform.runLater(() -> sendProgressBar.setVisible(!jobs.isEmpty()));
                 showErrorMessage("An error occurred while sending the file.");
             }
-        }).start();
+        });
     }
 
-
     /**
-     * This method waits for the file to be sent by continuously checking the status of the FileSender.
-     * It updates the progress bar in the GUI based on the progress of the file transfer.
-     * Sleeps for 100  milliseconds to avoid using too much CPU while waiting for the file to be sent.
-     *
-     * @param fileSender The FileSender object responsible for sending the file.
+     * Cancels all files sent from this tab that are still queued or running.
      */
-    private void waitForFileToSend(FileSender fileSender) {
-        while (fileSender.isSending()) {
-            double progress = fileSender.getProgress();
-            Platform.runLater(() -> sendProgressBar.setProgress(progress));
-
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException ex) {
-                ex.printStackTrace();
-            }
+    private void cancelTransfers() {
+        for (TransferScheduler.Job job : jobs) {
+            job.cancel();
         }
     }
 
@@ -224,4 +292,23 @@ public class SendTab extends Tab {
         chooseFileToSend.setOnAction(e -> chooseFile(stage, sendPathField));
         return chooseFileToSend;
     }
-}
\ No newline at end of file
+
+    /**
+     * Creates a button with the label "Choose Folder to Send" that opens a directory chooser dialog when clicked.
+     * A folder is sent with all files in it over a single connection.
+     *
+     * @param stage         The primary stage of the application.
+     * @param sendPathField The text field representing the path of the folder to be sent.
+     * @return The created button with the click event handler to open the directory chooser dialog.
+     */
+    private Button createChooseFolderButton(Stage stage, TextField sendPathField) {
+        Button chooseFolderToSend = new Button("Choose Folder to Send");
+        chooseFolderToSend.setOnAction(e -> {
+            File directory = new DirectoryChooser().showDialog(stage);
+            if (directory != null) {
+                sendPathField.setText(directory.getAbsolutePath());
+            }
+        });
+        return chooseFolderToSend;
+    }
+}
@@ -0,0 +1,183 @@
+package com.example.filetransfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The SessionPool class keeps the sessions of a sender open between transfers, per peer, see TransferSession.
+ * <p>
+ * A transfer takes an idle session to its receiver from the pool, or opens a new one if there is none, and gives it
+ * back once the receiver has confirmed the transfer. A session that has been idle for a while is pinged before it is
+ * used again, and sessions idle for longer than the idle timeout are closed in the background. The idle timeout must
+ * be shorter than that of the receivers, see ReceiverServer.setSessionIdleTimeout, so the sender closes first.
+ * Sessions of failed transfers are closed rather than given back.
+ */
+public final class SessionPool {
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30_000;
+    public static final int DEFAULT_MAX_IDLE_SESSIONS = 8;
+    // Sessions that have been idle for longer are pinged before they are used again.
+    private static final long HEALTH_CHECK_AFTER = TimeUnit.SECONDS.toNanos(5);
+
+    // Idle sessions per peer, the most recently used first. Guarded by this.
+    private final Map<String, Deque<TransferSession>> idle = new HashMap<>();
+    private ScheduledExecutorService reaper;
+    private volatile byte[] key = TransferSession.defaultKey();
+    private volatile long idleTimeout = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_MILLIS);
+    private volatile int maxIdleSessions = DEFAULT_MAX_IDLE_SESSIONS;
+
+    SessionPool() {
+    }
+
+    /**
+     * Takes an idle session to the peer that still answers, or opens a new one.
+     *
+     * The connection is tracked by the sender while it is checked or opened, so cancelling the transfer ends
+     * a health check or a handshake that hangs.
+     *
+     * @param peer   the server and port
+     * @param sender opens a connection to the peer if there is no idle session
+     * @throws Handshake.LegacyPeerException if the peer does not support sessions
+     */
+    TransferSession acquire(String peer, FileSender sender) throws IOException {
+        TransferSession session;
+        while ((session = poll(peer)) != null) {
+            Closeable abort = session::abort;
+            sender.track(abort);
+            try {
+                if (session.getIdleNanos() < HEALTH_CHECK_AFTER || session.ping()) {
+                    session.setReused(true);
+                    return session;
+                }
+            } finally {
+                sender.untrack(abort);
+            }
+            session.close();
+        }
+        Socket socket = sender.openSocket();
+        sender.track(socket);
+        try {
+            return TransferSession.open(peer, socket, key);
+        } finally {
+            sender.untrack(socket);
+        }
+    }
+
+    private synchronized TransferSession poll(String peer) {
+        Deque<TransferSession> sessions = idle.get(peer);
+        return sessions != null ? sessions.pollFirst() : null;
+    }
+
+    /**
+     * Gives a session back after a confirmed transfer. It is closed if the peer already has enough idle sessions.
+     */
+    void release(TransferSession session) {
+        synchronized (this) {
+            Deque<TransferSession> sessions = idle.computeIfAbsent(session.getPeer(), peer -> new ArrayDeque<>());
+            if (sessions.size() < maxIdleSessions) {
+                sessions.addFirst(session);
+                startReaper();
+                return;
+            }
+        }
+        session.close();
+    }
+
+    // Checks for expired sessions a few times per idle timeout, from the first session that is given back on.
+    private void startReaper() {
+        if (reaper != null) {
+            return;
+        }
+        reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(TimeUnit.MILLISECONDS.toNanos(100), idleTimeout / 4);
+        reaper.scheduleWithFixedDelay(this::closeExpired, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    private void closeExpired() {
+        List<TransferSession> expired = new ArrayList<>();
+        synchronized (this) {
+            for (Deque<TransferSession> sessions : idle.values()) {
+                for (Iterator<TransferSession> it = sessions.iterator(); it.hasNext(); ) {
+                    TransferSession session = it.next();
+                    if (session.getIdleNanos() >= idleTimeout) {
+                        it.remove();
+                        expired.add(session);
+                    }
+                }
+            }
+        }
+        expired.forEach(TransferSession::close);
+    }
+
+    /**
+     * Closes all idle sessions. Sessions in use are given back afterwards as usual.
+     */
+    public void closeAll() {
+        List<TransferSession> sessions = new ArrayList<>();
+        synchronized (this) {
+            idle.values().forEach(sessions::addAll);
+            idle.clear();
+        }
+        sessions.forEach(TransferSession::close);
+    }
+
+    /**
+     * Returns the number of idle sessions to a peer.
+     */
+    public synchronized int getIdleSessions(String server, int port) {
+        Deque<TransferSession> sessions = idle.get(server + ":" + port);
+        return sessions != null ? sessions.size() : 0;
+    }
+
+    /**
+     * Returns true if sessions authenticate with a key, transfers are then always sent over sessions.
+     */
+    boolean hasKey() {
+        return key != null;
+    }
+
+    /**
+     * Sets the key sessions authenticate with, for receivers that require one. Applies to sessions opened afterwards.
+     * The default is the value of the system property filetransfer.session.key.
+     *
+     * @param key the key, or null for receivers that accept any sender
+     */
+    public void setKey(String key) {
+        this.key = key != null ? key.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Sets how long a session may be idle before it is closed. Must be called before the first transfer.
+     */
+    public void setIdleTimeout(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("Idle timeout must be positive, was " + millis);
+        }
+        this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Sets how many idle sessions are kept per peer, enough for the stripes of a transfer.
+     */
+    public void setMaxIdleSessions(int maxIdleSessions) {
+        if (maxIdleSessions < 0) {
+            throw new IllegalArgumentException("Max idle sessions must not be negative, was " + maxIdleSessions);
+        }
+        this.maxIdleSessions = maxIdleSessions;
+    }
+}
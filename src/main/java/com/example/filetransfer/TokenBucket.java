@@ -0,0 +1,192 @@
+package com.example.filetransfer;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The TokenBucket class limits the rate at which bytes are sent or received.
+ * <p>
+ * Tokens accumulate at the configured rate up to the burst size, so a transfer that was idle may send a burst at
+ * full speed. Every chunk takes its size in tokens at once, possibly leaving the bucket in debt, and the caller
+ * waits until the debt is paid off. That costs a single synchronized update per chunk, however large the chunk is.
+ * <p>
+ * The rate can be changed at any time and applies to transfers that are running, including those that are waiting:
+ * a wait lasts at most MAX_WAIT before the debt is checked again at the current rate. The bytes that pass through the
+ * bucket are counted, so the actual throughput can be observed whether a rate is set or not.
+ */
+public final class TokenBucket {
+    /**
+     * The rate of a bucket that does not limit.
+     */
+    public static final long UNLIMITED = 0;
+
+    // The throughput is measured over windows of this length.
+    private static final long THROUGHPUT_WINDOW = TimeUnit.SECONDS.toNanos(1);
+    // The longest a transfer waits before it checks the bucket again, so that a new rate applies to it soon.
+    static final long MAX_WAIT = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private long rate;
+    private long burst;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    private long totalBytes;
+    private long windowStart = lastRefill;
+    private long windowBytes;
+    private double throughput;
+
+    /**
+     * @param bytesPerSecond the rate, or UNLIMITED
+     */
+    public TokenBucket(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+    }
+
+    /**
+     * Sets the rate with a burst of one second at that rate.
+     *
+     * @param bytesPerSecond the rate, or UNLIMITED
+     */
+    public void setRate(long bytesPerSecond) {
+        setRate(bytesPerSecond, bytesPerSecond);
+    }
+
+    /**
+     * Sets the rate and the number of bytes that may pass at once after the bucket has been idle.
+     * Transfers that are waiting for tokens continue at the new rate within MAX_WAIT.
+     *
+     * @param bytesPerSecond the rate, or UNLIMITED
+     * @param burst          the capacity of the bucket in bytes
+     */
+    public synchronized void setRate(long bytesPerSecond, long burst) {
+        if (bytesPerSecond < 0 || (bytesPerSecond > 0 && burst <= 0)) {
+            throw new IllegalArgumentException("Invalid rate " + bytesPerSecond + " with burst " + burst);
+        }
+        refill(System.nanoTime());
+        // A bucket that did not limit starts full, debt taken at the old rate is not carried over beyond one burst.
+        tokens = rate == UNLIMITED ? burst : Math.max(-burst, Math.min(tokens, burst));
+        this.rate = bytesPerSecond;
+        this.burst = burst;
+    }
+
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    public synchronized long getBurst() {
+        return burst;
+    }
+
+    /**
+     * Takes tokens for bytes that are about to pass, or have just passed, and returns how long to wait before
+     * the next chunk at the current rate. Callers that cannot block, such as the NIO engine, pause themselves,
+     * for at most MAX_WAIT at a time before they check pending again.
+     *
+     * @return the time to wait in nanoseconds, 0 if the bytes may pass now
+     */
+    public synchronized long reserve(long bytes) {
+        long now = System.nanoTime();
+        count(now, bytes);
+        if (rate == UNLIMITED) {
+            return 0;
+        }
+        refill(now);
+        tokens -= bytes;
+        return debtNanos();
+    }
+
+    /**
+     * Returns how long to wait until the bucket is out of debt at the current rate, without taking tokens.
+     */
+    synchronized long pending() {
+        if (rate == UNLIMITED) {
+            return 0;
+        }
+        refill(System.nanoTime());
+        return debtNanos();
+    }
+
+    private long debtNanos() {
+        return tokens >= 0 ? 0 : (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+    }
+
+    /**
+     * Takes tokens for bytes that are about to pass, or have just passed, and waits until the bucket is out of debt.
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        long wait = reserve(bytes);
+        while (wait > 0) {
+            sleep(Math.min(wait, MAX_WAIT));
+            wait = pending();
+        }
+    }
+
+    /**
+     * Takes tokens from both buckets and waits as long as the slower one requires.
+     */
+    static void acquire(TokenBucket global, TokenBucket transfer, long bytes) throws InterruptedIOException {
+        long wait = Math.max(global.reserve(bytes), transfer.reserve(bytes));
+        while (wait > 0) {
+            sleep(Math.min(wait, MAX_WAIT));
+            wait = Math.max(global.pending(), transfer.pending());
+        }
+    }
+
+    private static void sleep(long nanos) throws InterruptedIOException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        }
+    }
+
+    /**
+     * Returns the largest chunk that should be moved at once, so that a slow rate is not met with bursts of
+     * large chunks followed by long pauses.
+     */
+    synchronized long maxChunk(long chunk) {
+        return rate == UNLIMITED ? chunk : Math.max(1, Math.min(chunk, burst));
+    }
+
+    private void refill(long now) {
+        if (rate != UNLIMITED) {
+            tokens = Math.min(burst, tokens + (double) (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+        }
+        lastRefill = now;
+    }
+
+    private void count(long now, long bytes) {
+        totalBytes += bytes;
+        rollWindow(now);
+        windowBytes += bytes;
+    }
+
+    // Completes the measuring window once it is over.
+    private void rollWindow(long now) {
+        long elapsed = now - windowStart;
+        if (elapsed >= THROUGHPUT_WINDOW) {
+            throughput = (double) windowBytes * TimeUnit.SECONDS.toNanos(1) / elapsed;
+            windowStart = now;
+            windowBytes = 0;
+        }
+    }
+
+    /**
+     * Returns the bytes per second that passed through the bucket during the last complete measuring window.
+     */
+    public synchronized double getThroughput() {
+        rollWindow(System.nanoTime());
+        return throughput;
+    }
+
+    /**
+     * Returns the number of bytes that passed through the bucket since it was created.
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+}
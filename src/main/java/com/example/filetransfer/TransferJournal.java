@@ -0,0 +1,247 @@
+package com.example.filetransfer;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The TransferJournal class writes the history of transfers to the database behind the back of the callers.
+ * <p>
+ * Records are put into a bounded queue and written by a background thread over a connection of its own, in JDBC
+ * batches of a single transaction with one reused statement. A batch is written once it holds batchSize records, or
+ * maxDelay after its first record arrived, whichever comes first. The timestamp of a record is taken when it is
+ * queued, so the delay does not show in the history. When the queue is full, callers wait for the writer rather
+ * than losing records. The statistics tables are updated in the same transaction, see TransferRollup.
+ * <p>
+ * A batch that fails is rolled back and the writer continues with the next one. Should the writer die anyway, the
+ * journal closes itself: waiting callers are released and later records are not logged.
+ */
+final class TransferJournal {
+    static final int CAPACITY = 10_000;
+    static final int DEFAULT_BATCH_SIZE = 100;
+    static final long DEFAULT_MAX_DELAY_MILLIS = 200;
+
+    private static final String INSERT_SQL = "INSERT INTO file_transfers (filename, filesize, transfer_direction, timestamp, server, port) " +
+            "VALUES (?, ?, ?, ?, ?, ?)";
+
+    private final Connection connection;
+    private final PreparedStatement insert;
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private final Thread writer;
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+    private volatile long maxDelay = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_DELAY_MILLIS);
+    private volatile boolean closed;
+    // Set by the writer before it releases what is left in the queue for the last time, see releasePending.
+    private volatile boolean stopped;
+
+    /**
+     * @param connection a connection for the journal alone, it is switched to manual commits and closed with the journal
+     */
+    TransferJournal(Connection connection) throws SQLException {
+        this.connection = connection;
+        connection.setAutoCommit(false);
+        this.insert = connection.prepareStatement(INSERT_SQL);
+        this.writer = new Thread(this::writeBatches, "transfer-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Sets when queued records are written. Applies from the next batch on.
+     *
+     * @param batchSize      the number of records that are written at once
+     * @param maxDelayMillis how long the first record of a batch may wait for more, 0 to write what is queued right away
+     */
+    void setFlushPolicy(int batchSize, long maxDelayMillis) {
+        if (batchSize < 1 || maxDelayMillis < 0) {
+            throw new IllegalArgumentException("Invalid flush policy, batch size " + batchSize + " and delay " + maxDelayMillis);
+        }
+        this.batchSize = batchSize;
+        this.maxDelay = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+    }
+
+    /**
+     * Queues a record, waiting if the queue is full.
+     */
+    void append(FileTransferRecord record) {
+        if (closed) {
+            System.out.println("The transfer history is closed, " + record.getFilename() + " is not logged.");
+            return;
+        }
+        put(new Entry(record, null, false));
+    }
+
+    /**
+     * Waits until all records queued so far have been written.
+     */
+    void flush() {
+        if (!closed) {
+            awaitMarker(false);
+        }
+    }
+
+    /**
+     * Writes all queued records, then stops the writer and closes the connection.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        awaitMarker(true);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Queues a marker behind the records queued so far and waits until the writer reaches it.
+    private void awaitMarker(boolean close) {
+        CountDownLatch reached = new CountDownLatch(1);
+        put(new Entry(null, reached, close));
+        try {
+            reached.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void put(Entry entry) {
+        try {
+            queue.put(entry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Interrupted while logging a transfer.");
+            return;
+        }
+        // The writer may have stopped after the caller checked closed, then nobody else takes the entry.
+        if (stopped) {
+            releasePending();
+        }
+    }
+
+    // Empties the queue once the writer has stopped: records are dropped and whoever waits for a marker is released.
+    private void releasePending() {
+        int dropped = 0;
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            if (entry.record != null) {
+                dropped++;
+            } else {
+                entry.reached.countDown();
+            }
+        }
+        if (dropped > 0) {
+            System.out.println("The transfer history is closed, " + dropped + " transfers are not logged.");
+        }
+    }
+
+    private void writeBatches() {
+        try {
+            writeBatches(new ArrayList<>());
+        } catch (Throwable e) {
+            System.out.println("The transfer history stopped unexpectedly. " + e);
+        } finally {
+            closed = true;
+            stopped = true;
+            releasePending();
+            try {
+                insert.close();
+                connection.close();
+            } catch (SQLException e) {
+                System.out.println("Failed to close the transfer history. " + e.getMessage());
+            }
+        }
+    }
+
+    private void writeBatches(List<FileTransferRecord> batch) {
+        boolean running = true;
+        while (running) {
+            Entry marker = null;
+            try {
+                Entry entry = queue.take();
+                long deadline = System.nanoTime() + maxDelay;
+                while (entry != null) {
+                    if (entry.record == null) {
+                        marker = entry;
+                        break;
+                    }
+                    batch.add(entry.record);
+                    if (batch.size() >= batchSize) {
+                        break;
+                    }
+                    entry = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                }
+            } catch (InterruptedException e) {
+                // The writer is never interrupted on purpose, everything queued is still written below.
+                closed = true;
+                running = false;
+            }
+
+            try {
+                write(batch);
+            } finally {
+                // Released even if the writer dies, the marker is no longer in the queue for releasePending.
+                batch.clear();
+                if (marker != null) {
+                    running = !marker.close;
+                    marker.reached.countDown();
+                }
+            }
+        }
+    }
+
+    // Writes the records and adds them to the statistics in a single transaction, which is rolled back if any of them fails.
+    private void write(List<FileTransferRecord> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            for (FileTransferRecord record : batch) {
+                insert.setString(1, record.getFilename());
+                insert.setLong(2, record.getFilesize());
+                insert.setString(3, record.getTransferDirection());
+                insert.setTimestamp(4, Timestamp.from(record.getTimestamp()));
+                insert.setString(5, record.getServer());
+                insert.setString(6, record.getPort());
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            TransferRollup rollup = new TransferRollup();
+            batch.forEach(rollup::add);
+            rollup.write(connection);
+            connection.commit();
+        } catch (SQLException | RuntimeException ex) {
+            System.out.println("Failed to log " + batch.size() + " transfers. " + ex);
+            try {
+                insert.clearBatch();
+                connection.rollback();
+            } catch (SQLException suppressed) {
+                System.out.println(suppressed.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A queued record, or a marker that the writer signals once everything before it has been written.
+     */
+    private static final class Entry {
+        private final FileTransferRecord record;
+        private final CountDownLatch reached;
+        private final boolean close;
+
+        private Entry(FileTransferRecord record, CountDownLatch reached, boolean close) {
+            this.record = record;
+            this.reached = reached;
+            this.close = close;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.example.filetransfer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.HexFormat;
+import java.util.UUID;
+
+/**
+ * Describes a file transfer as announced by the sender before the file content.
+ * The metadata is exchanged as a binary frame, see MetadataCodec, or as a JSON object with peers that only speak
+ * the legacy protocol. A transfer can be split into several stripes that are sent over
+ * separate connections, in which case each connection announces which byte range of the file it carries.
+ * Only the name and the size are required, so metadata without stripe information describes a single stripe
+ * covering the whole file. Resumable transfers carry a transfer id that stays the same across reconnects,
+ * delta transfers only send what differs from the receiver's existing copy, see DeltaSync,
+ * and deduplicated transfers only send chunks the receiver has not seen before, see ChunkStore.
+ * A codec asks the receiver to accept the content as compressed frames, see CompressedFraming.
+ * A batch transfer carries a whole directory tree instead of a single file, see BatchTransfer,
+ * a checksummed transfer is verified while it streams, see ChecksummedTransfer,
+ * and a transfer with a manifest root is checked against the sender's Merkle tree afterwards, see MerkleManifest.
+ * An inline transfer carries a small file right behind its metadata, without waiting for the receiver.
+ */
+public class TransferMetadata {
+    /**
+     * The most stripes a transfer can be split into, as each of them holds a connection of the receiver.
+     */
+    public static final int MAX_STRIPE_COUNT = 64;
+
+    private final String name;
+    private final long size;
+    private final String transferId;
+    private final int stripeIndex;
+    private final int stripeCount;
+    private final long offset;
+    private final long length;
+    private boolean resumable;
+    private boolean delta;
+    private boolean deduplicated;
+    private String codec;
+    private boolean batch;
+    private boolean checksummed;
+    private String manifestRoot;
+    private boolean inline;
+
+    public TransferMetadata(String name, long size, String transferId, int stripeIndex, int stripeCount, long offset, long length) {
+        this.name = name;
+        this.size = size;
+        this.transferId = transferId;
+        this.stripeIndex = stripeIndex;
+        this.stripeCount = stripeCount;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Parses metadata received from a sender.
+     *
+     * @param metadata the JSON formatted metadata
+     * @return the parsed metadata
+     * @throws JSONException if the name or size is missing
+     * @throws IOException   if the metadata is invalid, see validate()
+     */
+    public static TransferMetadata fromJson(String metadata) throws IOException {
+        JSONObject json = new JSONObject(metadata);
+        String name = json.getString("name");
+        long size = json.getLong("size");
+        TransferMetadata transferMetadata = new TransferMetadata(name, size,
+                json.optString("id", null),
+                json.optInt("stripe", 0),
+                json.optInt("stripes", 1),
+                json.optLong("offset", 0),
+                json.optLong("length", size));
+        transferMetadata.setResumable(json.optBoolean("resume", false));
+        transferMetadata.setDelta(json.optBoolean("delta", false));
+        transferMetadata.setDeduplicated(json.optBoolean("dedup", false));
+        transferMetadata.setCodec(json.optString("codec", null));
+        transferMetadata.setBatch(json.optBoolean("batch", false));
+        transferMetadata.setChecksummed(json.optBoolean("crc", false));
+        transferMetadata.setManifestRoot(json.optString("merkle", null));
+        transferMetadata.validate();
+        return transferMetadata;
+    }
+
+    /**
+     * Checks metadata received from a sender before anything is allocated or opened for it: the stripe must lie
+     * within the file, the stripe count must not exceed MAX_STRIPE_COUNT, striped and resumable transfers must
+     * carry a transfer id, and the transfer id and the manifest root must be well-formed.
+     *
+     * @throws IOException if the metadata is invalid
+     */
+    void validate() throws IOException {
+        if (size < 0 || offset < 0 || length < 0 || length > size - offset) {
+            throw new IOException("Invalid range of " + length + " bytes at " + offset + " of " + size + " bytes for " + name);
+        }
+        if (stripeCount < 1 || stripeCount > MAX_STRIPE_COUNT || stripeIndex < 0 || stripeIndex >= stripeCount) {
+            throw new IOException("Invalid stripe " + stripeIndex + " of " + stripeCount + " for " + name);
+        }
+        if (transferId == null) {
+            if (isStriped() || resumable) {
+                throw new IOException("Missing transfer id for " + name);
+            }
+        } else if (!isUuid(transferId)) {
+            throw new IOException("Invalid transfer id " + transferId + " for " + name);
+        }
+        if (manifestRoot != null && !isHash(manifestRoot)) {
+            throw new IOException("Invalid manifest root " + manifestRoot + " for " + name);
+        }
+    }
+
+    private static boolean isUuid(String id) {
+        try {
+            // UUID.fromString accepts shortened forms as well, which the transfer id never has.
+            return UUID.fromString(id).toString().equals(id);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static boolean isHash(String hex) {
+        return hex.length() == 2 * MerkleManifest.HASH_SIZE && hex.chars().allMatch(HexFormat::isHexDigit);
+    }
+
+    /**
+     * Creates the JSON formatted metadata that is written to the socket.
+     */
+    public String toJson() {
+        JSONObject json = new JSONObject();
+        json.put("name", name);
+        json.put("size", size);
+        if (stripeCount > 1) {
+            json.put("id", transferId);
+            json.put("stripe", stripeIndex);
+            json.put("stripes", stripeCount);
+            json.put("offset", offset);
+            json.put("length", length);
+        }
+        if (resumable) {
+            json.put("id", transferId);
+            json.put("resume", true);
+        }
+        if (delta) {
+            json.put("delta", true);
+        }
+        if (deduplicated) {
+            json.put("dedup", true);
+        }
+        if (codec != null) {
+            json.put("codec", codec);
+        }
+        if (batch) {
+            json.put("batch", true);
+        }
+        if (checksummed) {
+            json.put("crc", true);
+        }
+        if (manifestRoot != null) {
+            json.put("merkle", manifestRoot);
+        }
+        return json.toString();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getTransferId() {
+        return transferId;
+    }
+
+    public int getStripeIndex() {
+        return stripeIndex;
+    }
+
+    public int getStripeCount() {
+        return stripeCount;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public boolean isStriped() {
+        return stripeCount > 1;
+    }
+
+    /**
+     * Returns true if the receiver should continue from the bytes it already has of this transfer.
+     */
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    public void setResumable(boolean resumable) {
+        this.resumable = resumable;
+    }
+
+    /**
+     * Returns true if only the differences to the receiver's existing copy of the file are sent.
+     */
+    public boolean isDelta() {
+        return delta;
+    }
+
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+
+    /**
+     * Returns true if only the chunks the receiver does not have yet are sent.
+     */
+    public boolean isDeduplicated() {
+        return deduplicated;
+    }
+
+    public void setDeduplicated(boolean deduplicated) {
+        this.deduplicated = deduplicated;
+    }
+
+    /**
+     * Returns the codec the sender asks to compress the content with, or null if it is sent uncompressed.
+     */
+    public String getCodec() {
+        return codec;
+    }
+
+    public void setCodec(String codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Returns true if the transfer carries a directory tree. The name is the name of the directory
+     * and the size is the total size of all files in it.
+     */
+    public boolean isBatch() {
+        return batch;
+    }
+
+    public void setBatch(boolean batch) {
+        this.batch = batch;
+    }
+
+    /**
+     * Returns true if the content is sent in chunks with checksums, and failed chunks are sent again.
+     */
+    public boolean isChecksummed() {
+        return checksummed;
+    }
+
+    public void setChecksummed(boolean checksummed) {
+        this.checksummed = checksummed;
+    }
+
+    /**
+     * Returns the hex encoded root of the sender's Merkle tree manifest, or null if the transfer has none.
+     */
+    public String getManifestRoot() {
+        return manifestRoot;
+    }
+
+    public void setManifestRoot(String manifestRoot) {
+        this.manifestRoot = manifestRoot;
+    }
+
+    /**
+     * Returns true if the content follows the metadata before the receiver has answered the hello, and the receiver
+     * answers the hello together with whether it has written the file. Only used for small files.
+     */
+    public boolean isInline() {
+        return inline;
+    }
+
+    public void setInline(boolean inline) {
+        this.inline = inline;
+    }
+
+    /**
+     * Returns true if sender and receiver exchange more than the file content after the metadata.
+     * Such transfers are handled on the blocking path only.
+     */
+    public boolean requiresExchange() {
+        return delta || deduplicated || codec != null || batch || checksummed || manifestRoot != null || inline;
+    }
+}
@@ -0,0 +1,321 @@
+package com.example.filetransfer;
+
+import org.json.JSONObject;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * The TransferMetrics class counts the transfers in one direction, sent or received, of this process.
+ * <p>
+ * It keeps counters for bytes and for started, completed and failed transfers, overall and per peer, and
+ * histograms of the connect latency, the time to first byte, the transfer duration, the latency of single chunks
+ * and the time transfers were stalled, see LatencyHistogram. Every transfer reports through its own Recording,
+ * which only updates atomic counters, so nothing is allocated while the content is copied.
+ * <p>
+ * The metrics can be registered as an MXBean, and snapshots can be taken as JSON, also at a fixed rate.
+ */
+public final class TransferMetrics implements TransferMetricsMXBean {
+    /**
+     * Chunks that take longer than this count as stalled, the peer or the disk did not keep up.
+     */
+    public static final long STALL_THRESHOLD = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final String DOMAIN = "com.example.filetransfer";
+    private static final String SNAPSHOT_INTERVAL_PROPERTY = "filetransfer.metrics.interval";
+    private static final ScheduledExecutorService SNAPSHOTS = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metrics-snapshots");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String direction;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong transfersStarted = new AtomicLong();
+    private final AtomicLong transfersCompleted = new AtomicLong();
+    private final AtomicLong transfersFailed = new AtomicLong();
+    private final AtomicLong connectionsRejected = new AtomicLong();
+    private final LatencyHistogram connectLatency = new LatencyHistogram();
+    private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+    private final LatencyHistogram transferDuration = new LatencyHistogram();
+    private final LatencyHistogram chunkLatency = new LatencyHistogram();
+    private final LatencyHistogram stallTime = new LatencyHistogram();
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+
+    /**
+     * @param direction "sent" or "received", part of the JMX name and of the snapshots
+     */
+    TransferMetrics(String direction) {
+        this.direction = direction;
+    }
+
+    /**
+     * Starts recording a transfer.
+     *
+     * @param peer the address of the other side
+     */
+    Recording begin(String peer) {
+        transfersStarted.incrementAndGet();
+        return new Recording(peers.computeIfAbsent(peer, address -> new Peer()));
+    }
+
+    /**
+     * Records the time a connection took to be established, since the given System.nanoTime().
+     */
+    void connected(long startNanos) {
+        connectLatency.recordSince(startNanos);
+    }
+
+    /**
+     * Counts a connection that was refused because it was not authenticated.
+     */
+    void rejected() {
+        connectionsRejected.incrementAndGet();
+    }
+
+    /**
+     * Registers the metrics with an MBean server, under the name com.example.filetransfer:type=Transfers,direction=...
+     */
+    public void registerMBean(MBeanServer server) throws JMException {
+        server.registerMBean(this, new ObjectName(DOMAIN + ":type=Transfers,direction=" + direction));
+    }
+
+    /**
+     * Passes a snapshot of the metrics to the consumer at a fixed rate, on a shared background thread.
+     *
+     * @return the future to cancel the snapshots with
+     */
+    public ScheduledFuture<?> scheduleSnapshots(long period, TimeUnit unit, Consumer<JSONObject> consumer) {
+        return SNAPSHOTS.scheduleAtFixedRate(() -> {
+            try {
+                consumer.accept(snapshot());
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Prints snapshots of the metrics of sent and received files to standard output every n seconds,
+     * if the system property filetransfer.metrics.interval is set to n.
+     */
+    static void printSnapshotsIfRequested() {
+        long interval = Long.getLong(SNAPSHOT_INTERVAL_PROPERTY, 0);
+        if (interval > 0) {
+            FileSender.getMetrics().scheduleSnapshots(interval, TimeUnit.SECONDS, System.out::println);
+            FileReceiver.getMetrics().scheduleSnapshots(interval, TimeUnit.SECONDS, System.out::println);
+        }
+    }
+
+    /**
+     * Takes a snapshot of all counters and histograms. Durations are in milliseconds.
+     */
+    public JSONObject snapshot() {
+        JSONObject peerSnapshots = new JSONObject();
+        getPeers().forEach((address, peer) -> peerSnapshots.put(address, peer.toJson()));
+        return new JSONObject()
+                .put("direction", direction)
+                .put("bytes", getBytes())
+                .put("transfersStarted", getTransfersStarted())
+                .put("transfersCompleted", getTransfersCompleted())
+                .put("transfersFailed", getTransfersFailed())
+                .put("connectionsRejected", getConnectionsRejected())
+                .put("connectLatency", connectLatency.snapshot().toJson())
+                .put("timeToFirstByte", timeToFirstByte.snapshot().toJson())
+                .put("transferDuration", transferDuration.snapshot().toJson())
+                .put("chunkLatency", chunkLatency.snapshot().toJson())
+                .put("stallTime", stallTime.snapshot().toJson())
+                .put("peers", peerSnapshots);
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public long getTransfersStarted() {
+        return transfersStarted.get();
+    }
+
+    @Override
+    public long getTransfersCompleted() {
+        return transfersCompleted.get();
+    }
+
+    @Override
+    public long getTransfersFailed() {
+        return transfersFailed.get();
+    }
+
+    @Override
+    public long getConnectionsRejected() {
+        return connectionsRejected.get();
+    }
+
+    @Override
+    public long getActiveTransfers() {
+        return transfersStarted.get() - transfersCompleted.get() - transfersFailed.get();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getConnectLatency() {
+        return connectLatency.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getTimeToFirstByte() {
+        return timeToFirstByte.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getTransferDuration() {
+        return transferDuration.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getChunkLatency() {
+        return chunkLatency.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getStallTime() {
+        return stallTime.snapshot();
+    }
+
+    @Override
+    public Map<String, PeerSnapshot> getPeers() {
+        Map<String, PeerSnapshot> snapshots = new TreeMap<>();
+        peers.forEach((address, peer) -> snapshots.put(address, peer.snapshot()));
+        return snapshots;
+    }
+
+    /**
+     * The counters of a single peer.
+     */
+    private static final class Peer {
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong transfersCompleted = new AtomicLong();
+        private final AtomicLong transfersFailed = new AtomicLong();
+        private final AtomicLong duration = new AtomicLong();
+
+        PeerSnapshot snapshot() {
+            return new PeerSnapshot(bytes.get(), transfersCompleted.get(), transfersFailed.get(), duration.get() / 1e6);
+        }
+    }
+
+    /**
+     * The counters of a single peer at one point in time. Exposed over JMX as composite data.
+     */
+    public static final class PeerSnapshot {
+        private final long bytes;
+        private final long transfersCompleted;
+        private final long transfersFailed;
+        private final double totalDuration;
+
+        PeerSnapshot(long bytes, long transfersCompleted, long transfersFailed, double totalDuration) {
+            this.bytes = bytes;
+            this.transfersCompleted = transfersCompleted;
+            this.transfersFailed = transfersFailed;
+            this.totalDuration = totalDuration;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getTransfersCompleted() {
+            return transfersCompleted;
+        }
+
+        public long getTransfersFailed() {
+            return transfersFailed;
+        }
+
+        /**
+         * Returns the time spent on completed and failed transfers with the peer, in milliseconds.
+         */
+        public double getTotalDuration() {
+            return totalDuration;
+        }
+
+        JSONObject toJson() {
+            return new JSONObject()
+                    .put("bytes", bytes)
+                    .put("transfersCompleted", transfersCompleted)
+                    .put("transfersFailed", transfersFailed)
+                    .put("totalDuration", totalDuration);
+        }
+    }
+
+    /**
+     * Records a single transfer. Its methods may be called from all stripes of the transfer at once.
+     */
+    final class Recording {
+        private final Peer peer;
+        private final long startNanos = System.nanoTime();
+        private final AtomicBoolean firstByte = new AtomicBoolean();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private final AtomicLong stalled = new AtomicLong();
+
+        private Recording(Peer peer) {
+            this.peer = peer;
+        }
+
+        /**
+         * Counts bytes that have been sent or received.
+         */
+        void bytes(long count) {
+            bytes.addAndGet(count);
+            peer.bytes.addAndGet(count);
+            if (!firstByte.get() && firstByte.compareAndSet(false, true)) {
+                timeToFirstByte.recordSince(startNanos);
+            }
+        }
+
+        /**
+         * Records a chunk that was written to the socket or the file, since the given System.nanoTime().
+         */
+        void chunk(long chunkStartNanos) {
+            long latency = System.nanoTime() - chunkStartNanos;
+            chunkLatency.record(latency);
+            if (latency > STALL_THRESHOLD) {
+                stalled.addAndGet(latency);
+            }
+        }
+
+        void completed() {
+            if (finished.compareAndSet(false, true)) {
+                transfersCompleted.incrementAndGet();
+                peer.transfersCompleted.incrementAndGet();
+                finish();
+            }
+        }
+
+        void failed() {
+            if (finished.compareAndSet(false, true)) {
+                transfersFailed.incrementAndGet();
+                peer.transfersFailed.incrementAndGet();
+                finish();
+            }
+        }
+
+        private void finish() {
+            long duration = System.nanoTime() - startNanos;
+            transferDuration.record(duration);
+            peer.duration.addAndGet(duration);
+            stallTime.record(stalled.get());
+        }
+    }
+}
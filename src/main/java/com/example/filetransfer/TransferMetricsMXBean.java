@@ -0,0 +1,52 @@
+package com.example.filetransfer;
+
+import java.util.Map;
+
+/**
+ * The management interface of TransferMetrics, registered with JMX for the files sent and the files received.
+ * Durations are in milliseconds.
+ */
+public interface TransferMetricsMXBean {
+    long getBytes();
+
+    long getTransfersStarted();
+
+    long getTransfersCompleted();
+
+    long getTransfersFailed();
+
+    /**
+     * Connections a receiver with a session key refused because they were not authenticated.
+     */
+    long getConnectionsRejected();
+
+    long getActiveTransfers();
+
+    /**
+     * For sent files the time to open a connection, for received files the time from accepting a connection
+     * until its metadata has been read.
+     */
+    LatencyHistogram.Snapshot getConnectLatency();
+
+    /**
+     * The time from the start of a transfer until its first content byte was sent or received.
+     */
+    LatencyHistogram.Snapshot getTimeToFirstByte();
+
+    LatencyHistogram.Snapshot getTransferDuration();
+
+    /**
+     * The time a single chunk took to be written to the socket or to the file.
+     */
+    LatencyHistogram.Snapshot getChunkLatency();
+
+    /**
+     * The time per transfer spent in chunks that took longer than TransferMetrics.STALL_THRESHOLD.
+     */
+    LatencyHistogram.Snapshot getStallTime();
+
+    /**
+     * The counters of every peer, by address.
+     */
+    Map<String, TransferMetrics.PeerSnapshot> getPeers();
+}
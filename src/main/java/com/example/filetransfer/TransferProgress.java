@@ -0,0 +1,12 @@
+package com.example.filetransfer;
+
+import java.io.IOException;
+
+/**
+ * Reports the progress of content written to or read from a connection.
+ * Receivers checkpoint resumable transfers from here, and rate limited transfers wait here,
+ * so reporting may fail.
+ */
+interface TransferProgress {
+    void add(long bytes) throws IOException;
+}
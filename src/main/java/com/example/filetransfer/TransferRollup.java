@@ -0,0 +1,119 @@
+package com.example.filetransfer;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The TransferRollup class adds up file transfer entries into the statistics tables of the database.
+ * <p>
+ * transfer_stats holds the number of transfers, the bytes and the largest file per day, peer and direction, and
+ * transfer_sizes counts the file sizes of the same transfers in the buckets of LatencyHistogram, from which size
+ * percentiles are read. Entries are first added up in memory, so a batch of entries costs one update per day, peer
+ * and direction it touches rather than one per entry. The tables are updated in the transaction that inserts the
+ * entries, see TransferJournal, so they always match the history.
+ */
+final class TransferRollup {
+    private static final String STATS_SQL = "MERGE INTO transfer_stats s USING (VALUES (CAST(? AS DATE), " +
+            "CAST(? AS VARCHAR(255)), CAST(? AS VARCHAR(50)), CAST(? AS BIGINT), CAST(? AS BIGINT), CAST(? AS BIGINT))) " +
+            "v (stat_day, server, transfer_direction, transfers, total_bytes, max_size) " +
+            "ON s.stat_day = v.stat_day AND s.server = v.server AND s.transfer_direction = v.transfer_direction " +
+            "WHEN MATCHED THEN UPDATE SET transfers = s.transfers + v.transfers, total_bytes = s.total_bytes + v.total_bytes, " +
+            "max_size = GREATEST(s.max_size, v.max_size) " +
+            "WHEN NOT MATCHED THEN INSERT VALUES (v.stat_day, v.server, v.transfer_direction, v.transfers, v.total_bytes, v.max_size)";
+
+    private static final String SIZES_SQL = "MERGE INTO transfer_sizes s USING (VALUES (CAST(? AS DATE), " +
+            "CAST(? AS VARCHAR(255)), CAST(? AS VARCHAR(50)), CAST(? AS INT), CAST(? AS BIGINT))) " +
+            "v (stat_day, server, transfer_direction, bucket, transfers) " +
+            "ON s.stat_day = v.stat_day AND s.server = v.server AND s.transfer_direction = v.transfer_direction AND s.bucket = v.bucket " +
+            "WHEN MATCHED THEN UPDATE SET transfers = s.transfers + v.transfers " +
+            "WHEN NOT MATCHED THEN INSERT VALUES (v.stat_day, v.server, v.transfer_direction, v.bucket, v.transfers)";
+
+    // The number of history entries read at a time when the tables are filled from an existing history.
+    private static final int BACKFILL_FETCH_SIZE = 10_000;
+
+    // Transfers, bytes and largest size, keyed by day, peer and direction.
+    private final Map<List<Object>, long[]> stats = new HashMap<>();
+    // Transfers, keyed by day, peer, direction and size bucket.
+    private final Map<List<Object>, long[]> sizes = new HashMap<>();
+
+    /**
+     * Adds an entry to the statistics. Days are counted in the time zone of the machine, like the timestamps in the log.
+     */
+    void add(FileTransferRecord record) {
+        LocalDate day = LocalDate.ofInstant(record.getTimestamp(), ZoneId.systemDefault());
+        // The columns are part of the primary key, so an unknown peer is counted as an empty string.
+        String server = record.getServer() != null ? record.getServer() : "";
+        String direction = record.getTransferDirection();
+        long size = Math.max(0, record.getFilesize());
+
+        long[] total = stats.computeIfAbsent(List.of(day, server, direction), key -> new long[3]);
+        total[0]++;
+        total[1] += size;
+        total[2] = Math.max(total[2], size);
+        sizes.computeIfAbsent(List.of(day, server, direction, LatencyHistogram.bucketOf(size)), key -> new long[1])[0]++;
+    }
+
+    boolean isEmpty() {
+        return stats.isEmpty();
+    }
+
+    /**
+     * Adds the entries to the statistics tables, in the transaction of the connection.
+     */
+    void write(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(STATS_SQL)) {
+            for (Map.Entry<List<Object>, long[]> entry : stats.entrySet()) {
+                setKey(statement, entry.getKey());
+                statement.setLong(4, entry.getValue()[0]);
+                statement.setLong(5, entry.getValue()[1]);
+                statement.setLong(6, entry.getValue()[2]);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        try (PreparedStatement statement = connection.prepareStatement(SIZES_SQL)) {
+            for (Map.Entry<List<Object>, long[]> entry : sizes.entrySet()) {
+                setKey(statement, entry.getKey());
+                statement.setInt(4, (Integer) entry.getKey().get(3));
+                statement.setLong(5, entry.getValue()[0]);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private static void setKey(PreparedStatement statement, List<Object> key) throws SQLException {
+        statement.setDate(1, Date.valueOf((LocalDate) key.get(0)));
+        statement.setString(2, (String) key.get(1));
+        statement.setString(3, (String) key.get(2));
+    }
+
+    /**
+     * Fills the empty statistics tables from the history, in the transaction of the connection, see
+     * DatabaseHandler. Reads the history in a single pass, the statistics are kept in memory.
+     */
+    static void backfill(Connection connection) throws SQLException {
+        TransferRollup rollup = new TransferRollup();
+        try (Statement statement = connection.createStatement()) {
+            statement.setFetchSize(BACKFILL_FETCH_SIZE);
+            try (ResultSet rs = statement.executeQuery("SELECT filesize, transfer_direction, timestamp, server FROM file_transfers")) {
+                while (rs.next()) {
+                    rollup.add(new FileTransferRecord(null, rs.getLong("filesize"), rs.getString("transfer_direction"),
+                            rs.getTimestamp("timestamp").toInstant(), rs.getString("server"), null));
+                }
+            }
+        }
+        if (!rollup.isEmpty()) {
+            rollup.write(connection);
+        }
+    }
+}
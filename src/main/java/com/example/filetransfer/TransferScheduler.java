@@ -0,0 +1,263 @@
+package com.example.filetransfer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The TransferScheduler class queues files to send and runs them with a limited number of transfers at a time,
+ * overall and per receiver, so a large backlog does not thrash the disk and the network with hundreds of
+ * transfers competing for them.
+ * <p>
+ * Every receiver has its own queue, ordered by priority and then by submission. When a slot frees up, the job with
+ * the highest priority among the receivers below their limit is started. Receivers with jobs of equal priority are
+ * served in turn, so a receiver with a long queue does not hold up the others.
+ * Jobs can be cancelled while they are queued or running.
+ */
+public class TransferScheduler implements AutoCloseable {
+    public static final int DEFAULT_MAX_CONCURRENT_TRANSFERS = 4;
+    public static final int DEFAULT_MAX_TRANSFERS_PER_PEER = 2;
+
+    public enum Priority {
+        HIGH, NORMAL, LOW
+    }
+
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    private static final Comparator<Job> QUEUE_ORDER = Comparator.<Job, Priority>comparing(job -> job.priority)
+            .thenComparingLong(job -> job.sequence);
+
+    private final ExecutorService workers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "transfer-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Receivers with queued jobs, in the order they are served when their jobs have equal priority.
+    private final LinkedHashMap<InetSocketAddress, PriorityQueue<Job>> queues = new LinkedHashMap<>();
+    private final Map<InetSocketAddress, Integer> runningPerPeer = new HashMap<>();
+    private final List<Job> runningJobs = new ArrayList<>();
+    private int maxConcurrentTransfers;
+    private int maxTransfersPerPeer;
+    private long nextSequence;
+    private boolean closed;
+
+    /**
+     * @param maxConcurrentTransfers the maximum number of transfers running at the same time
+     * @param maxTransfersPerPeer    the maximum number of transfers running to the same receiver at the same time
+     */
+    public TransferScheduler(int maxConcurrentTransfers, int maxTransfersPerPeer) {
+        setLimits(maxConcurrentTransfers, maxTransfersPerPeer);
+    }
+
+    public TransferScheduler() {
+        this(DEFAULT_MAX_CONCURRENT_TRANSFERS, DEFAULT_MAX_TRANSFERS_PER_PEER);
+    }
+
+    /**
+     * Queues a file to send with normal priority.
+     */
+    public Job submit(FileSender sender) {
+        return submit(sender, Priority.NORMAL);
+    }
+
+    /**
+     * Queues a file to send. It is started as soon as the limits allow.
+     *
+     * @param sender   a sender configured for the transfer, its send() is called by the scheduler
+     * @param priority jobs with a higher priority are started first
+     * @return the job, which completes once the file has been sent
+     */
+    public Job submit(FileSender sender, Priority priority) {
+        // Resolving the receiver may look up its name, which must not hold up the scheduler.
+        InetSocketAddress peer = sender.getAddress();
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("The scheduler has been closed");
+            }
+            Job job = new Job(sender, priority, nextSequence++, peer);
+            queues.computeIfAbsent(peer, key -> new PriorityQueue<>(QUEUE_ORDER)).add(job);
+            dispatch();
+            return job;
+        }
+    }
+
+    /**
+     * Changes the limits. Raising a limit starts queued jobs right away, lowering it lets running jobs finish.
+     */
+    public synchronized void setLimits(int maxConcurrentTransfers, int maxTransfersPerPeer) {
+        if (maxConcurrentTransfers < 1 || maxTransfersPerPeer < 1) {
+            throw new IllegalArgumentException("Limits must be at least 1, were " + maxConcurrentTransfers
+                    + " and " + maxTransfersPerPeer);
+        }
+        this.maxConcurrentTransfers = maxConcurrentTransfers;
+        this.maxTransfersPerPeer = maxTransfersPerPeer;
+        dispatch();
+    }
+
+    // Starts queued jobs until a limit is reached, must be called while holding the lock.
+    private void dispatch() {
+        while (!closed && runningJobs.size() < maxConcurrentTransfers) {
+            Job next = null;
+            for (Map.Entry<InetSocketAddress, PriorityQueue<Job>> entry : queues.entrySet()) {
+                if (runningPerPeer.getOrDefault(entry.getKey(), 0) >= maxTransfersPerPeer) {
+                    continue;
+                }
+                Job head = entry.getValue().peek();
+                // Only a strictly higher priority overtakes a receiver that is earlier in turn.
+                if (next == null || head.priority.compareTo(next.priority) < 0) {
+                    next = head;
+                }
+            }
+            if (next == null) {
+                return;
+            }
+
+            PriorityQueue<Job> queue = queues.remove(next.peer);
+            queue.poll();
+            if (!queue.isEmpty()) {
+                // Puts the receiver at the end of the turn.
+                queues.put(next.peer, queue);
+            }
+            runningPerPeer.merge(next.peer, 1, Integer::sum);
+            runningJobs.add(next);
+            next.state = State.RUNNING;
+            Job job = next;
+            workers.execute(() -> run(job));
+        }
+    }
+
+    private void run(Job job) {
+        try {
+            job.sender.send();
+            finish(job, State.DONE, null);
+        } catch (IOException | RuntimeException e) {
+            finish(job, State.FAILED, e);
+        }
+    }
+
+    private void finish(Job job, State state, Exception failure) {
+        synchronized (this) {
+            if (job.state == State.RUNNING) {
+                job.state = state;
+            }
+            runningJobs.remove(job);
+            runningPerPeer.computeIfPresent(job.peer, (peer, count) -> count > 1 ? count - 1 : null);
+            dispatch();
+        }
+        // Has no effect if the job has been cancelled, its result is already complete.
+        if (failure == null) {
+            job.result.complete(null);
+        } else {
+            job.result.completeExceptionally(failure);
+        }
+    }
+
+    public synchronized int getQueuedCount() {
+        int queued = 0;
+        for (PriorityQueue<Job> queue : queues.values()) {
+            queued += queue.size();
+        }
+        return queued;
+    }
+
+    public synchronized int getRunningCount() {
+        return runningJobs.size();
+    }
+
+    /**
+     * Cancels all jobs, queued and running, and stops accepting new ones.
+     */
+    @Override
+    public void close() {
+        List<Job> jobs = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (PriorityQueue<Job> queue : queues.values()) {
+                jobs.addAll(queue);
+            }
+            jobs.addAll(runningJobs);
+        }
+        for (Job job : jobs) {
+            job.cancel();
+        }
+        workers.shutdown();
+    }
+
+    /**
+     * A file queued for sending.
+     */
+    public final class Job {
+        private final FileSender sender;
+        private final Priority priority;
+        private final long sequence;
+        private final InetSocketAddress peer;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+        private volatile State state = State.QUEUED;
+
+        private Job(FileSender sender, Priority priority, long sequence, InetSocketAddress peer) {
+            this.sender = sender;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.peer = peer;
+        }
+
+        /**
+         * Removes the job from the queue, or stops the transfer if it is running.
+         * The result completes with a CancellationException.
+         *
+         * @return false if the job had already finished
+         */
+        public boolean cancel() {
+            boolean running;
+            synchronized (TransferScheduler.this) {
+                if (state == State.QUEUED) {
+                    PriorityQueue<Job> queue = queues.get(peer);
+                    queue.remove(this);
+                    if (queue.isEmpty()) {
+                        queues.remove(peer);
+                    }
+                } else if (state != State.RUNNING) {
+                    return false;
+                }
+                running = state == State.RUNNING;
+                state = State.CANCELLED;
+            }
+            // Closing the connections may block, which must not hold up the scheduler.
+            if (running) {
+                sender.cancel();
+            }
+            result.cancel(false);
+            return true;
+        }
+
+        /**
+         * Returns a future that completes once the file has been sent, or with the failure of the transfer.
+         */
+        public CompletableFuture<Void> getResult() {
+            return result;
+        }
+
+        public FileSender getSender() {
+            return sender;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        public State getState() {
+            return state;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.example.filetransfer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * The TransferSession class is a connection that stays open between transfers, so many files can be sent to the same
+ * receiver without paying for a TCP connection and a handshake each time. Sessions are pooled by SessionPool.
+ * <p>
+ * The sender opens a session with SESSION_MAGIC and its hello, see Handshake. The receiver answers with its hello
+ * and a nonce. If the receiver has a session key, the nonce is random and the sender proves it has the same key with
+ * an HMAC-SHA256 of it, otherwise the nonce is empty and nothing is sent back. The receiver then confirms whether the
+ * session is accepted. After that, every request starts with an operation byte:
+ * <ul>
+ *     <li>TRANSFER is followed by a transfer exactly as on a connection of its own, from the hello on. The receiver
+ *     answers with TRANSFER once the transfer has been received, and closes the session if it failed.</li>
+ *     <li>PING is answered with PING, to check that an idle session is still alive.</li>
+ *     <li>CLOSE ends the session.</li>
+ * </ul>
+ * The sender waits for the answer to a request before it sends the next one, so neither side reads ahead into the
+ * next request. A receiver that does not know sessions closes the connection on SESSION_MAGIC, like on an unknown hello.
+ */
+final class TransferSession implements Closeable {
+    static final int TRANSFER = 1;
+    static final int PING = 2;
+    static final int CLOSE = 3;
+
+    // A writeUTF of "FTPS", told apart from the hello of a single transfer by its last character.
+    private static final byte[] SESSION_MAGIC = {0, 4, 'F', 'T', 'P', 'S'};
+    // The receiver's session key, and the default key of SessionPool.
+    static final String KEY_PROPERTY = "filetransfer.session.key";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int NONCE_SIZE = 32;
+    // How long the receiver may take to answer a PING, and the sender to answer the hello and the nonce of a session.
+    private static final int PING_TIMEOUT_MILLIS = 5_000;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+    // How long the receiver may take to confirm a transfer once all of it has been sent, e.g. to verify a manifest.
+    private static final int CONFIRM_TIMEOUT_MILLIS = 300_000;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final String peer;
+    private final Socket socket;
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private long lastUsed = System.nanoTime();
+    private boolean reused;
+
+    private TransferSession(String peer, Socket socket) throws IOException {
+        this.peer = peer;
+        this.socket = socket;
+        // Requests and answers are small, they must not wait for the acknowledgement of the previous one.
+        socket.setTcpNoDelay(true);
+        // A single buffered input for the whole session, so nothing read ahead is lost between requests.
+        this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.output = new DataOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Opens a session on a connected socket, authenticating with the key if the receiver asks for it.
+     * The socket is closed if the session cannot be opened.
+     *
+     * @param peer the server and port the session is pooled under
+     * @param key  the session key, or null if there is none
+     * @throws Handshake.LegacyPeerException if the receiver closes the connection because it does not know sessions
+     */
+    static TransferSession open(String peer, Socket socket, byte[] key) throws IOException {
+        try {
+            TransferSession session = new TransferSession(peer, socket);
+            ByteBuffer hello = ByteBuffer.allocate(SESSION_MAGIC.length + Handshake.HELLO_BODY_SIZE);
+            hello.put(SESSION_MAGIC);
+            Handshake.LOCAL.writeReply(hello);
+            session.output.write(hello.array());
+            session.output.flush();
+
+            byte[] reply = new byte[Handshake.REPLY_SIZE];
+            int first = session.input.read();
+            if (first == -1) {
+                throw new Handshake.LegacyPeerException(new EOFException("Connection closed before the session was answered"));
+            }
+            reply[0] = (byte) first;
+            session.input.readFully(reply, 1, reply.length - 1);
+            Handshake.read(ByteBuffer.wrap(reply)).checkAccepted();
+
+            byte[] nonce = new byte[session.input.readUnsignedByte()];
+            session.input.readFully(nonce);
+            if (nonce.length > 0) {
+                if (key == null) {
+                    throw new IOException("The receiver " + peer + " requires a session key, set " + KEY_PROPERTY);
+                }
+                session.output.write(sign(key, nonce));
+                session.output.flush();
+            }
+            if (!session.input.readBoolean()) {
+                throw new IOException("The receiver " + peer + " did not accept the session key");
+            }
+            return session;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns true if the bytes read where a transfer starts are the start of a session.
+     *
+     * @param length the two byte length read from the connection
+     * @param bytes  the first Handshake.MAGIC_LENGTH bytes after it
+     */
+    static boolean isSessionHello(int length, byte[] bytes) {
+        if (length != Handshake.MAGIC_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < Handshake.MAGIC_LENGTH; i++) {
+            if (bytes[i] != SESSION_MAGIC[i + 2]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Answers the hello of a session, of which SESSION_MAGIC has already been read, and authenticates the sender.
+     *
+     * @param key the session key, or null to accept any sender
+     * @return true if the session is accepted, the sender has been told either way
+     */
+    static boolean accept(Socket socket, DataInputStream input, byte[] key) throws IOException {
+        // A sender that does not complete the handshake must not hold a connection slot of the receiver.
+        int timeout = socket.getSoTimeout();
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        try {
+            return authenticate(socket, input, key);
+        } finally {
+            socket.setSoTimeout(timeout);
+        }
+    }
+
+    private static boolean authenticate(Socket socket, DataInputStream input, byte[] key) throws IOException {
+        byte[] hello = new byte[Handshake.HELLO_BODY_SIZE];
+        input.readFully(hello);
+        Handshake handshake;
+        try {
+            handshake = Handshake.LOCAL.negotiate(Handshake.read(ByteBuffer.wrap(hello)));
+        } catch (IOException e) {
+            FileReceiver.rejectHello(socket, e);
+            throw e;
+        }
+
+        byte[] nonce = new byte[key != null ? NONCE_SIZE : 0];
+        RANDOM.nextBytes(nonce);
+        ByteBuffer reply = ByteBuffer.allocate(Handshake.REPLY_SIZE + 1 + nonce.length);
+        handshake.writeReply(reply);
+        reply.put((byte) nonce.length).put(nonce);
+        OutputStream output = socket.getOutputStream();
+        output.write(reply.array());
+
+        boolean accepted = true;
+        if (key != null) {
+            byte[] expected = sign(key, nonce);
+            byte[] signature = new byte[expected.length];
+            input.readFully(signature);
+            accepted = MessageDigest.isEqual(signature, expected);
+        }
+        output.write(accepted ? 1 : 0);
+        return accepted;
+    }
+
+    private static byte[] sign(byte[] key, byte[] nonce) throws IOException {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+            return mac.doFinal(nonce);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot authenticate the session", e);
+        }
+    }
+
+    /**
+     * Returns the session key set with the system property, or null if there is none.
+     */
+    static byte[] defaultKey() {
+        String key = System.getProperty(KEY_PROPERTY);
+        return key == null || key.isEmpty() ? null : key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Starts a transfer on the session. The transfer follows on getInput() and getOutput().
+     */
+    void beginTransfer() throws IOException {
+        output.write(TRANSFER);
+    }
+
+    /**
+     * Waits until the receiver confirms the transfer.
+     */
+    void awaitTransfer() throws IOException {
+        int answer = readAnswer(CONFIRM_TIMEOUT_MILLIS);
+        if (answer != TRANSFER) {
+            throw new IOException("The receiver " + peer + " did not confirm the transfer");
+        }
+        lastUsed = System.nanoTime();
+    }
+
+    /**
+     * Checks that the receiver still answers.
+     *
+     * @return false if the session is broken and has to be closed
+     */
+    boolean ping() {
+        try {
+            output.write(PING);
+            output.flush();
+            if (readAnswer(PING_TIMEOUT_MILLIS) == PING) {
+                lastUsed = System.nanoTime();
+                return true;
+            }
+        } catch (IOException e) {
+            // The receiver closed the session after its idle timeout, the connection broke or is half-open.
+        }
+        return false;
+    }
+
+    // Reads the answer to a request, which must arrive within the timeout. Transfers themselves have no timeout.
+    private int readAnswer(int timeoutMillis) throws IOException {
+        socket.setSoTimeout(timeoutMillis);
+        try {
+            return input.read();
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    /**
+     * Tells the receiver the session ends, if it still listens, and closes the connection.
+     */
+    @Override
+    public void close() {
+        try (socket) {
+            if (!socket.isClosed()) {
+                output.write(CLOSE);
+                output.flush();
+            }
+        } catch (IOException e) {
+            // The connection is closed anyway.
+        }
+    }
+
+    /**
+     * Closes the connection without telling the receiver, for a session that is in use. Writing CLOSE could block
+     * behind the transfer and would end up in the middle of its content, the receiver sees the transfer break off.
+     */
+    void abort() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // The connection is closed anyway.
+        }
+    }
+
+    String getPeer() {
+        return peer;
+    }
+
+    Socket getSocket() {
+        return socket;
+    }
+
+    DataInputStream getInput() {
+        return input;
+    }
+
+    DataOutputStream getOutput() {
+        return output;
+    }
+
+    long getIdleNanos() {
+        return System.nanoTime() - lastUsed;
+    }
+
+    /**
+     * Returns true if the session was taken from the pool rather than opened for the transfer.
+     */
+    boolean isReused() {
+        return reused;
+    }
+
+    void setReused(boolean reused) {
+        this.reused = reused;
+    }
+}
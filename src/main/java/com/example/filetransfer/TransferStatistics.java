@@ -0,0 +1,57 @@
+package com.example.filetransfer;
+
+import java.time.LocalDate;
+
+/**
+ * The TransferStatistics class represents the totals of a group of file transfers, as read from the statistics
+ * tables of the database by DatabaseHandler. Depending on the query, a group is a day, a peer, a direction or a
+ * combination of them; the parts that were added up over are null.
+ */
+public final class TransferStatistics {
+    private final LocalDate day;
+    private final String server;
+    private final String transferDirection;
+    private final long transfers;
+    private final long totalBytes;
+    private final long maxSize;
+
+    TransferStatistics(LocalDate day, String server, String transferDirection, long transfers, long totalBytes, long maxSize) {
+        this.day = day;
+        this.server = server;
+        this.transferDirection = transferDirection;
+        this.transfers = transfers;
+        this.totalBytes = totalBytes;
+        this.maxSize = maxSize;
+    }
+
+    public LocalDate getDay() {
+        return day;
+    }
+
+    public String getServer() {
+        return server;
+    }
+
+    public String getTransferDirection() {
+        return transferDirection;
+    }
+
+    public long getTransfers() {
+        return transfers;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the average file size, 0 if there were no transfers.
+     */
+    public long getAverageSize() {
+        return transfers > 0 ? totalBytes / transfers : 0;
+    }
+}
@@ -2,6 +2,7 @@ module com.example.filetransfer {
     requires javafx.controls;
     requires org.json;
     requires java.sql;
+    requires java.management;
 
 
     opens com.example.filetransfer;
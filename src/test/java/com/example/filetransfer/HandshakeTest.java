@@ -0,0 +1,100 @@
+package com.example.filetransfer;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HandshakeTest {
+    @Test
+    void headerStartsWithHelloFollowedByFrame() throws IOException {
+        TransferMetadata metadata = new TransferMetadata("file", 100, null, 0, 1, 0, 100);
+        ByteBuffer header = Handshake.header(metadata);
+
+        int length = header.getShort() & 0xFFFF;
+        byte[] magic = new byte[Handshake.MAGIC_LENGTH];
+        header.get(magic);
+        assertTrue(Handshake.isHello(length, magic));
+        assertFalse(TransferSession.isSessionHello(length, magic));
+
+        Handshake hello = Handshake.read(header);
+        assertEquals(Handshake.VERSION, hello.getVersion());
+        assertTrue(hello.supports(Handshake.SUPPORTED));
+        assertEquals(CompressedFraming.FRAME_SIZE, hello.getMaxFrameSize());
+
+        header.limit(header.position() + Integer.BYTES + MetadataCodec.readFrameLength(header));
+        assertEquals("file", MetadataCodec.decode(header).getName());
+    }
+
+    @Test
+    void legacyMetadataIsNotHello() {
+        assertFalse(Handshake.isHello(4, new byte[]{'{', '"', 'n', 'a'}));
+        assertFalse(Handshake.isHello(30, new byte[]{'F', 'T', 'P', '2'}));
+    }
+
+    @Test
+    void replyRoundTrips() throws IOException {
+        Handshake reply = reply(new Handshake(3, Handshake.RESUME | Handshake.DELTA, 4096));
+        assertEquals(3, reply.getVersion());
+        assertTrue(reply.supports(Handshake.RESUME | Handshake.DELTA));
+        assertFalse(reply.supports(Handshake.STRIPES));
+        assertEquals(4096, reply.getMaxFrameSize());
+    }
+
+    @Test
+    void negotiatesWhatBothSidesHave() {
+        Handshake remote = new Handshake(3, Handshake.RESUME | Handshake.STRIPES | (1 << 20), 1024);
+        Handshake common = Handshake.LOCAL.negotiate(remote);
+        assertEquals(Handshake.VERSION, common.getVersion());
+        assertTrue(common.supports(Handshake.RESUME | Handshake.STRIPES));
+        assertFalse(common.supports(Handshake.DELTA));
+        assertFalse(common.supports(1 << 20));
+        assertEquals(1024, common.getMaxFrameSize());
+    }
+
+    @Test
+    void rejectsInvalidHello() {
+        assertThrows(IOException.class, () -> reply(new Handshake(1, Handshake.SUPPORTED, 1024)));
+        assertThrows(IOException.class, () -> reply(new Handshake(Handshake.VERSION, Handshake.SUPPORTED, 0)));
+    }
+
+    @Test
+    void requiresCapabilitiesOfTransfer() throws IOException {
+        TransferMetadata metadata = new TransferMetadata("file", 100, UUID.randomUUID().toString(), 0, 2, 0, 50);
+        metadata.setDelta(true);
+
+        new Handshake(Handshake.VERSION, Handshake.STRIPES | Handshake.DELTA, 1024).require(metadata);
+        IOException e = assertThrows(IOException.class,
+                () -> new Handshake(Handshake.VERSION, Handshake.STRIPES, 1024).require(metadata));
+        assertTrue(e.getMessage().endsWith(Integer.toHexString(Handshake.DELTA)));
+    }
+
+    @Test
+    void failsOnRejectedAnswer() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Handshake.REPLY_SIZE);
+        Handshake.writeRejected(buffer);
+        Handshake rejected = Handshake.read(buffer.flip());
+        assertThrows(IOException.class, rejected::checkAccepted);
+        assertThrows(IOException.class, () -> rejected.require(new TransferMetadata("file", 0, null, 0, 1, 0, 0)));
+        Handshake.LOCAL.checkAccepted();
+    }
+
+    @Test
+    void failsOnSessionRequiredAnswer() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Handshake.REPLY_SIZE);
+        Handshake.writeSessionRequired(buffer);
+        Handshake answer = Handshake.read(buffer.flip());
+        answer.checkAccepted();
+        assertThrows(IOException.class, () -> answer.require(new TransferMetadata("file", 0, null, 0, 1, 0, 0)));
+    }
+
+    private static Handshake reply(Handshake handshake) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Handshake.REPLY_SIZE);
+        handshake.writeReply(buffer);
+        assertFalse(buffer.hasRemaining());
+        return Handshake.read(buffer.flip());
+    }
+}
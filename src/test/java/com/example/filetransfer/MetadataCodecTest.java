@@ -0,0 +1,153 @@
+package com.example.filetransfer;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetadataCodecTest {
+    private static final String ID = UUID.randomUUID().toString();
+    private static final String ROOT = "00112233445566778899aabbccddeeff00112233445566778899aabbccddeeff";
+
+    @Test
+    void roundTripsAllFields() throws IOException {
+        TransferMetadata metadata = new TransferMetadata("dir/file é.bin", 1000, ID, 2, 4, 500, 250);
+        metadata.setResumable(true);
+        metadata.setDelta(true);
+        metadata.setDeduplicated(true);
+        metadata.setBatch(true);
+        metadata.setChecksummed(true);
+        metadata.setManifestRoot(ROOT);
+        metadata.setInline(true);
+        metadata.setCodec(CompressedFraming.DEFLATE);
+
+        TransferMetadata decoded = roundTrip(metadata);
+
+        assertEquals(metadata.getName(), decoded.getName());
+        assertEquals(1000, decoded.getSize());
+        assertEquals(ID, decoded.getTransferId());
+        assertEquals(2, decoded.getStripeIndex());
+        assertEquals(4, decoded.getStripeCount());
+        assertEquals(500, decoded.getOffset());
+        assertEquals(250, decoded.getLength());
+        assertTrue(decoded.isResumable());
+        assertTrue(decoded.isDelta());
+        assertTrue(decoded.isDeduplicated());
+        assertTrue(decoded.isBatch());
+        assertTrue(decoded.isChecksummed());
+        assertEquals(ROOT, decoded.getManifestRoot());
+        assertTrue(decoded.isInline());
+        assertEquals(CompressedFraming.DEFLATE, decoded.getCodec());
+    }
+
+    @Test
+    void roundTripsPlainTransfer() throws IOException {
+        TransferMetadata decoded = roundTrip(new TransferMetadata("file.txt", 0, null, 0, 1, 0, 0));
+
+        assertEquals("file.txt", decoded.getName());
+        assertNull(decoded.getTransferId());
+        assertNull(decoded.getManifestRoot());
+        assertNull(decoded.getCodec());
+        assertFalse(decoded.isStriped());
+        assertFalse(decoded.requiresExchange());
+    }
+
+    @Test
+    void skipsAppendedFields() throws IOException {
+        TransferMetadata metadata = new TransferMetadata("file.txt", 10, null, 0, 1, 0, 10);
+        ByteBuffer buffer = ByteBuffer.allocate(MetadataCodec.frameSize(metadata) + 3);
+        MetadataCodec.encode(metadata, buffer);
+        buffer.put(new byte[3]).flip();
+        buffer.putInt(0, buffer.limit() - Integer.BYTES);
+
+        assertEquals(buffer.limit() - Integer.BYTES, MetadataCodec.readFrameLength(buffer));
+        assertEquals("file.txt", MetadataCodec.decode(buffer).getName());
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void rejectsRangeThatOverflows() {
+        assertRejected(new TransferMetadata("file", 100, ID, 1, 2, Long.MAX_VALUE, 10));
+    }
+
+    @Test
+    void rejectsRangeBeyondTheFile() {
+        assertRejected(new TransferMetadata("file", 100, ID, 1, 2, 50, 51));
+        assertRejected(new TransferMetadata("file", -1, null, 0, 1, 0, 0));
+    }
+
+    @Test
+    void rejectsTooManyStripes() {
+        assertRejected(new TransferMetadata("file", 100, ID, 0, TransferMetadata.MAX_STRIPE_COUNT + 1, 0, 1));
+        assertRejected(new TransferMetadata("file", 100, ID, 2, 2, 0, 1));
+        assertRejected(new TransferMetadata("file", 100, null, 0, 0, 0, 1));
+    }
+
+    @Test
+    void rejectsStripesWithoutTransferId() {
+        assertRejected(new TransferMetadata("file", 100, null, 0, 2, 0, 50));
+        TransferMetadata resumable = new TransferMetadata("file", 100, null, 0, 1, 0, 100);
+        resumable.setResumable(true);
+        assertRejected(resumable);
+    }
+
+    @Test
+    void rejectsInvalidFrameLength() {
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+        buffer.putInt(0, MetadataCodec.MAX_FRAME_SIZE + 1);
+        assertThrows(IOException.class, () -> MetadataCodec.readFrameLength(buffer));
+        buffer.putInt(0, 3);
+        assertThrows(IOException.class, () -> MetadataCodec.readFrameLength(buffer.rewind()));
+    }
+
+    @Test
+    void rejectsTruncatedFrame() {
+        ByteBuffer buffer = encode(new TransferMetadata("file.txt", 10, ID, 0, 2, 0, 5));
+        buffer.getInt();
+        buffer.limit(buffer.limit() - 5);
+        assertThrows(IOException.class, () -> MetadataCodec.decode(buffer));
+    }
+
+    @Test
+    void jsonRoundTripsAndIsValidatedTheSameWay() throws IOException {
+        TransferMetadata metadata = new TransferMetadata("file", 100, ID, 1, 2, 50, 50);
+        metadata.setManifestRoot(ROOT);
+        TransferMetadata parsed = TransferMetadata.fromJson(metadata.toJson());
+        assertEquals(ID, parsed.getTransferId());
+        assertEquals(50, parsed.getOffset());
+        assertEquals(ROOT, parsed.getManifestRoot());
+
+        assertThrows(IOException.class, () -> TransferMetadata.fromJson(
+                "{\"name\":\"file\",\"size\":100,\"stripe\":0,\"stripes\":2,\"offset\":0,\"length\":50}"));
+        assertThrows(IOException.class, () -> TransferMetadata.fromJson(
+                "{\"name\":\"file\",\"size\":100,\"id\":\"" + ID + "\",\"stripe\":0,\"stripes\":1000,\"offset\":0,\"length\":50}"));
+        assertThrows(IOException.class, () -> TransferMetadata.fromJson(
+                "{\"name\":\"file\",\"size\":100,\"id\":\"../x\",\"resume\":true}"));
+        assertThrows(IOException.class, () -> TransferMetadata.fromJson(
+                "{\"name\":\"file\",\"size\":100,\"offset\":" + Long.MAX_VALUE + ",\"length\":10}"));
+    }
+
+    private static ByteBuffer encode(TransferMetadata metadata) {
+        ByteBuffer buffer = ByteBuffer.allocate(MetadataCodec.frameSize(metadata));
+        MetadataCodec.encode(metadata, buffer);
+        assertFalse(buffer.hasRemaining());
+        return buffer.flip();
+    }
+
+    private static TransferMetadata roundTrip(TransferMetadata metadata) throws IOException {
+        ByteBuffer buffer = encode(metadata);
+        assertEquals(buffer.limit() - Integer.BYTES, MetadataCodec.readFrameLength(buffer));
+        return MetadataCodec.decode(buffer);
+    }
+
+    private static void assertRejected(TransferMetadata metadata) {
+        ByteBuffer buffer = encode(metadata);
+        assertThrows(IOException.class, () -> {
+            MetadataCodec.readFrameLength(buffer);
+            MetadataCodec.decode(buffer);
+        });
+    }
+}